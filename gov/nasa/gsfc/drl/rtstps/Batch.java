@@ -9,12 +9,11 @@ import gov.nasa.gsfc.drl.rtstps.core.Configuration;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsNode;
 import gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
 import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
 
-import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.util.Collection;
 import java.util.Iterator;
@@ -30,8 +29,6 @@ import org.xml.sax.InputSource;
  */
 public final class Batch
 {
-    private static final int BUFFERLENGTH = 8192;
-
     public static void main(String[] args)
     {
         System.out.println(gov.nasa.gsfc.drl.rtstps.Version.getVersion());
@@ -39,6 +36,7 @@ public final class Batch
         if (args.length != 2)
         {
             System.err.println("Options: [-Droot=<stp.dtdDirectory>] [-Dsetup=<directory>] [-Draw=<directory>]");
+            System.err.println("         [-DblockSizeKb=1024] [-DwindowSizeMb=64] [-DprogressSeconds=5]");
             System.err.println("Arguments: [setupFile] [dataFile]");
             System.exit(1);
         }
@@ -81,36 +79,24 @@ public final class Batch
 //            System.exit(-2);
 //        }
 
-        BufferedInputStream input = null;
-        try
-        {
-            String directory = "/run/media/youngcle/3178-435E/nasa/rt-stps";
-            File dataFile = new File(directory,args[1]);
-            FileInputStream fis = new FileInputStream(dataFile);
-            input = new BufferedInputStream(fis);
-        }
-        catch (java.io.FileNotFoundException ofnf)
+        int blockSize = 1024 * Integer.getInteger("blockSizeKb",1024).intValue();
+        long windowSize = 1024L * 1024L * Integer.getInteger("windowSizeMb",64).intValue();
+        long progressMillis = 1000L * Integer.getInteger("progressSeconds",5).intValue();
+
+        String directory = System.getProperty("raw","/run/media/youngcle/3178-435E/nasa/rt-stps");
+        File dataFile = new File(directory,args[1]);
+        if (!dataFile.isFile())
         {
-            ofnf.printStackTrace();
+            System.err.println(dataFile + " does not exist.");
             System.exit(-3);
         }
 
-        long tbytes = 0L;
-        long t0 = System.currentTimeMillis();
-
-        byte[] data = new byte[BUFFERLENGTH];
+        BatchReader reader = new BatchReader(dataFile,blockSize,windowSize,
+                progressMillis,System.out);
 
         try
         {
-            while (true)
-            {
-                int bytes = input.read(data,0,BUFFERLENGTH);
-                if (bytes == -1) break;
-                fs.putBuffer(data,bytes);
-                tbytes += bytes;
-                System.out.println("writed(KB):"+tbytes/1024);
-            }
-
+            reader.run(fs);
             fs.shutdown();
         }
         catch (java.io.IOException re)
@@ -124,23 +110,17 @@ public final class Batch
             System.exit(-5);
         }
 
-        long t1 = System.currentTimeMillis();
-        long t = t1 - t0;
-        long bitsPerMs = 8L * tbytes / t;
-        long bitsPerSecond = bitsPerMs * 1000L;
-        long kilobitsPerSecond = bitsPerSecond / 1024L;
-        System.out.println("kilobits per second="+ kilobitsPerSecond);
+        long tbytes = reader.getBytes();
+        long t = Math.max(1L,reader.getElapsedMillis());
+        double seconds = t / 1000.0;
+        double megabytes = tbytes / (1024.0 * 1024.0);
+        System.out.println(String.format("read %.1f MB in %.3f seconds, %.2f MB/s",
+                megabytes, seconds, megabytes / seconds));
         System.out.println();
 
-        try
-        {
-            input.close();
-        }
-        catch (java.io.IOException ce)
-        {
-            ce.printStackTrace();
-        }
-
+        //Each stage's unit counter is also shown as a rate over the whole
+        //run, so that the frame and packet counts read as frames/s. The
+        //other counters are gauges, sizes, or times, whose rates mean nothing.
         TreeMap<String, RtStpsNode> nodes = configuration.getStpsNodes();
         Iterator<RtStpsNode> i = nodes.values().iterator();
         while (i.hasNext())
@@ -154,7 +134,16 @@ public final class Batch
                 while (ii.hasNext())
                 {
                     StatusItem si = (StatusItem)ii.next();
-                    System.out.println("    " + si);
+                    if (si == node.getUnitCount())
+                    {
+                        long count = ((LongStatusItem)si).getLongValue();
+                        System.out.println(String.format("    %s (%.1f/s)",
+                                si, count / seconds));
+                    }
+                    else
+                    {
+                        System.out.println("    " + si);
+                    }
                 }
             }
         }
@@ -0,0 +1,138 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class feeds a raw telemetry file to a FrameSynchronizer. It maps the
+ * file into memory in large windows and copies it out in large blocks, so
+ * a multi-gigabyte pass costs a few mappings instead of one read call per
+ * 8 KB. The FrameSynchronizer takes a byte array, so each block is copied
+ * once from the mapping into a reused array.
+ * <p>
+ * It reports progress at a fixed time interval rather than per block.
+ *
+ */
+final class BatchReader
+{
+    private final File file;
+    private final int blockSize;
+    private final long windowSize;
+    private final long progressMillis;
+    private final PrintStream progress;
+
+    private long bytes = 0L;
+    private long elapsedMillis = 0L;
+
+    /**
+     * Create a batch reader.
+     * @param file The raw telemetry file.
+     * @param blockSize The number of bytes given to the FrameSynchronizer
+     *          in one call.
+     * @param windowSize The number of bytes mapped at one time. It is
+     *          rounded down to a multiple of the block size.
+     * @param progressMillis The progress report interval. Zero or less
+     *          disables progress reports.
+     * @param progress Where progress reports go.
+     */
+    BatchReader(File file, int blockSize, long windowSize, long progressMillis,
+            PrintStream progress)
+    {
+        this.file = file;
+        this.blockSize = blockSize;
+        long w = (windowSize / blockSize) * blockSize;
+        this.windowSize = (w > 0L)? w : blockSize;
+        this.progressMillis = progressMillis;
+        this.progress = progress;
+    }
+
+    /**
+     * Read the whole file into the FrameSynchronizer. It does not shut down
+     * the FrameSynchronizer.
+     * @return The number of bytes read.
+     */
+    long run(FrameSynchronizer fs) throws IOException, RtStpsException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file,"r");
+        FileChannel channel = raf.getChannel();
+        byte[] data = new byte[blockSize];
+
+        long t0 = System.currentTimeMillis();
+        long nextReport = t0 + progressMillis;
+
+        try
+        {
+            long size = channel.size();
+            long position = 0L;
+            while (position < size)
+            {
+                long mapLength = Math.min(windowSize,size - position);
+                MappedByteBuffer window = channel.map(
+                        FileChannel.MapMode.READ_ONLY,position,mapLength);
+                position += mapLength;
+
+                while (window.hasRemaining())
+                {
+                    int n = Math.min(blockSize,window.remaining());
+                    window.get(data,0,n);
+                    fs.putBuffer(data,n);
+                    bytes += n;
+
+                    if (progressMillis > 0L)
+                    {
+                        long now = System.currentTimeMillis();
+                        if (now >= nextReport)
+                        {
+                            report(now - t0,size);
+                            nextReport = now + progressMillis;
+                        }
+                    }
+                }
+            }
+        }
+        finally
+        {
+            elapsedMillis = System.currentTimeMillis() - t0;
+            channel.close();
+            raf.close();
+        }
+
+        return bytes;
+    }
+
+    /**
+     * Get the number of bytes read so far.
+     */
+    long getBytes()
+    {
+        return bytes;
+    }
+
+    /**
+     * Get the time run() took in milliseconds.
+     */
+    long getElapsedMillis()
+    {
+        return elapsedMillis;
+    }
+
+    private void report(long millis, long size)
+    {
+        double mb = bytes / (1024.0 * 1024.0);
+        double seconds = millis / 1000.0;
+        progress.println(String.format("read %.1f MB of %.1f MB (%.1f%%), %.1f MB/s",
+                mb, size / (1024.0 * 1024.0), 100.0 * bytes / size,
+                (seconds > 0.0)? mb / seconds : 0.0));
+    }
+}
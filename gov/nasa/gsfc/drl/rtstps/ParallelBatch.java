@@ -0,0 +1,495 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps;
+import gov.nasa.gsfc.drl.rtstps.core.Builder;
+import gov.nasa.gsfc.drl.rtstps.core.Configuration;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsNode;
+import gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer;
+import gov.nasa.gsfc.drl.rtstps.core.output.rdr.RDROutput;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.w3c.dom.Element;
+import org.xml.sax.InputSource;
+
+/**
+ * This class is the main entry for the RT-STPS parallel batch processor. It
+ * processes many raw telemetry files in one JVM. It takes a setup file, a
+ * directory of pass files or a manifest that lists them one per line, and
+ * an output directory. It processes several passes at once on a fixed pool
+ * of worker threads.
+ * <p>
+ * Every pass gets its own pipeline, and its file output goes into its own
+ * subdirectory of the output directory, named after the pass file. All
+ * pipelines come from one Builder, so the setup is parsed and validated
+ * once. Builder is not thread-safe, so workers take turns creating their
+ * pipelines, which is quick. Only the processing runs in parallel.
+ * <p>
+ * Each pass subdirectory gets a "status.txt" report, and the output
+ * directory gets a "batch-status.txt" report with one line per pass and the
+ * status counters summed over all passes.
+ * <p>
+ * File, packet log, APID split, ring, PDS, and RDR output all go into the
+ * pass subdirectory. The RDR output classes keep state in static fields,
+ * and socket channels of every pass would connect to the same consumer, so
+ * I run setups that have either with one worker and say so.
+ *
+ */
+public final class ParallelBatch
+{
+    private static final String PASS_REPORT = "status.txt";
+    private static final String BATCH_REPORT = "batch-status.txt";
+
+    private final Builder builder;
+    private final String setupText;
+    private final String systemId;
+    private final File outputRoot;
+    private final int blockSize;
+    private final long windowSize;
+
+    /**
+     * The result of processing one pass.
+     */
+    private static final class PassResult
+    {
+        File file;
+        long bytes = 0L;
+        long millis = 0L;
+        String error = null;
+
+        /** Counter values by "node: label", in node order. */
+        TreeMap<String,Long> counters = new TreeMap<String,Long>();
+    }
+
+    private ParallelBatch(Builder builder, String setupText, String systemId,
+            File outputRoot, int blockSize, long windowSize)
+    {
+        this.builder = builder;
+        this.setupText = setupText;
+        this.systemId = systemId;
+        this.outputRoot = outputRoot;
+        this.blockSize = blockSize;
+        this.windowSize = windowSize;
+    }
+
+    public static void main(String[] args)
+    {
+        System.out.println(gov.nasa.gsfc.drl.rtstps.Version.getVersion());
+
+        if (args.length != 3)
+        {
+            System.err.println("Options: [-Droot=<stp.dtdDirectory>] [-Dworkers=<threads>]");
+            System.err.println("         [-DblockSizeKb=1024] [-DwindowSizeMb=64]");
+            System.err.println("Arguments: [setupFile] [passDirectory|manifestFile] [outputDirectory]");
+            System.exit(1);
+        }
+
+        int workers = Integer.getInteger("workers",
+                Runtime.getRuntime().availableProcessors()).intValue();
+        int blockSize = 1024 * Integer.getInteger("blockSizeKb",1024).intValue();
+        long windowSize = 1024L * 1024L * Integer.getInteger("windowSizeMb",64).intValue();
+
+        File outputRoot = new File(args[2]);
+        List<File> passes = null;
+        ParallelBatch batch = null;
+        try
+        {
+            passes = listPasses(new File(args[1]));
+            String setupText = readFile(new File(args[0]));
+            String root = System.getProperty("root","file://localhost/");
+            batch = new ParallelBatch(new Builder(),setupText,root,outputRoot,
+                    blockSize,windowSize);
+        }
+        catch (IOException ioe)
+        {
+            System.err.println(ioe.getMessage());
+            System.exit(-1);
+        }
+        catch (RtStpsException be)
+        {
+            System.err.println(be.getMessage());
+            be.printStackTrace();
+            System.exit(-2);
+        }
+
+        if (!outputRoot.isDirectory() && !outputRoot.mkdirs())
+        {
+            System.err.println("Cannot create " + outputRoot);
+            System.exit(-3);
+        }
+
+        workers = Math.max(1,Math.min(workers,passes.size()));
+        if (workers > 1)
+        {
+            String reason = null;
+            try
+            {
+                reason = batch.getSerialReason();
+            }
+            catch (RtStpsException be)
+            {
+                System.err.println(be.getMessage());
+                System.exit(-2);
+            }
+            if (reason != null)
+            {
+                System.out.println(reason + " I use one worker.");
+                workers = 1;
+            }
+        }
+        System.out.println(passes.size() + " passes, " + workers + " workers");
+
+        long t0 = System.currentTimeMillis();
+        List<PassResult> results = batch.run(passes,workers);
+        long millis = System.currentTimeMillis() - t0;
+
+        int failed = 0;
+        try
+        {
+            failed = batch.writeBatchReport(results,millis);
+        }
+        catch (IOException ioe)
+        {
+            ioe.printStackTrace();
+            System.exit(-4);
+        }
+
+        System.exit((failed == 0)? 0 : -5);
+    }
+
+    /**
+     * Look for setup elements whose passes cannot run at the same time.
+     * @return Why the passes must run one at a time, or null if they may run
+     *          in parallel.
+     */
+    private String getSerialReason() throws RtStpsException
+    {
+        InputSource setup = new InputSource(new StringReader(setupText));
+        setup.setSystemId(systemId);
+        Element root = builder.parse(setup).getDocumentElement();
+
+        if (root.getElementsByTagName(RDROutput.CLASSNAME).getLength() > 0)
+        {
+            return "The setup has RDR output, which keeps state in static fields.";
+        }
+        if (root.getElementsByTagName("socket").getLength() > 0)
+        {
+            return "The setup has socket channels, which every pass would share.";
+        }
+        return null;
+    }
+
+    /**
+     * Get the pass files. If the path is a directory, the passes are the
+     * files in it in name order. Otherwise it is a manifest with one pass
+     * file per line. Blank lines and lines that start with # are ignored,
+     * and relative paths are relative to the manifest's directory.
+     */
+    private static List<File> listPasses(File path) throws IOException
+    {
+        List<File> passes = new ArrayList<File>();
+        if (path.isDirectory())
+        {
+            File[] files = path.listFiles();
+            Arrays.sort(files);
+            for (int n = 0; n < files.length; n++)
+            {
+                if (files[n].isFile()) passes.add(files[n]);
+            }
+        }
+        else
+        {
+            BufferedReader br = new BufferedReader(new FileReader(path));
+            try
+            {
+                String line;
+                while ((line = br.readLine()) != null)
+                {
+                    line = line.trim();
+                    if (line.length() == 0 || line.startsWith("#")) continue;
+                    File file = new File(line);
+                    if (!file.isAbsolute())
+                    {
+                        file = new File(path.getAbsoluteFile().getParentFile(),line);
+                    }
+                    passes.add(file);
+                }
+            }
+            finally
+            {
+                br.close();
+            }
+        }
+
+        if (passes.isEmpty())
+        {
+            throw new IOException("There are no pass files in " + path);
+        }
+        return passes;
+    }
+
+    private static String readFile(File file) throws IOException
+    {
+        StringBuilder sb = new StringBuilder((int)file.length());
+        FileReader reader = new FileReader(file);
+        try
+        {
+            char[] chunk = new char[8192];
+            int n;
+            while ((n = reader.read(chunk)) != -1)
+            {
+                sb.append(chunk,0,n);
+            }
+        }
+        finally
+        {
+            reader.close();
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Process all passes on a pool of worker threads.
+     * @return The results in pass order.
+     */
+    private List<PassResult> run(List<File> passes, int workers)
+    {
+        ExecutorService pool = Executors.newFixedThreadPool(workers);
+        List<Future<PassResult>> futures = new ArrayList<Future<PassResult>>(passes.size());
+        for (final File pass : passes)
+        {
+            futures.add(pool.submit(new Callable<PassResult>()
+            {
+                public PassResult call()
+                {
+                    return process(pass);
+                }
+            }));
+        }
+        pool.shutdown();
+
+        List<PassResult> results = new ArrayList<PassResult>(passes.size());
+        for (int n = 0; n < futures.size(); n++)
+        {
+            PassResult result;
+            try
+            {
+                result = futures.get(n).get();
+            }
+            catch (InterruptedException ie)
+            {
+                Thread.currentThread().interrupt();
+                result = new PassResult();
+                result.file = passes.get(n);
+                result.error = ie.toString();
+            }
+            catch (ExecutionException ee)
+            {
+                result = new PassResult();
+                result.file = passes.get(n);
+                result.error = ee.getCause().toString();
+            }
+            results.add(result);
+            System.out.println(summary(result));
+        }
+        return results;
+    }
+
+    /**
+     * Process one pass with its own pipeline.
+     */
+    private PassResult process(File pass)
+    {
+        PassResult result = new PassResult();
+        result.file = pass;
+
+        File directory = new File(outputRoot,pass.getName());
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            result.error = "Cannot create " + directory;
+            return result;
+        }
+
+        FrameSynchronizer fs = null;
+        Configuration configuration = null;
+        BatchReader reader = new BatchReader(pass,blockSize,windowSize,0L,null);
+        try
+        {
+            //The builder keeps the setup document it parsed the first time,
+            //so every build after the first only creates and links nodes.
+            synchronized (builder)
+            {
+                InputSource setup = new InputSource(new StringReader(setupText));
+                setup.setSystemId(systemId);
+                builder.setOutputDirectory(directory);
+                fs = builder.create(setup);
+                configuration = builder.getConfiguration();
+            }
+
+            reader.run(fs);
+            fs.shutdown();
+            fs = null;
+        }
+        catch (IOException ioe)
+        {
+            result.error = ioe.toString();
+        }
+        catch (RtStpsException re)
+        {
+            result.error = re.toString();
+        }
+        finally
+        {
+            if (fs != null)
+            {
+                //I still close whatever output the pass opened.
+                try
+                {
+                    fs.shutdown();
+                }
+                catch (RtStpsException re)
+                {
+                }
+            }
+        }
+
+        result.bytes = reader.getBytes();
+        result.millis = reader.getElapsedMillis();
+
+        if (configuration != null)
+        {
+            try
+            {
+                writePassReport(result,configuration,new File(directory,PASS_REPORT));
+            }
+            catch (IOException ioe)
+            {
+                if (result.error == null) result.error = ioe.toString();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write the status report for one pass and collect its counters.
+     */
+    private void writePassReport(PassResult result, Configuration configuration,
+            File file) throws IOException
+    {
+        PrintWriter out = new PrintWriter(new FileWriter(file));
+        try
+        {
+            out.println(summary(result));
+            out.println();
+
+            TreeMap<String, RtStpsNode> nodes = configuration.getStpsNodes();
+            Iterator<RtStpsNode> i = nodes.values().iterator();
+            while (i.hasNext())
+            {
+                RtStpsNode node = i.next();
+                Collection<StatusItem> status = node.getStatusItems();
+                if (status == null) continue;
+                out.println(node);
+                Iterator<StatusItem> ii = status.iterator();
+                while (ii.hasNext())
+                {
+                    StatusItem si = ii.next();
+                    out.println("    " + si);
+                    if (si instanceof LongStatusItem)
+                    {
+                        result.counters.put(node + ": " + si.getName(),
+                                ((LongStatusItem)si).getLongValue());
+                    }
+                }
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+
+    /**
+     * Write the aggregate report for all passes.
+     * @return The number of passes that failed.
+     */
+    private int writeBatchReport(List<PassResult> results, long millis)
+            throws IOException
+    {
+        long bytes = 0L;
+        int failed = 0;
+        TreeMap<String,Long> totals = new TreeMap<String,Long>();
+
+        PrintWriter out = new PrintWriter(new FileWriter(
+                new File(outputRoot,BATCH_REPORT)));
+        try
+        {
+            for (PassResult result : results)
+            {
+                out.println(summary(result));
+                bytes += result.bytes;
+                if (result.error != null) ++failed;
+                for (java.util.Map.Entry<String,Long> e : result.counters.entrySet())
+                {
+                    Long sum = totals.get(e.getKey());
+                    long value = (sum == null)? 0L : sum.longValue();
+                    totals.put(e.getKey(),value + e.getValue().longValue());
+                }
+            }
+
+            String total = String.format("%d passes, %d failed, %.1f MB in %.1f seconds, %.2f MB/s",
+                    results.size(), failed, bytes / (1024.0 * 1024.0),
+                    millis / 1000.0, rate(bytes,millis));
+            out.println();
+            out.println(total);
+            out.println();
+            for (java.util.Map.Entry<String,Long> e : totals.entrySet())
+            {
+                out.println(e.getKey() + "=" + e.getValue());
+            }
+            System.out.println(total);
+        }
+        finally
+        {
+            out.close();
+        }
+        return failed;
+    }
+
+    private static String summary(PassResult result)
+    {
+        String line = String.format("%s: %.1f MB in %.1f seconds, %.2f MB/s",
+                result.file.getName(), result.bytes / (1024.0 * 1024.0),
+                result.millis / 1000.0, rate(result.bytes,result.millis));
+        if (result.error != null) line += ", FAILED " + result.error;
+        return line;
+    }
+
+    private static double rate(long bytes, long millis)
+    {
+        return (bytes / (1024.0 * 1024.0)) / (Math.max(1L,millis) / 1000.0);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.clients;
+import gov.nasa.gsfc.drl.rtstps.core.output.RingReader;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This program reads the records an RT-STPS ring device publishes and
+ * writes them to a file, or just counts them. It stops when the writer
+ * closes the ring. It is a sample ring consumer and a way to check one.
+ * <p>
+ * Arguments: ringFile [outputFile]
+ * <br>-Doverrun=oldest -- oldest, newest, or fail.
+ * <br>-DfromOldest=false -- start with the oldest record in the ring.
+ *
+ */
+public class RingDrain
+{
+    public static final void main(String[] args)
+    {
+        if (args.length < 1)
+        {
+            System.err.println("Options: [-Doverrun=oldest|newest|fail] [-DfromOldest=false]");
+            System.err.println("Arguments: ringFile [outputFile]");
+            System.exit(1);
+        }
+
+        String overrun = System.getProperty("overrun","oldest");
+        int policy = RingReader.SKIP_TO_OLDEST;
+        if (overrun.equals("newest")) policy = RingReader.SKIP_TO_NEWEST;
+        else if (overrun.equals("fail")) policy = RingReader.FAIL;
+        boolean fromOldest = Boolean.getBoolean("fromOldest");
+
+        try
+        {
+            RingReader reader = new RingReader(new File(args[0]),policy,fromOldest);
+            FileChannel out = null;
+            if (args.length > 1)
+            {
+                out = new FileOutputStream(args[1]).getChannel();
+            }
+
+            long bytes = 0L;
+            long invalid = 0L;
+            ByteBuffer record;
+            while ((record = reader.next(0L)) != null)
+            {
+                bytes += record.remaining();
+                if (out != null)
+                {
+                    while (record.hasRemaining())
+                    {
+                        out.write(record);
+                    }
+                }
+                if (!reader.isValid()) ++invalid;
+            }
+            if (out != null) out.close();
+            reader.close();
+
+            System.out.println("records=" + reader.getRecords() + " bytes=" + bytes +
+                    " lost=" + reader.getLostRecords() + " overruns=" +
+                    reader.getOverruns() + " overwritten while read=" + invalid +
+                    " restarts=" + reader.getRestarts());
+        }
+        catch (Exception e)
+        {
+            System.err.println(e);
+            System.exit(2);
+        }
+    }
+}
@@ -4,107 +4,97 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.clients.spooler;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class contains a block of data. It's the way SocketReader sends
- * data to SocketWriter.
- * 
+ * data to SocketWriter. The data is in a direct buffer, so the sockets read
+ * into it and write from it without a copy.
+ *
  */
 final class Block
 {
-    private static int blockSize = 2048;
-    private byte[] data;
+    private final ByteBuffer buffer;
     private int length = 0;
-    private boolean empty = true;
-    private boolean toggle = false;
 
     /**
-     * Get the block size in bytes.
+     * The ring sequence number of the data in this block.
      */
-    static int getBlockSize()
-    {
-        return blockSize;
-    }
+    private long sequence = -1L;
 
     /**
-     * Set the block size. Use this once only before configuration.
+     * The number of socket writers that still have to send this block.
      */
-    static void setBlockSize(int size)
+    private final AtomicInteger references = new AtomicInteger();
+
+    /**
+     * Construct a block.
+     * @param size The block size in bytes.
+     */
+    Block(int size)
     {
-        blockSize = size;
+        buffer = ByteBuffer.allocateDirect(size);
     }
 
     /**
-     * Construct a block of the specified block size.
+     * Get the buffer for the socket reader to fill. It is cleared.
      */
-    Block()
+    final ByteBuffer getWriteBuffer()
     {
-        data = new byte[blockSize];
+        buffer.clear();
+        return buffer;
     }
 
     /**
-     * Get the data within this block.
+     * Get a view of the data in this block. Each caller gets its own
+     * view, so several writers may send the same block at once.
      */
-    final byte[] getData()
+    final ByteBuffer getData()
     {
+        ByteBuffer data = buffer.duplicate();
+        data.position(0);
+        data.limit(length);
         return data;
     }
 
     /**
-     * Mark this block as empty.
+     * Get the number of data bytes in this block.
      */
-    final void setEmpty(boolean e)
+    final int getLength()
     {
-        empty = e;
+        return length;
     }
 
-    /**
-     * Is this block empty?
-     */
-    final boolean isEmpty()
+    final long getSequence()
     {
-        return empty;
+        return sequence;
     }
 
     /**
-     * Mark this block as used.
-     * @param toggle Set the toggle flag, which has special meaning.
-     *      SocketReader uses it to tell SocketWriter to switch to
-     *      either the pipe or the file spool to get its next block.
-     * @param length The true block length, which may be shorter
-     *      than the maximum block length.
+     * The socket reader marks the block filled after it reads into it.
      */
-    void markUsed(boolean toggle, int length)
+    final void markFilled()
     {
-        this.toggle = toggle;
-        this.length = length;
-        empty = false;
+        length = buffer.position();
     }
 
     /**
-     * Is the toggle flag on or off?
+     * The ring numbers the block when the reader publishes it.
+     * @param references The number of writers that will send it.
      */
-    final boolean isToggled()
+    final void markUsed(long sequence, int references)
     {
-        return toggle;
+        this.sequence = sequence;
+        this.references.set(references);
     }
 
     /**
-     * Write this block's data to the output stream.
-     * @return true if successful and false otherwise.
+     * A writer is finished with this block.
+     * @return true if it was the last one.
      */
-    boolean write(java.io.OutputStream os)
+    final boolean release()
     {
-        boolean ok = true;
-        try
-        {
-            os.write(data,0,length);
-        }
-        catch (java.io.IOException e)
-        {
-            System.err.println("write failure " + e.getMessage());
-            ok = false;
-        }
-        return ok;
+        return references.decrementAndGet() == 0;
     }
 }
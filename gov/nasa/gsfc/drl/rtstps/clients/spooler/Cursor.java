@@ -0,0 +1,260 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.clients.spooler;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is one SocketWriter's read position in the Ring, together with
+ * its spill file. The SocketReader and the writer are its only users.
+ * <p>
+ * A writer normally reads the ring. It claims each block by advancing its
+ * next sequence number. If the reader is about to reuse a ring slot the
+ * writer has not claimed yet, the reader cuts the cursor instead: it marks
+ * the next sequence number, copies the unsent ring blocks to the spill file,
+ * and from then on appends new data there. The writer sees the mark, sends
+ * the spill file, and when it has caught up, the reader moves it back to
+ * the ring at the next new block. The writer and the reader race for the
+ * next sequence number with compare-and-set, so the writer never sends a
+ * block twice or misses one.
+ *
+ */
+final class Cursor
+{
+    /**
+     * The flag in the next sequence number that says the cursor is cut.
+     */
+    private static final long CUT = Long.MIN_VALUE;
+
+    /**
+     * A waiting thread wakes up after this long even if nobody unparks it.
+     */
+    private static final long PARK_NANOS = 10000000L;
+
+    private final Ring ring;
+    private final SpillFile spill;
+    private final AtomicLong next = new AtomicLong(0L);
+
+    /**
+     * The reader's view of the cursor. It is true while the reader gives
+     * new blocks to the ring rather than to the spill file.
+     */
+    private boolean inRing = true;
+
+    private volatile Thread waiting = null;
+    private volatile long cuts = 0L;
+
+    Cursor(Ring ring, SpillFile spill)
+    {
+        this.ring = ring;
+        this.spill = spill;
+    }
+
+    /**
+     * Get the spill file.
+     */
+    final SpillFile getSpillFile()
+    {
+        return spill;
+    }
+
+    /**
+     * Get the number of times the writer fell behind the ring.
+     */
+    final long getCuts()
+    {
+        return cuts;
+    }
+
+    /**
+     * Is the writer reading its spill file?
+     */
+    final boolean isSpilling()
+    {
+        return (next.get() & CUT) != 0L;
+    }
+
+    /**
+     * Get the number of ring blocks published but not yet claimed by the
+     * writer. It is zero while the writer reads its spill file.
+     */
+    final long getRingLag()
+    {
+        long v = next.get();
+        return ((v & CUT) != 0L)? 0L : Math.max(0L,ring.getPublished() - v);
+    }
+
+    /**
+     * Get the number of spilled bytes the writer has not sent.
+     */
+    final long getSpillBacklog()
+    {
+        return spill.getWritePosition() - spill.getReadPosition();
+    }
+
+    /**
+     * Has the reader reached the end of the stream?
+     */
+    final boolean isEndOfStream()
+    {
+        return ring.isEndOfStream();
+    }
+
+    /*------------------------------------------------------------------
+     * The socket reader calls these.
+     *------------------------------------------------------------------*/
+
+    /**
+     * The reader calls this before it publishes a block. I cut the cursor if
+     * the new block would reuse a slot the writer has not claimed, and I
+     * move it back to the ring if it has caught up on the spill file.
+     * @return true if the writer reads the new block from the ring.
+     */
+    boolean prepare() throws IOException
+    {
+        long sequence = ring.getPublished();
+        if (inRing)
+        {
+            long oldest = sequence - ring.getSize();
+            long v;
+            while ((v = next.get()) <= oldest)
+            {
+                if (next.compareAndSet(v,v | CUT))
+                {
+                    cut(v,sequence);
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        if (spill.getReadPosition() == spill.getWritePosition())
+        {
+            inRing = true;
+            next.set(sequence);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * The reader calls this after prepare() returned false, before it
+     * publishes the block.
+     */
+    void spill(Block block) throws IOException
+    {
+        spill.append(block.getData());
+    }
+
+    /**
+     * The reader calls this after it publishes a block and at the end of the
+     * stream.
+     */
+    void wake()
+    {
+        Thread t = waiting;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    /**
+     * Move the unclaimed ring blocks to the spill file.
+     * @param from The first unclaimed block.
+     * @param to The first block not yet published.
+     */
+    private void cut(long from, long to) throws IOException
+    {
+        inRing = false;
+        ++cuts;
+        for (long s = from; s < to; s++)
+        {
+            Block block = ring.get(s);
+            spill.append(block.getData());
+            ring.release(block);
+        }
+    }
+
+    /*------------------------------------------------------------------
+     * The socket writer calls these.
+     *------------------------------------------------------------------*/
+
+    /**
+     * Get the next data to send. It is either a ring block or a view of the
+     * spill file. The writer must call done() after it sends it.
+     * @return null at the end of the stream.
+     */
+    Chunk take() throws InterruptedException
+    {
+        while (true)
+        {
+            long v = next.get();
+            if ((v & CUT) != 0L)
+            {
+                ByteBuffer data = spill.read();
+                if (data != null) return new Chunk(null,data);
+                if (ring.isEndOfStream() && (next.get() == v) &&
+                        (spill.read() == null))
+                {
+                    return null;
+                }
+            }
+            else
+            {
+                boolean eos = ring.isEndOfStream();
+                if (v < ring.getPublished())
+                {
+                    Block block = ring.get(v);
+                    if ((block.getSequence() == v) && next.compareAndSet(v,v + 1L))
+                    {
+                        return new Chunk(block,block.getData());
+                    }
+                    continue;
+                }
+                if (eos) return null;
+            }
+            park();
+        }
+    }
+
+    /**
+     * The writer has sent a chunk.
+     */
+    void done(Chunk chunk, int bytes)
+    {
+        if (chunk.block != null)
+        {
+            ring.release(chunk.block);
+        }
+        else
+        {
+            spill.advance(bytes);
+        }
+    }
+
+    private void park() throws InterruptedException
+    {
+        waiting = Thread.currentThread();
+        LockSupport.parkNanos(this,PARK_NANOS);
+        waiting = null;
+        if (Thread.interrupted()) throw new InterruptedException();
+    }
+
+    /**
+     * Data to send. The block is null if the data comes from the spill file.
+     */
+    static final class Chunk
+    {
+        final Block block;
+        final ByteBuffer data;
+
+        Chunk(Block block, ByteBuffer data)
+        {
+            this.block = block;
+            this.data = data;
+        }
+    }
+}
@@ -6,36 +6,78 @@ All rights reserved.
 package gov.nasa.gsfc.drl.rtstps.clients.spooler;
 import java.io.File;
 import java.io.IOException;
-import java.net.ServerSocket;
-import java.net.Socket;
-import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.text.DateFormat;
+import java.util.concurrent.Semaphore;
 
 /**
- * 
+ * The spooler accepts one data source at a time and relays its data to one
+ * or more output sockets. It never holds up the source. Each destination has
+ * its own cursor in a shared ring and its own spill file. When a destination
+ * falls behind or disconnects, the spooler spools its data to the spill file
+ * and sends it from there, and the other destinations do not notice.
+ * <p>
+ * When the source disconnects, its session drains in the background: the
+ * writers keep sending what the ring and spill files still hold, and I
+ * accept the next source at once. At most maxDraining old sessions drain at
+ * the same time; if that many are still draining, the next source waits.
+ * <p>
+ * Arguments: &lt;inputPort&gt; &lt;host&gt; &lt;outputPort&gt; [&lt;host&gt; &lt;outputPort&gt; ...]
+ * <p>
+ * Options:
+ * <br>-DblockSizeKb=64 -- the size of each socket read.
+ * <br>-DringBlocks=64 -- the number of blocks in the memory ring.
+ * <br>-DspillSegmentMb=16 -- the spill file grows by this much.
+ * <br>-DspillDirectory=dir -- where the spill file goes. The default is the
+ *          system temp directory.
+ * <br>-DretrySeconds=5 -- how often a writer tries to reconnect.
+ * <br>-DgiveUpMinutes=60 -- how long after the input ends a disconnected
+ *          writer keeps trying before it drops its backlog.
+ * <br>-DreportSeconds=10 -- how often I report each destination's lag and
+ *          spill size. Zero turns the reports off.
+ * <br>-DmaxDraining=4 -- the number of old sessions that may drain at once.
  */
 final class Main
 {
     public static void main(String[] args)
     {
-        final int blocksize = 2048;
-        final int fileblocks = 100;
-        final int pipeblocks = 32;
-        final File tempFileDirectory = null;
+        final int blocksize = Integer.getInteger("blockSizeKb",64).intValue() * 1024;
+        final int ringblocks = Integer.getInteger("ringBlocks",64).intValue();
+        final int segmentsize = Integer.getInteger("spillSegmentMb",16).intValue() * 1024 * 1024;
+        String spillDirectory = System.getProperty("spillDirectory");
+        final File tempFileDirectory = (spillDirectory == null)? null :
+                new File(spillDirectory);
 
-        if (args.length != 3)
+        final long retryMillis = Integer.getInteger("retrySeconds",5).intValue() * 1000L;
+        final long giveUpMillis = Integer.getInteger("giveUpMinutes",60).intValue() * 60000L;
+        final long reportMillis = Integer.getInteger("reportSeconds",10).intValue() * 1000L;
+        final int maxDraining = Math.max(1,Integer.getInteger("maxDraining",4).intValue());
+        final Semaphore draining = new Semaphore(maxDraining);
+
+        if (args.length < 3 || (args.length % 2) == 0)
         {
-            System.err.println("syntax: <inputPort> <host> <outputPort>");
+            System.err.println("syntax: <inputPort> <host> <outputPort> [<host> <outputPort> ...]");
             System.exit(1);
         }
 
-        String host = args[1];
         int rport = 0;
-        int wport = 0;
+        InetSocketAddress[] destinations = new InetSocketAddress[(args.length - 1) / 2];
         try
         {
             rport = Integer.parseInt(args[0]);
-            wport = Integer.parseInt(args[2]);
+            for (int n = 0; n < destinations.length; n++)
+            {
+                String host = args[1 + 2 * n];
+                int wport = Integer.parseInt(args[2 + 2 * n]);
+                destinations[n] = new InetSocketAddress(host,wport);
+                if (destinations[n].isUnresolved())
+                {
+                    System.err.println("Unknown host " + host);
+                    System.exit(5);
+                }
+            }
         }
         catch (NumberFormatException nfe)
         {
@@ -45,10 +87,11 @@ final class Main
 
         DateFormat dateFormat = DateFormat.getDateInstance();
 
-        ServerSocket ss = null;
+        ServerSocketChannel ss = null;
         try
         {
-            ss = new ServerSocket(rport,1);
+            ss = ServerSocketChannel.open();
+            ss.socket().bind(new InetSocketAddress(rport),1);
         }
         catch (IOException sse)
         {
@@ -63,33 +106,54 @@ final class Main
         {
             while (true)
             {
-                Socket rsocket = ss.accept();
-                Pipe pipe = new Pipe(pipeblocks,blocksize);
-                FileSpool filespool = new FileSpool(fileblocks,tempFileDirectory);
-                Signal signal = new Signal();
+                //A draining session holds a permit until its writers finish.
+                if (!draining.tryAcquire())
+                {
+                    System.out.println(maxDraining +
+                            " old sessions are still draining. I wait for one to finish.");
+                    draining.acquire();
+                }
 
-                Socket wsocket = null;
-                SocketWriter writer = null;
-                SocketReader reader = null;
+                SocketChannel rsocket = ss.accept();
+                Ring ring = new Ring(ringblocks,blocksize,destinations.length);
+                Cursor[] cursors = new Cursor[destinations.length];
+                SocketWriter[] writers = new SocketWriter[destinations.length];
+                Reporter reporter = null;
                 System.out.println("A data source connected to me. " +
                         dateFormat.format(new java.util.Date()));
 
                 try
                 {
-                    wsocket = new Socket(host,wport);
-                    writer = new SocketWriter(wsocket,signal,pipe,filespool);
-                    reader = new SocketReader(rsocket,signal,pipe,filespool);
-                    writer.start();
+                    for (int n = 0; n < destinations.length; n++)
+                    {
+                        cursors[n] = new Cursor(ring,
+                                new SpillFile(segmentsize,tempFileDirectory));
+                        writers[n] = new SocketWriter(destinations[n],cursors[n],
+                                retryMillis,giveUpMillis);
+                    }
+                    for (int n = 0; n < writers.length; n++)
+                    {
+                        writers[n].start();
+                    }
+                    if (reportMillis > 0L)
+                    {
+                        reporter = new Reporter(ring,writers,reportMillis);
+                        reporter.start();
+                    }
+                    SocketReader reader = new SocketReader(rsocket,ring,cursors);
                     //I am purposely not running the reader as a new thread.
                     reader.run();
-                }
-                catch (UnknownHostException uhe)
-                {
-                    System.err.println("Unknown host " + host);
-                    System.exit(5);
+                    drain(writers,reporter,draining);
                 }
                 catch (IOException e)
                 {
+                    draining.release();
+                    if (reporter != null) reporter.interrupt();
+                    for (int n = 0; n < cursors.length; n++)
+                    {
+                        if (writers[n] != null) writers[n].interrupt();
+                        else if (cursors[n] != null) cursors[n].getSpillFile().close();
+                    }
                     try { rsocket.close(); }
                     catch (IOException eee) { }
                     System.err.println(e.getMessage());
@@ -98,10 +162,55 @@ final class Main
                         dateFormat.format(new java.util.Date()));
             }
         }
+        catch (InterruptedException ie)
+        {
+        }
         catch (IOException rse)
         {
             rse.printStackTrace();
             System.exit(4);
         }
     }
+
+    /**
+     * Wait in the background for a session's writers to send everything
+     * they still hold, and then report on each destination. It releases
+     * the session's draining permit when it is done.
+     */
+    private static void drain(final SocketWriter[] writers,
+            final Reporter reporter, final Semaphore draining)
+    {
+        Thread drainer = new Thread("spooler drain")
+        {
+            public void run()
+            {
+                try
+                {
+                    for (int n = 0; n < writers.length; n++)
+                    {
+                        writers[n].join();
+                    }
+                    if (reporter != null) reporter.interrupt();
+                    for (int n = 0; n < writers.length; n++)
+                    {
+                        SocketWriter w = writers[n];
+                        Cursor c = w.getCursor();
+                        System.out.println(w.getAddress() + ": sent " + w.getBytesSent() +
+                                " bytes, discarded " + w.getBytesDiscarded() +
+                                ", fell behind " + c.getCuts() +
+                                " times, spill file grew to " +
+                                c.getSpillFile().getFileSize() + " bytes.");
+                    }
+                }
+                catch (InterruptedException ie)
+                {
+                }
+                finally
+                {
+                    draining.release();
+                }
+            }
+        };
+        drainer.start();
+    }
 }
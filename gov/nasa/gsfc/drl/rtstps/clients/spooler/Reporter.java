@@ -0,0 +1,73 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.clients.spooler;
+
+/**
+ * This thread periodically reports each destination's progress: whether it
+ * is connected, how many ring blocks it lags, and how much data waits for it
+ * in its spill file. I keep reporting after the input ends, while the
+ * writers drain the session, until every writer has finished.
+ *
+ */
+final class Reporter extends Thread
+{
+    private final Ring ring;
+    private final SocketWriter[] writers;
+    private final long intervalMillis;
+
+    Reporter(Ring ring, SocketWriter[] writers, long intervalMillis)
+    {
+        super("spooler reporter");
+        setDaemon(true);
+        this.ring = ring;
+        this.writers = writers;
+        this.intervalMillis = intervalMillis;
+    }
+
+    public void run()
+    {
+        long[] lastSent = new long[writers.length];
+        double seconds = intervalMillis / 1000.0;
+
+        try
+        {
+            while (isDraining())
+            {
+                Thread.sleep(intervalMillis);
+                for (int n = 0; n < writers.length; n++)
+                {
+                    SocketWriter w = writers[n];
+                    Cursor c = w.getCursor();
+                    long sent = w.getBytesSent();
+                    System.out.println(String.format(
+                            "%s %s: %.2f MB/s, ring lag %d of %d blocks, spill %d bytes queued in a %d byte file, %d cuts",
+                            w.getAddress(),
+                            w.isConnected()? "connected" : "DISCONNECTED",
+                            (sent - lastSent[n]) / (1024.0 * 1024.0) / seconds,
+                            c.getRingLag(), ring.getSize(),
+                            c.getSpillBacklog(), c.getSpillFile().getFileSize(),
+                            c.getCuts()));
+                    lastSent[n] = sent;
+                }
+            }
+        }
+        catch (InterruptedException ie)
+        {
+        }
+    }
+
+    /**
+     * Is any writer still sending?
+     */
+    private boolean isDraining()
+    {
+        for (int n = 0; n < writers.length; n++)
+        {
+            if (writers[n].isAlive()) return true;
+        }
+        return false;
+    }
+}
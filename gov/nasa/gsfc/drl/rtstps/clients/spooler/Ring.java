@@ -0,0 +1,122 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.clients.spooler;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * SocketReader uses this ring of Blocks to send data to the SocketWriters.
+ * Only the socket reader writes into it. It numbers the blocks it publishes,
+ * and each writer follows with its own Cursor. Nothing here takes a lock.
+ * <p>
+ * A block is recycled when every writer that was reading the ring when it
+ * was published has sent it. The pool holds enough blocks for a full ring,
+ * one block in flight per writer, and the one being filled, so the reader
+ * never waits for a block. A writer that would hold up the ring is moved to
+ * its spill file instead.
+ *
+ */
+final class Ring
+{
+    private final Block[] slots;
+    private final int blockSize;
+    private final ConcurrentLinkedQueue<Block> pool = new ConcurrentLinkedQueue<Block>();
+
+    /**
+     * The sequence number of the next block to be published. Writing it
+     * publishes the slot written just before.
+     */
+    private volatile long published = 0L;
+    private volatile boolean eos = false;
+
+    /**
+     * Create a ring.
+     * @param blockCount The number of blocks in the ring.
+     * @param blockSize The size of each block in bytes.
+     * @param writers The number of socket writers.
+     */
+    Ring(int blockCount, int blockSize, int writers)
+    {
+        this.blockSize = blockSize;
+        slots = new Block[blockCount];
+        int poolSize = blockCount + writers + 1;
+        for (int n = 0; n < poolSize; n++)
+        {
+            pool.add(new Block(blockSize));
+        }
+    }
+
+    /**
+     * Get the number of blocks in the ring.
+     */
+    final int getSize()
+    {
+        return slots.length;
+    }
+
+    /**
+     * Get the sequence number of the next block to be published.
+     */
+    final long getPublished()
+    {
+        return published;
+    }
+
+    /**
+     * Mark end-of-stream. SocketReader tells the SocketWriters that
+     * no more data will follow.
+     */
+    final void setEndOfStream()
+    {
+        eos = true;
+    }
+
+    /**
+     * Is this the end of stream?
+     */
+    final boolean isEndOfStream()
+    {
+        return eos;
+    }
+
+    /**
+     * The reader gets a free block to fill.
+     */
+    Block getFreeBlock()
+    {
+        Block block = pool.poll();
+        return (block != null)? block : new Block(blockSize);
+    }
+
+    /**
+     * The reader puts a filled block into the ring.
+     * @param references The number of writers that will send it.
+     */
+    void publish(Block block, int references)
+    {
+        long sequence = published;
+        block.markUsed(sequence,references);
+        slots[(int)(sequence % slots.length)] = block;
+        published = sequence + 1L;
+        if (references == 0) pool.add(block);
+    }
+
+    /**
+     * Get the block with a sequence number. A writer must have seen that
+     * the block is published, and it must check the block's sequence.
+     */
+    final Block get(long sequence)
+    {
+        return slots[(int)(sequence % slots.length)];
+    }
+
+    /**
+     * A writer is finished with a block.
+     */
+    void release(Block block)
+    {
+        if (block.release()) pool.add(block);
+    }
+}
@@ -4,105 +4,78 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.clients.spooler;
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.Socket;
+import java.nio.channels.SocketChannel;
 
 /**
- * This class reads data from a socket.
- * 
+ * This class reads data from a socket. It reads each block straight into a
+ * ring block and publishes it to the ring. A writer that cannot keep up
+ * gets the data in its spill file instead, so the reader never waits for a
+ * writer.
+ *
  */
 final class SocketReader extends Thread
 {
-    private Signal signal;
-    private Socket socket;
-    private Pipe pipe;
-    private FileSpool file;
-    private InputStream istream;
+    private SocketChannel channel;
+    private Ring ring;
+    private Cursor[] cursors;
 
-    SocketReader(Socket socket, Signal signal, Pipe pipe, FileSpool file)
-            throws IOException
+    SocketReader(SocketChannel channel, Ring ring, Cursor[] cursors)
     {
-        this.signal = signal;
-        this.socket = socket;
-        this.pipe = pipe;
-        this.file = file;
-        istream = socket.getInputStream();
-        int blockSize = Block.getBlockSize();
-        istream = new BufferedInputStream(istream,blockSize);
+        this.channel = channel;
+        this.ring = ring;
+        this.cursors = cursors;
     }
 
     public void run()
     {
-        boolean usingPipe = true;
-        byte[] data = pipe.getWriteBuffer();
+        Block block = null;
 
         while (true)
         {
+            if (block == null) block = ring.getFreeBlock();
             int bytes = 0;
             try
             {
-                bytes = istream.read(data);
+                bytes = channel.read(block.getWriteBuffer());
             }
             catch (IOException ioe1)
             {
-                pipe.setEndOfStream(true);
-                signal.send();
                 System.err.println("Socket read error "+ ioe1.getMessage());
                 break;
-
-            }
-            if (signal.isTerminated())
-            {
-                System.err.println("Writer terminated probably because of IO exception.");
-                break;
             }
 
-            if (bytes <= 0)
-            {
-                pipe.setEndOfStream(true);
-                signal.send();
-                break;
-            }
+            if (bytes < 0) break;
+            if (bytes == 0) continue;
+            block.markFilled();
 
-            if (usingPipe)
-            {
-                boolean toggle = pipe.putWriteBuffer(bytes);
-                usingPipe = !toggle;
-                signal.send();
-            }
-            else
+            try
             {
-                usingPipe = pipe.isEmpty();
-                try
+                int references = 0;
+                for (int n = 0; n < cursors.length; n++)
                 {
-                    file.putWriteBuffer(bytes,usingPipe);
-                    signal.send();
+                    if (cursors[n].prepare()) ++references;
+                    else cursors[n].spill(block);
                 }
-                catch (IOException ioe2)
+                ring.publish(block,references);
+                block = null;
+                for (int n = 0; n < cursors.length; n++)
                 {
-                    System.err.println("File write error "+ ioe2.getMessage());
-                    pipe.setEndOfStream(true);
-                    signal.send();
-                    break;
+                    cursors[n].wake();
                 }
             }
-
-            if (usingPipe)
-            {
-                data = pipe.getWriteBuffer();
-            }
-            else
+            catch (IOException ioe2)
             {
-                data = file.getWriteBuffer();
+                System.err.println("File write error "+ ioe2.getMessage());
+                break;
             }
-
-            yield();
         }
 
-        try { istream.close(); } catch (IOException e001) { e001.printStackTrace(); }
-        try { socket.close(); } catch (IOException e002) { e002.printStackTrace(); }
-        try { file.closeWriter(); } catch (IOException e003) { e003.printStackTrace(); }
+        ring.setEndOfStream();
+        for (int n = 0; n < cursors.length; n++)
+        {
+            cursors[n].wake();
+        }
+        try { channel.close(); } catch (IOException e002) { e002.printStackTrace(); }
     }
 }
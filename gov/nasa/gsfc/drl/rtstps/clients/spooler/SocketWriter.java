@@ -4,98 +4,184 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.clients.spooler;
-import java.io.BufferedOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
 
 /**
- * This class writes data to a socket.
- * 
+ * This class writes data to one destination socket. It follows its cursor
+ * through the ring or the spill file and writes each chunk straight from the
+ * ring block or the file mapping.
+ * <p>
+ * If the destination is not there or the connection breaks, I keep trying
+ * to connect. Meanwhile my cursor falls behind and the data piles up in my
+ * spill file, and the other destinations do not notice. When I connect again,
+ * I send the backlog. If the input ends while I am disconnected, I keep
+ * trying for the give-up time after the end, and then I discard the rest of
+ * the backlog and report how much I dropped.
+ *
  */
 final class SocketWriter extends Thread
 {
-    private Signal signal;
-    private Pipe pipe;
-    private FileSpool file;
-    private OutputStream ostream;
-    private Socket socket;
+    private final InetSocketAddress address;
+    private final Cursor cursor;
+    private final long retryMillis;
+    private final long giveUpMillis;
+    private SocketChannel channel = null;
 
-    SocketWriter(Socket socket, Signal signal, Pipe pipe, FileSpool file)
-            throws IOException
+    private volatile boolean connected = false;
+    private volatile long bytesSent = 0L;
+    private volatile long bytesDiscarded = 0L;
+    private volatile int connections = 0;
+
+    /**
+     * Create a socket writer.
+     * @param address The destination.
+     * @param cursor My read position in the ring.
+     * @param retryMillis How long I wait between connection attempts.
+     * @param giveUpMillis How long after the input ends I keep trying to
+     *          connect before I discard the backlog.
+     */
+    SocketWriter(InetSocketAddress address, Cursor cursor, long retryMillis,
+            long giveUpMillis)
+    {
+        super("spooler " + address);
+        this.address = address;
+        this.cursor = cursor;
+        this.retryMillis = retryMillis;
+        this.giveUpMillis = giveUpMillis;
+    }
+
+    final InetSocketAddress getAddress()
+    {
+        return address;
+    }
+
+    final Cursor getCursor()
+    {
+        return cursor;
+    }
+
+    final boolean isConnected()
+    {
+        return connected;
+    }
+
+    final long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    final long getBytesDiscarded()
     {
-        this.socket = socket;
-        this.signal = signal;
-        this.pipe = pipe;
-        this.file = file;
-        ostream = socket.getOutputStream();
-        int blockSize = Block.getBlockSize();
-        ostream = new BufferedOutputStream(ostream,blockSize);
+        return bytesDiscarded;
+    }
+
+    /**
+     * Get the number of times I connected to the destination.
+     */
+    final int getConnections()
+    {
+        return connections;
     }
 
     public void run()
     {
-        boolean usingPipe = true;
-        Block block = null;
         boolean ok = true;  //When false, I discard output.
 
-        while (true)
+        try
         {
-            if (usingPipe)
+            ok = connect();
+            while (true)
             {
-                block = pipe.read();
-                if (block == null)
+                Cursor.Chunk chunk = cursor.take();
+                if (chunk == null) break;
+
+                ByteBuffer data = chunk.data;
+                int length = data.remaining();
+                while (ok && data.hasRemaining())
                 {
-                    if (pipe.isEndOfStream()) break;
+                    if (channel == null) ok = connect();
+                    if (!ok) break;
                     try
                     {
-                        signal.receive();
-                        continue;
+                        bytesSent += channel.write(data);
                     }
-                    catch (InterruptedException pie)
+                    catch (IOException ioe)
                     {
-                        break;
+                        System.err.println("write failure " + address + " " +
+                                ioe.getMessage());
+                        disconnect();
                     }
                 }
-                if (ok) ok = block.write(ostream);
-                usingPipe = !block.isToggled();
-                pipe.release();
+                if (!ok) bytesDiscarded += data.remaining();
+                cursor.done(chunk,length);
             }
-            else
+        }
+        catch (InterruptedException pie)
+        {
+        }
+
+        disconnect();
+        cursor.getSpillFile().close();
+        if (bytesDiscarded > 0L)
+        {
+            System.err.println("I dropped " + bytesDiscarded + " bytes for " +
+                    address + ".");
+        }
+        System.out.println("I disconnected my output socket " + address + ".");
+    }
+
+    /**
+     * Connect to the destination. I keep trying until I connect or the
+     * give-up time after the end of the input has passed.
+     * @return false if I gave up.
+     */
+    private boolean connect() throws InterruptedException
+    {
+        boolean reported = false;
+        long giveUp = Long.MAX_VALUE;
+        while (true)
+        {
+            if (cursor.isEndOfStream() && giveUp == Long.MAX_VALUE)
             {
-                try
+                giveUp = System.currentTimeMillis() + giveUpMillis;
+            }
+            boolean last = System.currentTimeMillis() >= giveUp;
+            try
+            {
+                channel = SocketChannel.open(address);
+                connected = true;
+                if (connections++ > 0)
                 {
-                    block = file.read();
-                    if (block == null)
-                    {
-                        if (pipe.isEndOfStream()) break;
-                        try
-                        {
-                            signal.receive();
-                            continue;
-                        }
-                        catch (InterruptedException pie)
-                        {
-                            break;
-                        }
-                    }
-                    if (ok) ok = block.write(ostream);
-                    usingPipe = block.isToggled();
+                    System.out.println("I reconnected to " + address + ".");
                 }
-                catch (IOException e)
+                return true;
+            }
+            catch (IOException ioe)
+            {
+                if (!reported)
                 {
-                    e.printStackTrace();
+                    System.err.println("Could not connect to " + address + " " +
+                            ioe.getMessage() + ". I will keep trying.");
+                    reported = true;
                 }
             }
-
-            //yield();
+            if (last)
+            {
+                System.err.println("I gave up on " + address + ".");
+                return false;
+            }
+            Thread.sleep(retryMillis);
         }
+    }
 
-        signal.terminate();
-        try { ostream.flush(); } catch (IOException ec) { ec.printStackTrace(); }
-        try { ostream.close(); } catch (IOException ec) { ec.printStackTrace(); }
-        try { socket.close(); } catch (IOException ec) { ec.printStackTrace(); }
-        try { file.closeReader(); } catch (IOException ec) { ec.printStackTrace(); }
-        System.out.println("I disconnected my output socket.");
+    private void disconnect()
+    {
+        connected = false;
+        if (channel == null) return;
+        try { channel.close(); } catch (IOException ec) { ec.printStackTrace(); }
+        channel = null;
     }
 }
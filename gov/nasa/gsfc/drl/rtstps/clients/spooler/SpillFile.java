@@ -0,0 +1,205 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.clients.spooler;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A memory-mapped file fifo. The socket reader appends the data a writer
+ * could not take from the ring, and that writer sends it straight from the
+ * mapping to its socket, so the spilled data is copied only once.
+ * <p>
+ * The spill is a byte stream. Stream positions map to fixed-size segments
+ * of the file. When the writer has sent a whole segment, the reader reuses
+ * it for a later part of the stream, so the file only grows as far as the
+ * largest backlog.
+ * <p>
+ * Only the socket reader appends and only one writer reads, so the two
+ * positions are the only shared state, and nothing takes a lock.
+ *
+ */
+final class SpillFile
+{
+    /**
+     * One segment of the stream and the file region that holds it.
+     */
+    private static final class Segment
+    {
+        final int region;
+        final MappedByteBuffer map;
+
+        Segment(int region, MappedByteBuffer map)
+        {
+            this.region = region;
+            this.map = map;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final int segmentSize;
+
+    /** The mapped file regions, by region number. Only the reader uses it. */
+    private final ArrayList<MappedByteBuffer> regions = new ArrayList<MappedByteBuffer>();
+
+    /** Regions the writer has finished with. */
+    private final ConcurrentLinkedQueue<Integer> freeRegions = new ConcurrentLinkedQueue<Integer>();
+
+    /** The stream segments that hold unsent data, by segment number. */
+    private final ConcurrentHashMap<Long,Segment> segments = new ConcurrentHashMap<Long,Segment>();
+
+    private volatile long writePosition = 0L;
+    private volatile long readPosition = 0L;
+    private volatile long fileSize = 0L;
+
+    /**
+     * Create a spill file.
+     * @param segmentSize The segment size in bytes.
+     * @param tempFileDirectory Where the file resides. If null, it
+     *          uses the system default temp directory.
+     */
+    SpillFile(int segmentSize, File tempFileDirectory) throws IOException
+    {
+        this.segmentSize = segmentSize;
+        file = File.createTempFile("rt-stps",null,tempFileDirectory);
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file,"rw");
+        channel = raf.getChannel();
+    }
+
+    /**
+     * Get the number of bytes appended so far.
+     */
+    final long getWritePosition()
+    {
+        return writePosition;
+    }
+
+    /**
+     * Get the number of bytes sent so far.
+     */
+    final long getReadPosition()
+    {
+        return readPosition;
+    }
+
+    /**
+     * Get the size of the spill file.
+     */
+    final long getFileSize()
+    {
+        return fileSize;
+    }
+
+    /**
+     * The socket reader appends data.
+     */
+    void append(ByteBuffer data) throws IOException
+    {
+        long position = writePosition;
+        while (data.hasRemaining())
+        {
+            long number = position / segmentSize;
+            Segment segment = segments.get(number);
+            if (segment == null)
+            {
+                segment = newSegment();
+                segments.put(number,segment);
+            }
+
+            int offset = (int)(position % segmentSize);
+            int n = Math.min(data.remaining(),segmentSize - offset);
+            ByteBuffer target = segment.map.duplicate();
+            target.position(offset);
+            ByteBuffer source = data.duplicate();
+            source.limit(source.position() + n);
+            target.put(source);
+            data.position(data.position() + n);
+            position += n;
+        }
+        writePosition = position;
+    }
+
+    /**
+     * The writer gets a view of the next unsent data. The view ends at the
+     * end of a segment, so the writer may need several views.
+     * @return null if there is no unsent data.
+     */
+    ByteBuffer read()
+    {
+        long position = readPosition;
+        long available = writePosition - position;
+        if (available <= 0L) return null;
+
+        Segment segment = segments.get(position / segmentSize);
+        int offset = (int)(position % segmentSize);
+        int n = (int)Math.min(available,(long)(segmentSize - offset));
+        ByteBuffer view = segment.map.duplicate();
+        view.position(offset);
+        view.limit(offset + n);
+        return view;
+    }
+
+    /**
+     * The writer has sent some bytes.
+     */
+    void advance(int bytes)
+    {
+        long position = readPosition;
+        long next = position + bytes;
+        long number = position / segmentSize;
+        if (next / segmentSize != number)
+        {
+            //I have finished a segment, so its region can be reused.
+            Segment segment = segments.remove(number);
+            freeRegions.add(Integer.valueOf(segment.region));
+        }
+        readPosition = next;
+    }
+
+    /**
+     * Close and delete the file. The mappings stay valid until they are
+     * garbage collected, but nobody uses them after this.
+     */
+    void close()
+    {
+        segments.clear();
+        try
+        {
+            channel.close();
+            raf.close();
+        }
+        catch (IOException ioe)
+        {
+        }
+        file.delete();
+    }
+
+    private Segment newSegment() throws IOException
+    {
+        Integer free = freeRegions.poll();
+        if (free != null)
+        {
+            int region = free.intValue();
+            return new Segment(region,regions.get(region));
+        }
+
+        int region = regions.size();
+        MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_WRITE,
+                (long)region * segmentSize,segmentSize);
+        regions.add(map);
+        fileSize = (long)regions.size() * segmentSize;
+        return new Segment(region,map);
+    }
+}
@@ -72,6 +72,7 @@ public final class AOSService extends FrameSenderNode implements FrameReceiver
         statusItemList.add(fillFrames);
         outputFrames = new LongStatusItem("Output CADUs");
         statusItemList.add(outputFrames);
+        unitCount = outputFrames;
     }
     /**
      * Set up this stps node with a configuration.
@@ -95,6 +96,7 @@ public final class AOSService extends FrameSenderNode implements FrameReceiver
         statusItemList.add(fillFrames);
         outputFrames = new LongStatusItem("Output CADUs");
         statusItemList.add(outputFrames);
+        unitCount = outputFrames;
     }
 
     /**
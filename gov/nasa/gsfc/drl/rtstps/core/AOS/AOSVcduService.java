@@ -46,6 +46,7 @@ public final class AOSVcduService extends AbstractService implements Sender,
         statusItemList = new java.util.ArrayList<StatusItem>(15);
         sequencer = new AOSSequencer(statusItemList);
         statusItemList.add(vcdus);
+        unitCount = vcdus;
     }
     /**
      * Set up this stps node with a configuration.
@@ -57,6 +58,7 @@ public final class AOSVcduService extends AbstractService implements Sender,
         vcdu = new Vcdu(element);
         vcdus = new LongStatusItem("VCDUs");
         statusItemList.add(vcdus);
+        unitCount = vcdus;
     }
 
     /**
@@ -48,6 +48,7 @@ public final class BPDUService extends AbstractService implements Sender,
 
         bpdus = new LongStatusItem("B_PDUs");
         statusItemList.add(bpdus);
+        unitCount = bpdus;
     }
 
     /**
@@ -4,11 +4,8 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core.AOS;
-import gov.nasa.gsfc.drl.rtstps.core.Receiver;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
 
-import java.util.Iterator;
-
 /**
  * StpsNodes that send packets to PacketReceivers use this class to broadcast
  * packets to more than one PacketReceiver.
@@ -17,12 +14,24 @@ import java.util.Iterator;
 public class PacketBroadcaster extends gov.nasa.gsfc.drl.rtstps.core.Broadcaster
         implements PacketReceiver
 {
+    /** My receivers, in link order. */
+    private PacketReceiver[] packetReceivers;
+
     /**
      * Create a PacketBroadcaster.
      */
     public PacketBroadcaster(String name, PacketReceiver pr1, PacketReceiver pr2)
     {
         super(name,pr1,pr2);
+        receiversChanged();
+    }
+
+    /**
+     * Rebuild my typed receiver array from the receiver list.
+     */
+    protected void receiversChanged()
+    {
+        packetReceivers = output.toArray(new PacketReceiver[output.size()]);
     }
 
     /**
@@ -30,11 +39,9 @@ public class PacketBroadcaster extends gov.nasa.gsfc.drl.rtstps.core.Broadcaster
      */
     public void putPackets(Packet[] packets) throws RtStpsException
     {
-        Iterator<Receiver> i = output.iterator();
-        while (i.hasNext())
+        for (int n = 0; n < packetReceivers.length; n++)
         {
-            PacketReceiver pr = (PacketReceiver)i.next();
-            pr.putPackets(packets);
+            packetReceivers[n].putPackets(packets);
         }
     }
 
@@ -45,11 +52,9 @@ public class PacketBroadcaster extends gov.nasa.gsfc.drl.rtstps.core.Broadcaster
     {
         if (!packet.isDeleted())
         {
-            Iterator<Receiver> i = output.iterator();
-            while (i.hasNext())
+            for (int n = 0; n < packetReceivers.length; n++)
             {
-                PacketReceiver pr = (PacketReceiver)i.next();
-                pr.putPacket(packet);
+                packetReceivers[n].putPacket(packet);
             }
         }
     }
@@ -22,6 +22,11 @@ public abstract class Broadcaster implements Receiver
     protected String name;
     protected java.util.ArrayList<Receiver> output = new java.util.ArrayList<Receiver>();	
 
+    /**
+     * Record receivers that share an encoding, or null if none do.
+     */
+    protected RecordFanOut fanOut = null;
+
     /**
      * Create a Broadcaster with an initial two target receivers.
      * @param name A name used to tag error messages.
@@ -35,6 +40,28 @@ public abstract class Broadcaster implements Receiver
         output.add(r2);
     }
 
+    /**
+     * Split my receivers into those that share records, which go to the
+     * fan-out, and the others, which a derived broadcaster calls itself.
+     * @return The others, in link order.
+     */
+    protected java.util.List<Receiver> splitReceivers()
+    {
+        java.util.List<Receiver> others = new java.util.ArrayList<Receiver>();
+        fanOut = RecordFanOut.create(output,others);
+        return others;
+    }
+
+    /**
+     * A derived broadcaster calls this whenever its receiver list changes.
+     * It is the place to rebuild a typed receiver array. Broadcasters send
+     * every unit to every receiver, so walking a typed array avoids an
+     * iterator and a cast per receiver per unit on the data path.
+     */
+    protected void receiversChanged()
+    {
+    }
+
     /**
      * Get this broacaster's name.
      */
@@ -50,6 +77,7 @@ public abstract class Broadcaster implements Receiver
     public void addReceiver(Receiver r)
     {
         output.add(r);
+        receiversChanged();
     }
 
     /**
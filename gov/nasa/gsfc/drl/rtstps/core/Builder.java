@@ -14,6 +14,7 @@ import gov.nasa.gsfc.drl.rtstps.core.ccsds.VcduService;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.path.PacketPipeline;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.path.PathService;
 import gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer;
+import gov.nasa.gsfc.drl.rtstps.core.output.ApidSplitChannel;
 import gov.nasa.gsfc.drl.rtstps.core.output.NullChannel;
 import gov.nasa.gsfc.drl.rtstps.core.output.PacketChannel;
 import gov.nasa.gsfc.drl.rtstps.core.output.PacketChannelA;
@@ -48,6 +49,30 @@ public class Builder
     private DocumentBuilder documentBuilder = null;
     private Configuration config = null;
 
+    /**
+     * Parsed setup documents by setup digest, so that reloading an
+     * unchanged setup skips the XML parse and DTD validation.
+     */
+    private SetupCache setupCache = new SetupCache(8);
+
+    /**
+     * If true, I link senders to receivers through NodeProfile timing
+     * wrappers. The "profile" system property sets the initial value.
+     */
+    private boolean profiling = Boolean.getBoolean("profile");
+
+    /**
+     * The profiles for the pipeline being built, by profiled link name.
+     */
+    private java.util.TreeMap<String,NodeProfile> profiles = null;
+    private NodeProfile.Clock profileClock = null;
+
+    /**
+     * If not null, pipelines I create write their output files here
+     * instead of into the directories named in the setup.
+     */
+    private java.io.File outputDirectory = null;
+
     public Builder() throws RtStpsException
     {
         //I create my node factory.
@@ -77,6 +102,33 @@ public class Builder
         return nodeFactory;
     }
 
+    /**
+     * Enable or disable node profiling for pipelines created after this
+     * call. A profiled pipeline contains a "profile" status block for each
+     * linked receiver node with its self and downstream execution times.
+     */
+    public final void setProfiling(boolean enable)
+    {
+        profiling = enable;
+    }
+
+    /**
+     * Is node profiling enabled?
+     */
+    public final boolean isProfiling()
+    {
+        return profiling;
+    }
+
+    /**
+     * Redirect the file output of pipelines created after this call into
+     * one directory. Null restores the directories named in the setup.
+     */
+    public final void setOutputDirectory(java.io.File directory)
+    {
+        outputDirectory = directory;
+    }
+
     /**
      * Get the last-used configuration. The builder does not change the
      * configuration until after it creates an STPS pipeline. It will be
@@ -95,6 +147,7 @@ public class Builder
 
         //I use the configuration object to store shared information.
         config = new Configuration(cid,nodeFactory);
+        startProfiles();
 
         //I do the spacecraft first so that RT-STPS nodes that need them may
         //map them immediately.
@@ -400,6 +453,7 @@ public class Builder
         linkTwoNodes("frame_sync_camss2","OUT_CAMSS2",config);
         linkTwoNodes("frame_sync_cbmss1","OUT_CBMSS1",config);
         linkTwoNodes("frame_sync_cbmss2","OUT_CBMSS2",config);
+        finishProfiles(config);
 
 
         //Link all nodes. These are all links defined by link statements.
@@ -433,20 +487,9 @@ public class Builder
             throws RtStpsException
     {
 	try{
-		//I build an XML DOM document from the loaded configuration file.
-		Document document = null;
-		try
-		{
-		    document = documentBuilder.parse(input);
-		}
-		catch (SAXException se)
-		{
-		    throw new RtStpsException(se);
-		}
-		catch (java.io.IOException ioe)
-		{
-		    throw new RtStpsException(ioe);
-		}
+		//I build an XML DOM document from the loaded configuration file,
+		//or I reuse the one I built the last time I saw the same setup.
+		Document document = setupCache.getDocument(input,getDocumentBuilder());
 
 		//The root element is the top of the document.
 		Element root = document.getDocumentElement();
@@ -461,6 +504,8 @@ public class Builder
 
 		//I use the configuration object to store shared information.
 		config = new Configuration(cid,nodeFactory);
+		config.setOutputDirectory(outputDirectory);
+		startProfiles();
 
 		 //I do the spacecraft first so that RT-STPS nodes that need them may
 		 //map them immediately.
@@ -473,6 +518,7 @@ public class Builder
 		 //It does not include special links as defined in the CADU and
 		 //Path nodes.
 		linkNodes(links,config);
+		finishProfiles(config);
 
 		 //Allow each node to finish setup. Nodes can now assume that all
 		 //other nodes have been created. Some nodes will resolve their
@@ -506,6 +552,53 @@ public class Builder
 	}
     }
 
+    /**
+     * Parse a setup without creating a pipeline, so that a caller can look
+     * at its elements first. I cache the document, so a later create with
+     * the same setup does not parse it again.
+     */
+    public final Document parse(org.xml.sax.InputSource input)
+            throws RtStpsException
+    {
+        return setupCache.getDocument(input,getDocumentBuilder());
+    }
+
+    /**
+     * Discard all cached setup documents. The next create parses its setup
+     * from scratch. You would only need this if the DTD changes on disk
+     * while the builder is alive.
+     */
+    public final void clearSetupCache()
+    {
+        setupCache.clear();
+    }
+
+    /**
+     * Get the validating document builder. I create it on first use so that
+     * the hard-coded chains, which do not read a setup, never need it.
+     */
+    private DocumentBuilder getDocumentBuilder() throws RtStpsException
+    {
+        if (documentBuilder == null)
+        {
+            DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
+            dbf.setValidating(true);
+            dbf.setIgnoringComments(true);
+            dbf.setIgnoringElementContentWhitespace(true);
+
+            try
+            {
+                documentBuilder = dbf.newDocumentBuilder();
+                documentBuilder.setErrorHandler(new MyErrorHandler());
+            }
+            catch (ParserConfigurationException pce)
+            {
+                throw new RtStpsException(pce);
+            }
+        }
+        return documentBuilder;
+    }
+
     private void populateNodeFactory() throws RtStpsException
     {
         nodeFactory.addNode(FrameSynchronizer.CLASSNAME,new FrameSynchronizer());
@@ -532,11 +625,14 @@ public class Builder
         nodeFactory.addNode("FRAME_NONE",new UnitChannel());
         nodeFactory.addNode("FRAME_BEFORE",new UnitChannelA());
         nodeFactory.addNode("FRAME_AFTER",new UnitChannelB());
+        nodeFactory.addNode(ApidSplitChannel.CLASSNAME,new ApidSplitChannel());
 
         nodeFactory.addNode(gov.nasa.gsfc.drl.rtstps.core.xstps.TerraDecoder.CLASSNAME,
                 new gov.nasa.gsfc.drl.rtstps.core.xstps.TerraDecoder());
         nodeFactory.addNode(gov.nasa.gsfc.drl.rtstps.core.xstps.pds.PdsOutput.CLASSNAME,
                 new gov.nasa.gsfc.drl.rtstps.core.xstps.pds.PdsOutput());
+        nodeFactory.addNode(gov.nasa.gsfc.drl.rtstps.core.output.packetlog.PacketLogOutput.CLASSNAME,
+                new gov.nasa.gsfc.drl.rtstps.core.output.packetlog.PacketLogOutput());
         
         nodeFactory.addNode(RDROutput.CLASSNAME, new RDROutput());
 
@@ -686,7 +782,7 @@ public class Builder
             {
                 element = (Element)list.item(p);
                 String id = element.getTagName();
-                if (id.equals("file") || id.equals("socket"))
+                if (id.equals("file") || id.equals("socket") || id.equals("ring"))
                 {
                     String utype = element.getAttribute("unitType");
                     String annotation = element.getAttribute("annotation");
@@ -740,7 +836,7 @@ public class Builder
             if (destination instanceof Receiver)
             {
                 Sender sender = (Sender)source;
-                sender.addReceiver((Receiver)destination);
+                sender.addReceiver(profiled(destination));
             }
             else
             {
@@ -787,7 +883,7 @@ public class Builder
                 if (destination instanceof Receiver)
                 {
                     Sender sender = (Sender)source;
-                    sender.addReceiver((Receiver)destination);
+                    sender.addReceiver(profiled(destination));
                 }
                 else
                 {
@@ -803,6 +899,54 @@ public class Builder
         }
     }
 
+    /**
+     * Begin a new set of profiles if profiling is enabled.
+     */
+    private void startProfiles()
+    {
+        profiles = profiling? new java.util.TreeMap<String,NodeProfile>() : null;
+        profileClock = profiling? new NodeProfile.Clock() : null;
+    }
+
+    /**
+     * Get the receiver that a sender should link to. It is the destination
+     * node itself unless profiling is enabled, in which case it is a timing
+     * wrapper around the node. All links to one node share one profile.
+     * A node whose receiver types I cannot wrap gets no profile.
+     */
+    private Receiver profiled(RtStpsNode destination)
+    {
+        Receiver receiver = (Receiver)destination;
+        if (profiles == null || !NodeProfile.canWrap(receiver)) return receiver;
+
+        NodeProfile profile = profiles.get(destination.getLinkName());
+        if (profile == null)
+        {
+            profile = new NodeProfile(destination,profileClock);
+            profiles.put(destination.getLinkName(),profile);
+        }
+        return profile.wrap(receiver);
+    }
+
+    /**
+     * Add the profiles to the configuration's nodes so that their status
+     * is reported with everyone else's. The map key is prefixed so that it
+     * does not replace the profiled node.
+     */
+    private void finishProfiles(Configuration config)
+    {
+        if (profiles == null) return;
+        java.util.TreeMap<String,RtStpsNode> stpsNodes = config.getStpsNodes();
+        Iterator<NodeProfile> i = profiles.values().iterator();
+        while (i.hasNext())
+        {
+            NodeProfile profile = i.next();
+            stpsNodes.put(NodeProfile.CLASSNAME + '.' + profile.getLinkName(),
+                    profile);
+        }
+        profiles = null;
+    }
+
     class MyErrorHandler implements org.xml.sax.ErrorHandler
     {
         /**
@@ -49,6 +49,16 @@ public final class Configuration
     /** A name for this configuration. */
     private String name;
 
+    /**
+     * If not null, file output channels write into this directory instead
+     * of the directory named in the setup. A batch driver that runs several
+     * pipelines from one setup uses it to keep their output files apart.
+     */
+    private java.io.File outputDirectory = null;
+
+    /** The shared file name time. See getCommonTimestamp. */
+    private String commonTimestamp = null;
+
 
     /**
      * Create a Configuration.
@@ -85,6 +95,39 @@ public final class Configuration
         return spacecrafts;
     }
 
+    /**
+     * Get the output directory override. It is null if file output channels
+     * should use the directories in the setup.
+     */
+    public final java.io.File getOutputDirectory()
+    {
+        return outputDirectory;
+    }
+
+    /**
+     * Set the output directory override. Builder sets it before it loads
+     * any node.
+     */
+    public final void setOutputDirectory(java.io.File directory)
+    {
+        outputDirectory = directory;
+    }
+
+    /**
+     * Get the creation time that the output nodes of this pipeline put in
+     * their file names, so that all files of one pass have the same time.
+     * The first call sets it.
+     * @param format The format of the time.
+     */
+    public final synchronized String getCommonTimestamp(java.text.DateFormat format)
+    {
+        if (commonTimestamp == null)
+        {
+            commonTimestamp = format.format(new java.util.Date());
+        }
+        return commonTimestamp;
+    }
+
     /**
      * Get a map of all RT-STPS nodes.
      */
@@ -0,0 +1,102 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core;
+import java.nio.ByteBuffer;
+
+/**
+ * This is a group of units encoded once for output, as a list of buffers
+ * that hold annotation and unit data in output order. A broadcaster gives
+ * the same record to every output channel that encodes units the same way.
+ * The broadcaster keeps one record for each group of channels and refills
+ * it for every broadcast. A record is good only until the broadcast that
+ * filled it returns, because the unit data buffers are reused after that.
+ *
+ */
+public final class EncodedRecord
+{
+    private ByteBuffer[] buffers = new ByteBuffer[16];
+    private int[] positions = new int[16];
+    private int length = 0;
+    private int units = 0;
+
+    /**
+     * Replace what this record holds.
+     * @param list The buffers, which I copy.
+     * @param length The number of buffers.
+     * @param units The number of units in the buffers.
+     */
+    public void set(ByteBuffer[] list, int length, int units)
+    {
+        if (buffers.length < length)
+        {
+            buffers = new ByteBuffer[Math.max(length,buffers.length * 2)];
+            positions = new int[buffers.length];
+        }
+        for (int n = 0; n < length; n++)
+        {
+            buffers[n] = list[n];
+            positions[n] = list[n].position();
+        }
+        this.length = length;
+        this.units = units;
+    }
+
+    /**
+     * Drop my buffers so that I do not hold unit data between broadcasts.
+     */
+    public void clear()
+    {
+        java.util.Arrays.fill(buffers,0,length,null);
+        length = 0;
+        units = 0;
+    }
+
+    /**
+     * Get the number of buffers.
+     */
+    public int getBufferCount()
+    {
+        return length;
+    }
+
+    /**
+     * Get the number of units in this record.
+     */
+    public int getUnitCount()
+    {
+        return units;
+    }
+
+    /**
+     * Move my buffers back to their start and get them. The caller may
+     * consume them, but only one writer may use them at a time.
+     * @return An array whose first getBufferCount() elements are the buffers.
+     */
+    public ByteBuffer[] getBuffers()
+    {
+        for (int n = 0; n < length; n++)
+        {
+            buffers[n].position(positions[n]);
+        }
+        return buffers;
+    }
+
+    /**
+     * Put duplicates of my buffers in an array, for a writer that runs at
+     * the same time as another. I do not use my own buffers for this, so
+     * call it before a writer starts on getBuffers().
+     * @param into An array of at least getBufferCount() elements.
+     */
+    public void getBuffers(ByteBuffer[] into)
+    {
+        for (int n = 0; n < length; n++)
+        {
+            ByteBuffer b = buffers[n].duplicate();
+            b.position(positions[n]);
+            into[n] = b;
+        }
+    }
+}
@@ -4,7 +4,6 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core;
-import java.util.Iterator;
 
 /**
  * RtStpsNodes that send frames to FrameReceivers use this class to broadcast
@@ -14,6 +13,9 @@ import java.util.Iterator;
  */
 public class FrameBroadcaster extends Broadcaster implements FrameReceiver
 {
+    /** My receivers, in link order. */
+    private FrameReceiver[] frameReceivers;
+
     /**
      * Create a FrameBroadcaster with an initial two target receivers.
      * @param name A name, which is usually the client's name, used in error
@@ -24,6 +26,17 @@ public class FrameBroadcaster extends Broadcaster implements FrameReceiver
     public FrameBroadcaster(String name, FrameReceiver fr1, FrameReceiver fr2)
     {
         super(name,fr1,fr2);
+        receiversChanged();
+    }
+
+    /**
+     * Rebuild my typed receiver array from the receiver list. Receivers
+     * that share encoded records get them from the fan-out instead.
+     */
+    protected void receiversChanged()
+    {
+        java.util.List<Receiver> others = splitReceivers();
+        frameReceivers = others.toArray(new FrameReceiver[others.size()]);
     }
 
     /**
@@ -31,11 +44,10 @@ public class FrameBroadcaster extends Broadcaster implements FrameReceiver
      */
     public void putFrames(Frame[] frames) throws RtStpsException
     {
-        Iterator<Receiver> i = output.iterator();
-        while (i.hasNext())
+        if (fanOut != null) fanOut.put(frames,frames.length);
+        for (int n = 0; n < frameReceivers.length; n++)
         {
-            FrameReceiver fr = (FrameReceiver)i.next();
-            fr.putFrames(frames);
+            frameReceivers[n].putFrames(frames);
         }
     }
 
@@ -46,11 +58,10 @@ public class FrameBroadcaster extends Broadcaster implements FrameReceiver
     {
         if (!frame.isDeleted())
         {
-            Iterator<Receiver> i = output.iterator();
-            while (i.hasNext())
+            if (fanOut != null) fanOut.put(frame);
+            for (int n = 0; n < frameReceivers.length; n++)
             {
-                FrameReceiver fr = (FrameReceiver)i.next();
-                fr.putFrame(frame);
+                frameReceivers[n].putFrame(frame);
             }
         }
     }
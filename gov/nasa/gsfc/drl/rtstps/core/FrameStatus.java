@@ -117,6 +117,7 @@ public class FrameStatus extends FrameSenderNode implements FrameReceiver,
         statusItemList.add(rsUncorrectables);
         statusItemList.add(deleted);
         statusItemList.add(passed);
+        unitCount = passed;
     }
 
     /**
@@ -0,0 +1,381 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketReceiver;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+/**
+ * This class profiles the execution time of one RT-STPS node. Builder
+ * creates it only when profiling is enabled, and it then links senders to a
+ * timing wrapper instead of directly to the node. When profiling is disabled
+ * nothing is wrapped, so there is no cost at all.
+ * <p>
+ * Each wrapper reads System.nanoTime before and after it passes units on.
+ * That elapsed time includes every node downstream. The profiles in one
+ * pipeline share a Clock, which lets a profile subtract the time its
+ * downstream nodes reported and keep self time and downstream time apart.
+ * A pipeline runs on one thread, so the clock needs no locking.
+ * <p>
+ * The profile is itself an RtStpsNode, so its status block appears in the
+ * viewer and server status like any other node. Its element name is
+ * "profile" and its link name is the profiled node's link name.
+ *
+ */
+public final class NodeProfile extends RtStpsNode
+{
+    public static final String CLASSNAME = "profile";
+
+    /**
+     * I refresh the derived rates after this many calls. They need
+     * divisions, which I would rather not do on every unit.
+     */
+    private static final int REFRESH_MASK = 0x0ff;
+
+    /**
+     * The time shared by all profiles in one pipeline.
+     */
+    public static final class Clock
+    {
+        /** The downstream time reported to the profile now running. */
+        private long childNanos = 0L;
+    }
+
+    private final Clock clock;
+    private long calls = 0L;
+    private long batchSelfNanos = 0L;
+
+    private LongStatusItem batches;
+    private LongStatusItem units;
+    private LongStatusItem selfNanos;
+    private LongStatusItem downstreamNanos;
+    private LongStatusItem nanosPerBatch;
+    private LongStatusItem nanosPerUnit;
+    private LongStatusItem unitsPerSecond;
+
+
+    /**
+     * Create a profile for a node.
+     * @param node The node to be profiled.
+     * @param clock The clock shared by all profiles in this pipeline.
+     */
+    public NodeProfile(RtStpsNode node, Clock clock)
+    {
+        super(CLASSNAME,node.getLinkName());
+        this.clock = clock;
+
+        batches = new LongStatusItem("Batches");
+        units = new LongStatusItem("Units");
+        selfNanos = new LongStatusItem("Self ns");
+        downstreamNanos = new LongStatusItem("Downstream ns");
+        nanosPerBatch = new LongStatusItem("Self ns per Batch");
+        nanosPerUnit = new LongStatusItem("Self ns per Unit");
+        unitsPerSecond = new LongStatusItem("Units per Second");
+
+        statusItemList = new java.util.ArrayList<StatusItem>(7);
+        statusItemList.add(batches);
+        statusItemList.add(units);
+        unitCount = units;
+        statusItemList.add(selfNanos);
+        statusItemList.add(downstreamNanos);
+        statusItemList.add(nanosPerBatch);
+        statusItemList.add(nanosPerUnit);
+        statusItemList.add(unitsPerSecond);
+    }
+
+    /**
+     * Tell if I know how to wrap a receiver's types. Do not create a profile
+     * for a node that I cannot wrap, because it would only report zeros.
+     */
+    public static boolean canWrap(Receiver node)
+    {
+        boolean f = node instanceof FrameReceiver;
+        boolean u = node instanceof UnitReceiver;
+        boolean p = node instanceof PacketReceiver;
+        return (f && !p) || (p && !f && !u);
+    }
+
+    /**
+     * Wrap a receiver node so that units sent to it are timed by this
+     * profile.
+     * @return The timing wrapper, or the node itself if I do not know how
+     *          to wrap its receiver types.
+     */
+    public Receiver wrap(Receiver node)
+    {
+        boolean f = node instanceof FrameReceiver;
+        boolean u = node instanceof UnitReceiver;
+        boolean p = node instanceof PacketReceiver;
+
+        if (f && u && !p) return new UnitLink(this,node);
+        if (f && !u && !p) return new FrameLink(this,(FrameReceiver)node);
+        if (p && !f && !u) return new PacketLink(this,(PacketReceiver)node);
+        return node;
+    }
+
+    /**
+     * The profile has no element of its own.
+     */
+    public void load(org.w3c.dom.Element element, Configuration configuration)
+            throws RtStpsException
+    {
+    }
+
+    /**
+     * The profile needs no setup.
+     */
+    public void finishSetup(Configuration configuration) throws RtStpsException
+    {
+    }
+
+    /**
+     * A wrapper calls this just before it passes units on.
+     * @return The outer downstream time, which the wrapper gives back
+     *          to exit().
+     */
+    final long enter()
+    {
+        long outer = clock.childNanos;
+        clock.childNanos = 0L;
+        return outer;
+    }
+
+    /**
+     * A wrapper calls this when the node returns.
+     * @param start System.nanoTime from just before the call.
+     * @param outer The value enter() returned.
+     * @param count The number of units in the call.
+     * @param batch True if the call was a batch (array) call.
+     */
+    final void exit(long start, long outer, int count, boolean batch)
+    {
+        long now = System.nanoTime();
+        long elapsed = now - start;
+        long downstream = clock.childNanos;
+        long self = elapsed - downstream;
+        clock.childNanos = outer + elapsed;
+
+        selfNanos.value += self;
+        downstreamNanos.value += downstream;
+        units.value += count;
+        if (batch)
+        {
+            ++batches.value;
+            batchSelfNanos += self;
+        }
+
+        if ((++calls & REFRESH_MASK) == 0L) refresh();
+    }
+
+    /**
+     * Update the derived rates. The unit rate is over the time the node and
+     * its downstream nodes were running, not the wall time, so a node that
+     * waits for input between calls does not look slow.
+     */
+    final void refresh()
+    {
+        if (batches.value > 0L)
+        {
+            nanosPerBatch.value = batchSelfNanos / batches.value;
+        }
+        if (units.value > 0L)
+        {
+            nanosPerUnit.value = selfNanos.value / units.value;
+        }
+        long active = selfNanos.value + downstreamNanos.value;
+        if (active > 0L)
+        {
+            unitsPerSecond.value = (long)(units.value * 1.0e9 / active);
+        }
+    }
+
+    /**
+     * The base class for timing wrappers.
+     */
+    private static abstract class Link implements Receiver
+    {
+        protected final NodeProfile profile;
+        private final Receiver target;
+
+        Link(NodeProfile profile, Receiver target)
+        {
+            this.profile = profile;
+            this.target = target;
+        }
+
+        public void flush() throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                target.flush();
+            }
+            finally
+            {
+                profile.exit(start,outer,0,false);
+                profile.refresh();
+            }
+        }
+
+        public String getLinkName()
+        {
+            return target.getLinkName();
+        }
+    }
+
+    private static final class FrameLink extends Link implements FrameReceiver
+    {
+        private final FrameReceiver target;
+
+        FrameLink(NodeProfile profile, FrameReceiver target)
+        {
+            super(profile,target);
+            this.target = target;
+        }
+
+        public void putFrame(Frame frame) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                target.putFrame(frame);
+            }
+            finally
+            {
+                profile.exit(start,outer,1,false);
+            }
+        }
+
+        public void putFrames(Frame[] frames) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                target.putFrames(frames);
+            }
+            finally
+            {
+                profile.exit(start,outer,frames.length,true);
+            }
+        }
+    }
+
+    /**
+     * Unit channels accept both frames and units, so this wrapper does too.
+     */
+    private static final class UnitLink extends Link
+            implements UnitReceiver, FrameReceiver
+    {
+        private final UnitReceiver unitTarget;
+        private final FrameReceiver frameTarget;
+
+        UnitLink(NodeProfile profile, Receiver target)
+        {
+            super(profile,target);
+            unitTarget = (UnitReceiver)target;
+            frameTarget = (FrameReceiver)target;
+        }
+
+        public void putUnit(Unit unit) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                unitTarget.putUnit(unit);
+            }
+            finally
+            {
+                profile.exit(start,outer,1,false);
+            }
+        }
+
+        public void putUnits(Unit[] units) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                unitTarget.putUnits(units);
+            }
+            finally
+            {
+                profile.exit(start,outer,units.length,true);
+            }
+        }
+
+        public void putFrame(Frame frame) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                frameTarget.putFrame(frame);
+            }
+            finally
+            {
+                profile.exit(start,outer,1,false);
+            }
+        }
+
+        public void putFrames(Frame[] frames) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                frameTarget.putFrames(frames);
+            }
+            finally
+            {
+                profile.exit(start,outer,frames.length,true);
+            }
+        }
+    }
+
+    private static final class PacketLink extends Link implements PacketReceiver
+    {
+        private final PacketReceiver target;
+
+        PacketLink(NodeProfile profile, PacketReceiver target)
+        {
+            super(profile,target);
+            this.target = target;
+        }
+
+        public void putPacket(Packet packet) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                target.putPacket(packet);
+            }
+            finally
+            {
+                profile.exit(start,outer,1,false);
+            }
+        }
+
+        public void putPackets(Packet[] packets) throws RtStpsException
+        {
+            long outer = profile.enter();
+            long start = System.nanoTime();
+            try
+            {
+                target.putPackets(packets);
+            }
+            finally
+            {
+                profile.exit(start,outer,packets.length,true);
+            }
+        }
+    }
+}
@@ -0,0 +1,259 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A broadcaster uses this class to serialize units once for all of its
+ * record receivers that share an encoding. The first receiver in each group
+ * encodes the units, and every receiver in the group writes that record. So
+ * adding another output with the same annotation costs a device write, not
+ * another encoding.
+ * <p>
+ * If the system property fanOutThreads is positive, the receivers of a
+ * record write it concurrently on a shared pool of that many threads, and
+ * the broadcast returns when they are all done. Otherwise the pipeline
+ * thread writes them one after another. Either way, I count the writes on
+ * the broadcaster's thread, so the receivers' status items are never
+ * changed by two threads.
+ *
+ */
+public final class RecordFanOut
+{
+    private static final int THREADS = Integer.getInteger("fanOutThreads",0).intValue();
+    private static ExecutorService pool = null;
+
+    /** Each group shares an encoding. The first member encodes. */
+    private final RecordReceiver[][] groups;
+    /** Each group has one record, which I refill for every broadcast. */
+    private final EncodedRecord[] records;
+    private final boolean[] encoded;
+    /**
+     * Duplicates of a record's buffers for every receiver but the first in
+     * a group, which write at the same time as the first on the pool.
+     */
+    private final ByteBuffer[][][] views;
+    private final Unit[] single = new Unit[1];
+    private final List<Future<Boolean>> pending = new ArrayList<Future<Boolean>>();
+    private final ExecutorService executor = getPool();
+
+    private RecordFanOut(List<RecordReceiver[]> groups)
+    {
+        this.groups = groups.toArray(new RecordReceiver[groups.size()][]);
+        records = new EncodedRecord[this.groups.length];
+        encoded = new boolean[this.groups.length];
+        views = new ByteBuffer[this.groups.length][][];
+        for (int g = 0; g < records.length; g++)
+        {
+            records[g] = new EncodedRecord();
+            views[g] = new ByteBuffer[this.groups[g].length][];
+        }
+    }
+
+    /**
+     * Create a fan-out for the receivers that can share records.
+     * @param receivers A broadcaster's receivers.
+     * @param others I put the receivers that share nothing here, in order.
+     * @return null if no two receivers share an encoding.
+     */
+    public static RecordFanOut create(List<Receiver> receivers, List<Receiver> others)
+    {
+        LinkedHashMap<Object,List<RecordReceiver>> map =
+                new LinkedHashMap<Object,List<RecordReceiver>>();
+        for (Receiver r : receivers)
+        {
+            Object encoding = (r instanceof RecordReceiver)?
+                    ((RecordReceiver)r).getEncoding() : null;
+            if (encoding == null) continue;
+            List<RecordReceiver> list = map.get(encoding);
+            if (list == null)
+            {
+                list = new ArrayList<RecordReceiver>();
+                map.put(encoding,list);
+            }
+            list.add((RecordReceiver)r);
+        }
+
+        List<RecordReceiver[]> groups = new ArrayList<RecordReceiver[]>();
+        List<Receiver> shared = new ArrayList<Receiver>();
+        for (List<RecordReceiver> list : map.values())
+        {
+            if (list.size() < 2) continue;
+            groups.add(list.toArray(new RecordReceiver[list.size()]));
+            shared.addAll(list);
+        }
+        for (Receiver r : receivers)
+        {
+            if (!shared.contains(r)) others.add(r);
+        }
+        return groups.isEmpty()? null : new RecordFanOut(groups);
+    }
+
+    /**
+     * Give one unit to every record receiver.
+     */
+    public void put(Unit unit) throws RtStpsException
+    {
+        single[0] = unit;
+        try
+        {
+            put(single,1);
+        }
+        finally
+        {
+            single[0] = null;
+        }
+    }
+
+    /**
+     * Give units to every record receiver.
+     */
+    public void put(Unit[] units, int length) throws RtStpsException
+    {
+        if (executor == null)
+        {
+            for (int g = 0; g < groups.length; g++)
+            {
+                RecordReceiver[] group = groups[g];
+                EncodedRecord record = records[g];
+                if (!group[0].encode(units,length,record)) continue;
+                try
+                {
+                    for (int n = 0; n < group.length; n++)
+                    {
+                        boolean written = group[n].writeRecord(
+                                record.getBuffers(),record.getBufferCount());
+                        group[n].countRecord(record,written);
+                    }
+                }
+                finally
+                {
+                    record.clear();
+                }
+            }
+            return;
+        }
+
+        for (int g = 0; g < groups.length; g++)
+        {
+            encoded[g] = groups[g][0].encode(units,length,records[g]);
+        }
+        RtStpsException failure = null;
+        try
+        {
+            for (int g = 0; g < groups.length; g++)
+            {
+                if (!encoded[g]) continue;
+                EncodedRecord record = records[g];
+                final int count = record.getBufferCount();
+                //I take the duplicates before the first receiver starts on
+                //the record's own buffers.
+                for (int n = 1; n < groups[g].length; n++)
+                {
+                    ByteBuffer[] view = views[g][n];
+                    if (view == null || view.length < count)
+                    {
+                        view = new ByteBuffer[Math.max(count,16)];
+                        views[g][n] = view;
+                    }
+                    record.getBuffers(view);
+                }
+                for (int n = 0; n < groups[g].length; n++)
+                {
+                    final RecordReceiver r = groups[g][n];
+                    final ByteBuffer[] buffers = (n == 0)?
+                            record.getBuffers() : views[g][n];
+                    pending.add(executor.submit(new Callable<Boolean>()
+                    {
+                        public Boolean call() throws RtStpsException
+                        {
+                            return Boolean.valueOf(r.writeRecord(buffers,count));
+                        }
+                    }));
+                }
+            }
+
+            //The unit buffers are reused after I return, so I wait for all
+            //of the writes, even if I am interrupted. I count each write
+            //here, in the order I submitted them.
+            boolean interrupted = false;
+            int k = 0;
+            for (int g = 0; g < groups.length; g++)
+            {
+                if (!encoded[g]) continue;
+                for (int n = 0; n < groups[g].length; n++)
+                {
+                    Future<Boolean> f = pending.get(k++);
+                    while (true)
+                    {
+                        try
+                        {
+                            boolean written = f.get().booleanValue();
+                            groups[g][n].countRecord(records[g],written);
+                        }
+                        catch (ExecutionException ee)
+                        {
+                            Throwable cause = ee.getCause();
+                            if (failure == null)
+                            {
+                                failure = (cause instanceof RtStpsException)?
+                                        (RtStpsException)cause :
+                                        new RtStpsException(cause.toString());
+                            }
+                        }
+                        catch (InterruptedException ie)
+                        {
+                            interrupted = true;
+                            continue;
+                        }
+                        break;
+                    }
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+        }
+        finally
+        {
+            pending.clear();
+            for (int g = 0; g < groups.length; g++)
+            {
+                records[g].clear();
+                for (int n = 1; n < views[g].length; n++)
+                {
+                    if (views[g][n] != null) java.util.Arrays.fill(views[g][n],null);
+                }
+                encoded[g] = false;
+            }
+        }
+        if (failure != null) throw failure;
+    }
+
+    private static synchronized ExecutorService getPool()
+    {
+        if (pool == null && THREADS > 0)
+        {
+            pool = Executors.newFixedThreadPool(THREADS,new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,"fan-out");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return pool;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core;
+
+/**
+ * A receiver that writes encoded units implements this interface, so a
+ * broadcaster can encode each group of units once and give the same record
+ * to every receiver with the same encoding.
+ *
+ */
+public interface RecordReceiver extends Receiver
+{
+    /**
+     * Get an object that identifies how I encode units. Receivers with
+     * equal encodings write the same bytes for the same units.
+     * @return null if I cannot share records.
+     */
+    public Object getEncoding();
+
+    /**
+     * Encode units into a record, replacing what it held.
+     * @return false if there is nothing to write.
+     */
+    public boolean encode(Unit[] units, int length, EncodedRecord record);
+
+    /**
+     * Write the buffers of a record that I or a receiver with the same
+     * encoding made. I may consume the buffers. I may be called from a
+     * thread other than the pipeline thread, but never from two threads at
+     * once, so I change no status items here.
+     * @return true if I wrote the record.
+     */
+    public boolean writeRecord(java.nio.ByteBuffer[] buffers, int length)
+            throws RtStpsException;
+
+    /**
+     * Count a record after writeRecord returns. The broadcaster calls this
+     * from its own thread.
+     * @param written What writeRecord returned.
+     */
+    public void countRecord(EncodedRecord record, boolean written);
+}
@@ -4,6 +4,7 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
 import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
 
 import java.util.Collection;
@@ -35,6 +36,12 @@ public abstract class RtStpsNode implements Cloneable
      */
     protected java.util.Collection<StatusItem> statusItemList = null;	
 
+    /**
+     * The status item that counts the units this node passes on or writes,
+     * if it has one. It is also in the statusItemList.
+     */
+    protected LongStatusItem unitCount = null;
+
 
     /**
      * A constructor.
@@ -104,6 +111,15 @@ public abstract class RtStpsNode implements Cloneable
         return statusItemList;
     }
 
+    /**
+     * Get the status item that counts the units this node passes on or
+     * writes, or null if it has none.
+     */
+    public final LongStatusItem getUnitCount()
+    {
+        return unitCount;
+    }
+
     /**
      * Clear items in the StatusItemList.
      */
@@ -0,0 +1,189 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import javax.xml.parsers.DocumentBuilder;
+
+import org.w3c.dom.Document;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+
+/**
+ * This class caches parsed and validated setup documents. Builder uses it
+ * so that reloading an unchanged setup does not parse the XML and validate
+ * it against the DTD again. The key is a digest of the setup text plus its
+ * system id, so an edited setup always misses the cache.
+ * <p>
+ * I cache the document rather than a linked node graph. Nodes clone only
+ * shallowly, and a loaded node owns status items, broadcasters, and open
+ * output streams, so a fresh pipeline must still be created and linked
+ * from the document. That part is cheap compared to parsing.
+ * <p>
+ * The cached documents are shared and must be treated as read-only. Nodes
+ * only read their elements, so this is not a restriction in practice.
+ *
+ */
+final class SetupCache
+{
+    private static final int READ_CHUNK = 8192;
+
+    /**
+     * The cache keeps the most recently used documents in access order and
+     * discards the eldest when it holds more than maxEntries.
+     */
+    private final java.util.LinkedHashMap<String,Document> documents;
+
+    private int hits = 0;
+    private int misses = 0;
+
+    /**
+     * Create a setup cache.
+     * @param maxEntries The maximum number of documents to keep.
+     */
+    SetupCache(final int maxEntries)
+    {
+        documents = new java.util.LinkedHashMap<String,Document>(16,0.75f,true)
+        {
+            protected boolean removeEldestEntry(
+                    java.util.Map.Entry<String,Document> eldest)
+            {
+                return size() > maxEntries;
+            }
+
+            private static final long serialVersionUID = 1L;
+        };
+    }
+
+    /**
+     * Get the document for a setup. If the setup text has been seen before,
+     * this returns the cached document. Otherwise it parses the setup with
+     * the document builder and caches the result.
+     * @param input The setup. It must have a character stream.
+     * @param documentBuilder The (validating) builder used on a cache miss.
+     */
+    Document getDocument(InputSource input, DocumentBuilder documentBuilder)
+            throws RtStpsException
+    {
+        Reader reader = input.getCharacterStream();
+        if (reader == null)
+        {
+            //I only know how to key a character stream, so anything else
+            //goes straight to the parser.
+            return parse(input,documentBuilder);
+        }
+
+        String text = readAll(reader);
+        String systemId = input.getSystemId();
+        String key = digest(text) + '|' + systemId;
+
+        Document document = documents.get(key);
+        if (document != null)
+        {
+            ++hits;
+            return document;
+        }
+
+        ++misses;
+        InputSource source = new InputSource(new StringReader(text));
+        source.setSystemId(systemId);
+        document = parse(source,documentBuilder);
+        documents.put(key,document);
+        return document;
+    }
+
+    /**
+     * Discard all cached documents.
+     */
+    void clear()
+    {
+        documents.clear();
+    }
+
+    /**
+     * Get the number of setups that were found in the cache.
+     */
+    int getHits()
+    {
+        return hits;
+    }
+
+    /**
+     * Get the number of setups that had to be parsed.
+     */
+    int getMisses()
+    {
+        return misses;
+    }
+
+    private Document parse(InputSource input, DocumentBuilder documentBuilder)
+            throws RtStpsException
+    {
+        try
+        {
+            return documentBuilder.parse(input);
+        }
+        catch (SAXException se)
+        {
+            throw new RtStpsException(se);
+        }
+        catch (IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+
+    private String readAll(Reader reader) throws RtStpsException
+    {
+        StringBuilder sb = new StringBuilder(READ_CHUNK);
+        char[] chunk = new char[READ_CHUNK];
+        try
+        {
+            int n;
+            while ((n = reader.read(chunk)) != -1)
+            {
+                sb.append(chunk,0,n);
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+        return sb.toString();
+    }
+
+    private String digest(String text) throws RtStpsException
+    {
+        byte[] hash;
+        try
+        {
+            MessageDigest md = MessageDigest.getInstance("SHA-1");
+            hash = md.digest(text.getBytes("UTF-8"));
+        }
+        catch (NoSuchAlgorithmException nsae)
+        {
+            throw new RtStpsException(nsae);
+        }
+        catch (java.io.UnsupportedEncodingException uee)
+        {
+            throw new RtStpsException(uee);
+        }
+
+        StringBuilder sb = new StringBuilder(hash.length * 2);
+        for (int n = 0; n < hash.length; n++)
+        {
+            int b = hash[n] & 0x0ff;
+            if (b < 0x10) sb.append('0');
+            sb.append(Integer.toHexString(b));
+        }
+        return sb.toString();
+    }
+}
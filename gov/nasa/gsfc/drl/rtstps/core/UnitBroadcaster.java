@@ -4,7 +4,6 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core;
-import java.util.Iterator;
 
 /**
  * RtStpsNodes that send units to UnitReceivers use this class to broadcast
@@ -13,12 +12,26 @@ import java.util.Iterator;
  */
 public final class UnitBroadcaster extends Broadcaster implements UnitReceiver
 {
+    /** My receivers, in link order. */
+    private UnitReceiver[] unitReceivers;
+
     /**
      * Create a UnitBroadcaster with an initial two target receivers.
      */
     public UnitBroadcaster(String name, UnitReceiver ur1, UnitReceiver ur2)
     {
         super(name,ur1,ur2);
+        receiversChanged();
+    }
+
+    /**
+     * Rebuild my typed receiver array from the receiver list. Receivers
+     * that share encoded records get them from the fan-out instead.
+     */
+    protected void receiversChanged()
+    {
+        java.util.List<Receiver> others = splitReceivers();
+        unitReceivers = others.toArray(new UnitReceiver[others.size()]);
     }
 
     /**
@@ -26,11 +39,10 @@ public final class UnitBroadcaster extends Broadcaster implements UnitReceiver
      */
     public void putUnits(Unit[] units) throws RtStpsException
     {
-        Iterator<Receiver> i = output.iterator();
-        while (i.hasNext())
+        if (fanOut != null) fanOut.put(units,units.length);
+        for (int n = 0; n < unitReceivers.length; n++)
         {
-            UnitReceiver ur = (UnitReceiver)i.next();
-            ur.putUnits(units);
+            unitReceivers[n].putUnits(units);
         }
     }
 
@@ -41,11 +53,10 @@ public final class UnitBroadcaster extends Broadcaster implements UnitReceiver
     {
         if (!unit.isDeleted())
         {
-            Iterator<Receiver> i = output.iterator();
-            while (i.hasNext())
+            if (fanOut != null) fanOut.put(unit);
+            for (int n = 0; n < unitReceivers.length; n++)
             {
-                UnitReceiver ur = (UnitReceiver)i.next();
-                ur.putUnit(unit);
+                unitReceivers[n].putUnit(unit);
             }
         }
     }
@@ -55,6 +55,7 @@ public final class BitstreamService extends AbstractService implements Sender,
 
         bpdus = new LongStatusItem("B_PDUs");
         statusItemList.add(bpdus);
+        unitCount = bpdus;
     }
 
     /**
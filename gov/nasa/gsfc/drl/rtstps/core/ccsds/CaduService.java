@@ -87,6 +87,7 @@ public final class CaduService extends FrameSenderNode implements FrameReceiver
         statusItemList.add(fillFrames);
         outputFrames = new LongStatusItem("Output CADUs");
         statusItemList.add(outputFrames);
+        unitCount = outputFrames;
     }
 
     /**
@@ -11,8 +11,16 @@ import gov.nasa.gsfc.drl.rtstps.core.Unit;
  * The software usually reuses all Packet objects, so you should not save
  * a reference to a Packet in the expectations that the contents will not
  * change.
- * 
- * 
+ * <p>
+ * The Path Service does not copy a packet that lies entirely within one
+ * frame. It gives you a view, a packet whose data is the frame's own byte
+ * array, so the packet starts at getStartOffset() and not at zero. A view
+ * is valid only until the Path Service returns from the putFrame call that
+ * made it, because the frame buffer is then reused. If you keep a packet or
+ * its bytes past your putPacket or putPackets call, call materialize()
+ * first, which copies a view into the packet's own array.
+ *
+ *
  */
 public final class Packet extends Unit implements PacketI
 {
@@ -25,6 +33,12 @@ public final class Packet extends Unit implements PacketI
      */
     private Annotation annotation = new Annotation();
 
+    /**
+     * True when data is a frame buffer that I do not own. My own array is
+     * then saved in owned.
+     */
+    private boolean view = false;
+    private byte[] owned = null;
 
 
     /**
@@ -66,13 +80,70 @@ public final class Packet extends Unit implements PacketI
      */
     public void reset(int length)
     {
+        if (view)
+        {
+            data = owned;
+            owned = null;
+            startOffset = 0;
+            view = false;
+        }
         deleted = false;
         super.length = length;
         annotation.reset();
-        if (data.length < length)
+        if (data == null || data.length < length)
         {
             data = new byte[length];
         }
+    }
+
+    /**
+     * Reset this packet so that it is a view of a packet inside a frame.
+     * I do not copy the packet; see the class description for how long a
+     * view is valid.
+     * @param frameData The frame's byte array.
+     * @param offset The index of the packet's first byte in frameData.
+     * @param length The length of the packet
+     */
+    public void setView(byte[] frameData, int offset, int length)
+    {
+        if (!view)
+        {
+            owned = data;
+            view = true;
+        }
+        data = frameData;
+        startOffset = offset;
+        deleted = false;
+        super.length = length;
+        annotation.reset();
+    }
+
+    /**
+     * Is this packet a view of a frame buffer?
+     */
+    public final boolean isView()
+    {
+        return view;
+    }
+
+    /**
+     * If this packet is a view, copy it into its own array so that it
+     * remains valid after the frame buffer is reused. The packet then starts
+     * at offset zero. It does nothing if the packet is not a view.
+     */
+    public void materialize()
+    {
+        if (!view) return;
+        byte[] copy = owned;
+        if (copy == null || copy.length < length)
+        {
+            copy = new byte[length];
+        }
+        System.arraycopy(data,startOffset,copy,0,length);
+        data = copy;
+        owned = null;
+        startOffset = 0;
+        view = false;
     }
 
     /**
@@ -4,10 +4,7 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core.ccsds;
-import gov.nasa.gsfc.drl.rtstps.core.Receiver;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
-
-import java.util.Iterator;
 
 /**
  * StpsNodes that send packets to PacketReceivers use this class to broadcast
@@ -17,12 +14,26 @@ import java.util.Iterator;
 public class PacketBroadcaster extends gov.nasa.gsfc.drl.rtstps.core.Broadcaster
         implements PacketReceiver
 {
+    /** My receivers, in link order. */
+    private PacketReceiver[] packetReceivers;
+
     /**
      * Create a PacketBroadcaster.
      */
     public PacketBroadcaster(String name, PacketReceiver pr1, PacketReceiver pr2)
     {
         super(name,pr1,pr2);
+        receiversChanged();
+    }
+
+    /**
+     * Rebuild my typed receiver array from the receiver list. Receivers
+     * that share encoded records get them from the fan-out instead.
+     */
+    protected void receiversChanged()
+    {
+        java.util.List<gov.nasa.gsfc.drl.rtstps.core.Receiver> others = splitReceivers();
+        packetReceivers = others.toArray(new PacketReceiver[others.size()]);
     }
 
     /**
@@ -30,11 +41,10 @@ public class PacketBroadcaster extends gov.nasa.gsfc.drl.rtstps.core.Broadcaster
      */
     public void putPackets(Packet[] packets) throws RtStpsException
     {
-        Iterator<Receiver> i = output.iterator();
-        while (i.hasNext())
+        if (fanOut != null) fanOut.put(packets,packets.length);
+        for (int n = 0; n < packetReceivers.length; n++)
         {
-            PacketReceiver pr = (PacketReceiver)i.next();
-            pr.putPackets(packets);
+            packetReceivers[n].putPackets(packets);
         }
     }
 
@@ -45,11 +55,10 @@ public class PacketBroadcaster extends gov.nasa.gsfc.drl.rtstps.core.Broadcaster
     {
         if (!packet.isDeleted())
         {
-            Iterator<Receiver> i = output.iterator();
-            while (i.hasNext())
+            if (fanOut != null) fanOut.put(packet);
+            for (int n = 0; n < packetReceivers.length; n++)
             {
-                PacketReceiver pr = (PacketReceiver)i.next();
-                pr.putPacket(packet);
+                packetReceivers[n].putPacket(packet);
             }
         }
     }
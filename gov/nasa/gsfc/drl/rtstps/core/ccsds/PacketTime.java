@@ -0,0 +1,128 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.ccsds;
+
+/**
+ * This class decodes CCSDS secondary header times. The PDS and RDR writers
+ * call it for every packet, so it uses only integer shifts, multiplies, and
+ * masks. Where a conversion needs a division by a constant, I multiply by a
+ * scaled reciprocal and shift instead; each reciprocal is exact for the
+ * whole range of its input.
+ * <p>
+ * CUC (unsegmented) times have coarseOctets of whole seconds followed by
+ * fineOctets of binary fraction. CDS (day segmented) times have dayOctets
+ * of day, four octets of millisecond of day, and subMilliOctets (0, 2 for
+ * microseconds, or 4 for picoseconds) of millisecond fraction. All fields are
+ * unsigned and big-endian, and the microsecond results count from the
+ * time code's own epoch.
+ *
+ */
+public final class PacketTime
+{
+    public static final long MICROS_PER_DAY = 86400000000L;
+
+    //x / 10000 == (x * DIV10000) >>> 38 for 0 <= x < 2^24.
+    private static final long DIV10000 = 27487791L;
+
+    //x / 675 == (x * DIV675) >>> 35 for 0 <= x < 2^25.
+    private static final long DIV675 = 50903317L;
+
+    //x / 10 == (x * DIV10) >>> 18 for 0 <= x < 2^14.
+    private static final long DIV10 = 26215L;
+
+    private PacketTime()
+    {
+    }
+
+    /**
+     * Read an unsigned big-endian field of up to eight octets.
+     */
+    public static long readOctets(byte[] data, int offset, int octets)
+    {
+        long v = 0L;
+        for (int n = 0; n < octets; n++)
+        {
+            v = (v << 8) | (data[offset + n] & 0x0ffL);
+        }
+        return v;
+    }
+
+    /**
+     * Decode a CUC time to microseconds. The fraction is truncated.
+     * @param coarseOctets 1 to 4 octets of seconds.
+     * @param fineOctets 0 to 4 octets of fraction.
+     */
+    public static long cucToMicros(byte[] data, int offset, int coarseOctets,
+            int fineOctets)
+    {
+        long seconds = readOctets(data,offset,coarseOctets);
+        long fine = readOctets(data,offset + coarseOctets,fineOctets);
+        return seconds * 1000000L + ((fine * 1000000L) >>> (fineOctets << 3));
+    }
+
+    /**
+     * Decode a CDS time to microseconds. Picoseconds are truncated.
+     * @param dayOctets 2 or 3 octets of day.
+     * @param subMilliOctets 0, 2 (microseconds), or 4 (picoseconds).
+     */
+    public static long cdsToMicros(byte[] data, int offset, int dayOctets,
+            int subMilliOctets)
+    {
+        long days = readOctets(data,offset,dayOctets);
+        long millis = readOctets(data,offset + dayOctets,4);
+        long micros = 0L;
+        if (subMilliOctets == 2)
+        {
+            micros = readOctets(data,offset + dayOctets + 4,2);
+        }
+        else if (subMilliOctets == 4)
+        {
+            //Picoseconds of millisecond are under 10^9, so ps / 10^6 is
+            //(ps >>> 6) / 15625 and fits a 64-bit reciprocal.
+            long ps = readOctets(data,offset + dayOctets + 4,4);
+            micros = ((ps >>> 6) * 2251799814L) >>> 45;
+        }
+        return days * MICROS_PER_DAY + millis * 1000L + micros;
+    }
+
+    /**
+     * Convert a CDS time with 16 bits of day, 32 bits of millisecond, and 16
+     * bits of microsecond, held in a long, to microseconds.
+     */
+    public static long cdsToMicros(long cds)
+    {
+        long days = (cds >>> 48) & 0x0ffffL;
+        long millis = (cds >>> 16) & 0x0ffffffffL;
+        long micros = cds & 0x0ffffL;
+        return days * MICROS_PER_DAY + millis * 1000L + micros;
+    }
+
+    /**
+     * Convert an Aqua CUC time (16 bits of p-field, 32 bits of seconds, and
+     * 16 bits of fraction) to the day-segmented form that Sorcerer writes:
+     * 16 bits of day, 32 bits of millisecond of day, and 16 bits of
+     * microsecond of millisecond. It keeps Sorcerer's historical scale of
+     * 15.2 microseconds per fine tick, so construction records do not change.
+     */
+    public static long cucToDaySegmented(long cuc)
+    {
+        long secsSinceEpoch = (cuc >>> 16) & 0x0ffffffffL;
+        long fineTime = cuc & 0x0ffffL;
+
+        //micro10 is tenths of microseconds, below 2^24.
+        long micro10 = 152L * fineTime;
+        long milliFromMicro = (micro10 * DIV10000) >>> 38;
+        long rest = micro10 - milliFromMicro * 10000L;
+        long microOfMilli = (rest * DIV10) >>> 18;
+
+        //86400 is 128 * 675.
+        long days = ((secsSinceEpoch >>> 7) * DIV675) >>> 35;
+        long secsOfDay = secsSinceEpoch - days * 86400L;
+        days &= 0x0ffffL;
+        long milliOfDay = secsOfDay * 1000L + milliFromMicro;
+        return (days << 48) | (milliOfDay << 16) | microOfMilli;
+    }
+}
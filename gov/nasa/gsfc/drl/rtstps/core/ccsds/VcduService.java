@@ -56,6 +56,7 @@ public final class VcduService extends AbstractService implements Sender,
         vcdu = new Vcdu(element);
         vcdus = new LongStatusItem("VCDUs");
         statusItemList.add(vcdus);
+        unitCount = vcdus;
     }
 
     /**
@@ -53,6 +53,33 @@ final class PacketList
         return currentPacket;
     }
 
+    /**
+     * Get the next packet from the packet list as a view of a packet that
+     * lies entirely within a frame. I do not copy the packet.
+     * @param data The frame's byte array.
+     * @param offset The index of the packet in data.
+     * @param packetLength The length of the packet.
+     * @return A complete packet
+     */
+    Packet getView(byte[] data, int offset, int packetLength)
+    {
+        ++currentPacketIndex;
+        if (packetList.size() == currentPacketIndex)
+        {
+            //A view needs no array of its own until it is reset or
+            //materialized, so I do not allocate one.
+            currentPacket = new Packet(0,null);
+            packetList.add(currentPacket);
+        }
+        else
+        {
+            currentPacket = packetList.get(currentPacketIndex);
+        }
+        currentPacket.setView(data,offset,packetLength);
+        isPartialCurrentPacket = false;
+        return currentPacket;
+    }
+
     /**
      * Mark that the current packet, which was last obtained via get(), as a
      * completed one.
@@ -76,6 +76,7 @@ public class PacketPipeline extends RtStpsNode implements PacketReceiver,
 
         statusItemList = new java.util.ArrayList<StatusItem>(7);
         statusItemList.add(packetsOut);
+        unitCount = packetsOut;
         statusItemList.add(discardedPackets);
         statusItemList.add(invalidLengthPackets);
         statusItemList.add(badLengthSample);
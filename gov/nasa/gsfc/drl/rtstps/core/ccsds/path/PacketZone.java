@@ -91,6 +91,14 @@ final class PacketZone
         return v & 0x0ffff;
     }
 
+    /**
+     * Get the current location, an index into the zone's byte array.
+     */
+    final int getIndex()
+    {
+        return index;
+    }
+
     /**
      * Advance the current location.
      */
@@ -35,6 +35,11 @@ import org.w3c.dom.Element;
  * this class to operate successfully. The packet zone must include the
  * first header pointer in the first two bytes immediately followed by packet
  * data, which excludes any trailing bytes that are not packet parts.
+ * <p>
+ * I copy only packets that span frames. A packet that lies entirely within
+ * a frame is a view of that frame's data, which is valid only until
+ * putFrame returns. (See Packet for the rules.) The zeroCopy setup
+ * attribute turns views off.
  * 
  * 
  */
@@ -75,6 +80,7 @@ public class PathService extends AbstractService implements FrameReceiver,
     private LongStatusItem createdPackets;
     private LongStatusItem discardedFragments;
     private LongStatusItem discardedFragmentByteCount;
+    private LongStatusItem viewPackets;
 
 
     /**
@@ -106,14 +112,17 @@ public class PathService extends AbstractService implements FrameReceiver,
         createdPackets = new LongStatusItem("Created Packets");
         discardedFragments = new LongStatusItem("Discarded Fragments");
         discardedFragmentByteCount = new LongStatusItem("Discarded Bytes");
+        viewPackets = new LongStatusItem("Uncopied Packets");
 
         statusItemList.add(idleVcdus);
         statusItemList.add(badFirstHeaderPointers);
         statusItemList.add(troublesomeFrames);
         statusItemList.add(createdPackets);
+        unitCount = createdPackets;
         statusItemList.add(irrationalPacketLengths);
         statusItemList.add(discardedFragments);
         statusItemList.add(discardedFragmentByteCount);
+        if (setup.zeroCopy) statusItemList.add(viewPackets);
     }
 
     /**
@@ -349,6 +358,25 @@ public class PathService extends AbstractService implements FrameReceiver,
                     bytes = 0;
                     frameTrouble = true;
                 }
+                else if (setup.zeroCopy && bytes >= packetLength)
+                {
+                    /**
+                     * The whole packet is in this frame, so I do not copy
+                     * it. The packet is a view of the frame.
+                     */
+                    Packet packet = packetList.getView(data,
+                            packetZone.getIndex(),packetLength);
+                    packet.setFrameAnnotation(frameAnnotation);
+                    if ((packet.getApplicationId() == Packet.IDLE_PACKET) &&
+                            setup.discardIdlePackets)
+                    {
+                        packet.setDeleted(true);
+                    }
+                    packetZone.advance(packetLength);
+                    bytes -= packetLength;
+                    ++viewPackets.value;
+                    state = FREE_STATE;
+                }
                 else
                 {
                     //I get a packet to fill from the packet list.
@@ -44,6 +44,14 @@ public class PathServiceSetup
      */
     public int maxRationalPacketSize = 8192;
 
+    /**
+     * If true, the Path Service does not copy a packet that lies entirely
+     * within one frame. It sends a view of the frame instead, which is valid
+     * only until it finishes with that frame. (See Packet.) It always copies
+     * packets that span frames.
+     */
+    public boolean zeroCopy = true;
+
 
     public PathServiceSetup(org.w3c.dom.Element element)
             throws RtStpsException
@@ -56,5 +64,6 @@ public class PathServiceSetup
                 "discardPacketsWithFill",discardPacketsWithFill);
         packetFill = (byte)Convert.toHexInteger(element,"fill",
                 (int)packetFill);
+        zeroCopy = Convert.toBoolean(element,"zeroCopy",zeroCopy);
     }
 }
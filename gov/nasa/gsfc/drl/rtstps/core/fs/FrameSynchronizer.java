@@ -193,6 +193,7 @@ public class FrameSynchronizer extends FrameSenderNode implements FrameReceiver
         statusItemList.add(dropToSearches);
         statusItemList.add(flywheels);
         statusItemList.add(totalFrames);
+        unitCount = totalFrames;
 
         workBuffer = new Buffer();
         setup = new FsSetup(pattern,synclength,framelength);
@@ -277,6 +278,7 @@ public class FrameSynchronizer extends FrameSenderNode implements FrameReceiver
         statusItemList.add(dropToSearches);
         statusItemList.add(flywheels);
         statusItemList.add(totalFrames);
+        unitCount = totalFrames;
 
         workBuffer = new Buffer();
         setup = new FsSetup(element);
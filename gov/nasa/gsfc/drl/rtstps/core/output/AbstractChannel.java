@@ -6,7 +6,9 @@ All rights reserved.
 package gov.nasa.gsfc.drl.rtstps.core.output;
 
 import gov.nasa.gsfc.drl.rtstps.core.Configuration;
+import gov.nasa.gsfc.drl.rtstps.core.EncodedRecord;
 import gov.nasa.gsfc.drl.rtstps.core.FrameAnnotation;
+import gov.nasa.gsfc.drl.rtstps.core.RecordReceiver;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsNode;
 import gov.nasa.gsfc.drl.rtstps.core.Unit;
@@ -20,7 +22,8 @@ import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
  * part of the load method.
  * 
  */
-public abstract class AbstractChannel extends RtStpsNode implements Cloneable
+public abstract class AbstractChannel extends RtStpsNode
+        implements RecordReceiver, Cloneable
 {
     /**
      * If a channel encounters this number of consecutive write errors, it
@@ -119,6 +122,23 @@ public abstract class AbstractChannel extends RtStpsNode implements Cloneable
     protected AbstractOutputDevice device = null;
     protected java.io.DataOutputStream output = null;
 
+    /**
+     * The most annotation bytes a unit has: packet and frame annotation.
+     */
+    private static final int MAX_ANNOTATION_BYTES = 12;
+
+    /*
+     * The gathering write. The header buffer holds the annotation of the
+     * units being written, and the gather list holds slices of it and the
+     * unit data, in output order. I allocate them on the first write so
+     * that cloned channels do not share them.
+     */
+    private java.nio.ByteBuffer header = null;
+    private java.nio.ByteBuffer[] gather = null;
+    private int gathered = 0;
+    private int headerMark = 0;
+    private Unit[] single = null;
+
 
 
     /**
@@ -142,7 +162,8 @@ public abstract class AbstractChannel extends RtStpsNode implements Cloneable
 
         if (element.getTagName().equals("file"))
         {
-            device = new FileDevice(element,unitType);
+            device = new FileDevice(element,unitType,
+                    configuration.getOutputDirectory());
         }
         else if (element.getTagName().equals("socket"))
         {
@@ -154,6 +175,11 @@ public abstract class AbstractChannel extends RtStpsNode implements Cloneable
               //System.out.println("failed to create socket device: " + e.toString());
             }
         }
+        else if (element.getTagName().equals("ring"))
+        {
+            device = new RingDevice(element,
+                    configuration.getOutputDirectory());
+        }
         
         if (device != null)
         {
@@ -166,8 +192,13 @@ public abstract class AbstractChannel extends RtStpsNode implements Cloneable
 
         statusItemList = new java.util.ArrayList<StatusItem>(3);	
         statusItemList.add(count);
+        unitCount = count;
         statusItemList.add(outputErrorCount);
         statusItemList.add(dicardedCount);
+        if (device != null)
+        {
+            device.addStatusItems(statusItemList);
+        }
     }
 
     /**
@@ -192,8 +223,234 @@ public abstract class AbstractChannel extends RtStpsNode implements Cloneable
     }
 
     /**
-     * Format this unit's frame annotation into two 32-integers, and write
-     * them to the output stream.
+     * Write one unit with its annotation.
+     */
+    protected final void writeUnit(Unit unit)
+    {
+        if (single == null) single = new Unit[1];
+        single[0] = unit;
+        writeUnits(single,1);
+        single[0] = null;
+    }
+
+    /**
+     * Write units with their annotation. I encode the annotation of all the
+     * units into one header buffer and give the device the headers and the
+     * unit data together in one gathering write. The device counts as one
+     * write for the consecutive error limit. A record-oriented device gets
+     * one unit per write.
+     */
+    protected final void writeUnits(Unit[] units, int length)
+    {
+        if (device == null) return;
+
+        if (length > 1 && device.isRecordOriented())
+        {
+            for (int n = 0; n < length; n++)
+            {
+                writeUnit(units[n]);
+            }
+            return;
+        }
+
+        if (consecutiveErrors == CONSECUTIVE_PERMITTED_ERRORS)
+        {
+            for (int n = 0; n < length; n++)
+            {
+                if (!units[n].isDeleted()) ++dicardedCount.value;
+            }
+            return;
+        }
+
+        beginGather(length);
+        int written = 0;
+        for (int n = 0; n < length; n++)
+        {
+            if (!units[n].isDeleted())
+            {
+                gatherUnit(units[n]);
+                ++written;
+            }
+        }
+        if (written == 0) return;
+
+        try
+        {
+            closeHeader();
+            countWrite(written,writeGathered(gather,gathered));
+        }
+        finally
+        {
+            java.util.Arrays.fill(gather,0,gathered,null);
+            gathered = 0;
+        }
+    }
+
+    /**
+     * Give the device one gathering write.
+     * @return true if the device wrote it.
+     */
+    private boolean writeGathered(java.nio.ByteBuffer[] list, int length)
+    {
+        try
+        {
+            device.write(list,length);
+            device.endOfUnit();
+            return true;
+        }
+        catch (java.io.IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     * Count one gathering write of units.
+     */
+    private void countWrite(int units, boolean written)
+    {
+        if (written)
+        {
+            count.value += units;
+            consecutiveErrors = 0;
+        }
+        else
+        {
+            outputErrorCount.value += units;
+            ++consecutiveErrors;
+        }
+    }
+
+    /**
+     * Channels of the same class write the same bytes for the same units,
+     * so a broadcaster may encode units once for all of them. A channel
+     * with a record-oriented device does not share, because it needs one
+     * unit per write.
+     */
+    public Object getEncoding()
+    {
+        if (device == null || device.isRecordOriented()) return null;
+        return getClass();
+    }
+
+    /**
+     * Encode units, with their annotation, into a record that any channel
+     * of my class can write. The record uses my header buffer, so it is
+     * good until I encode or write again.
+     */
+    public boolean encode(Unit[] units, int length, EncodedRecord record)
+    {
+        beginGather(length);
+        int written = 0;
+        for (int n = 0; n < length; n++)
+        {
+            if (!units[n].isDeleted())
+            {
+                gatherUnit(units[n]);
+                ++written;
+            }
+        }
+        if (written > 0)
+        {
+            closeHeader();
+            record.set(gather,gathered,written);
+        }
+        java.util.Arrays.fill(gather,0,gathered,null);
+        gathered = 0;
+        return written > 0;
+    }
+
+    /**
+     * Write the buffers of a record that a channel of my class encoded. I
+     * touch no counters here, because I may run on a fan-out thread.
+     * countRecord applies the same error and discard rules as writeUnits.
+     */
+    public boolean writeRecord(java.nio.ByteBuffer[] buffers, int length)
+    {
+        if (device == null) return false;
+        if (consecutiveErrors == CONSECUTIVE_PERMITTED_ERRORS) return false;
+        return writeGathered(buffers,length);
+    }
+
+    /**
+     * Count a record that writeRecord wrote, failed to write, or discarded.
+     */
+    public void countRecord(EncodedRecord record, boolean written)
+    {
+        if (device == null) return;
+
+        if (consecutiveErrors == CONSECUTIVE_PERMITTED_ERRORS)
+        {
+            dicardedCount.value += record.getUnitCount();
+            return;
+        }
+        countWrite(record.getUnitCount(),written);
+    }
+
+    /**
+     * Add a unit and its annotation, in this channel's order, to the gather
+     * list. This version adds only the unit.
+     */
+    protected void gatherUnit(Unit unit)
+    {
+        gatherData(unit.getData(),unit.getStartOffset(),unit.getSize());
+    }
+
+    /**
+     * Add unit data to the gather list.
+     */
+    protected final void gatherData(byte[] data, int offset, int length)
+    {
+        closeHeader();
+        gather[gathered++] = java.nio.ByteBuffer.wrap(data,offset,length);
+    }
+
+    /**
+     * Add a 32-bit annotation word to the header buffer.
+     */
+    protected final void gatherInt(int x)
+    {
+        header.putInt(x);
+    }
+
+    /**
+     * Make room for a number of units.
+     */
+    private void beginGather(int units)
+    {
+        int headerBytes = units * MAX_ANNOTATION_BYTES;
+        if (header == null || header.capacity() < headerBytes)
+        {
+            header = java.nio.ByteBuffer.allocate(Math.max(headerBytes,
+                    64 * MAX_ANNOTATION_BYTES));
+            gather = new java.nio.ByteBuffer[header.capacity() /
+                    MAX_ANNOTATION_BYTES * 2];
+        }
+        header.clear();
+        headerMark = 0;
+        gathered = 0;
+    }
+
+    /**
+     * Add the annotation in the header buffer since the last data to the
+     * gather list.
+     */
+    private void closeHeader()
+    {
+        int position = header.position();
+        if (position > headerMark)
+        {
+            java.nio.ByteBuffer slice = header.duplicate();
+            slice.position(headerMark);
+            slice.limit(position);
+            gather[gathered++] = slice;
+            headerMark = position;
+        }
+    }
+
+    /**
+     * Format this unit's frame annotation into two 32-integers, and add
+     * them to the header buffer.
      * The high 16 bits of the first integer contains a quality mask.
      * The remaining bits contain the frame time.
      * <pre>
@@ -212,8 +469,7 @@ public abstract class AbstractChannel extends RtStpsNode implements Cloneable
      *  [1]  bits 0-31  milliseconds of day
      * </pre>
      */
-    protected void writeFrameAnnotation(Unit unit)
-            throws java.io.IOException
+    protected final void gatherFrameAnnotation(Unit unit)
     {
         FrameAnnotation fa = unit.getFrameAnnotation();
         int quality = 0;
@@ -232,7 +488,7 @@ public abstract class AbstractChannel extends RtStpsNode implements Cloneable
         int days = (int)(fa.timestamp / MS_PER_DAY);
         int msOfDay = (int)(fa.timestamp % MS_PER_DAY);
 
-        output.writeInt((quality << 16) | days);
-        output.writeInt(msOfDay);
+        header.putInt((quality << 16) | days);
+        header.putInt(msOfDay);
     }
 }
@@ -22,4 +22,44 @@ abstract class AbstractOutputDevice
     }
 
     abstract void shutdown() throws gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+
+    /**
+     * Write buffers in order. A channel uses this to write annotation and
+     * unit data in one call. They are heap buffers. Devices that buffer
+     * their own output copy them in directly; this version writes each one
+     * to the output stream.
+     */
+    void write(java.nio.ByteBuffer[] data, int length) throws java.io.IOException
+    {
+        for (int n = 0; n < length; n++)
+        {
+            java.nio.ByteBuffer b = data[n];
+            output.write(b.array(),b.arrayOffset() + b.position(),b.remaining());
+            b.position(b.limit());
+        }
+    }
+
+    /**
+     * A record-oriented device treats each write of buffers as one record,
+     * so a channel gives it one unit per write.
+     */
+    boolean isRecordOriented()
+    {
+        return false;
+    }
+
+    /**
+     * A channel calls this after it writes units, so a device may do
+     * things that must fall between units, such as starting a new file.
+     */
+    void endOfUnit() throws java.io.IOException
+    {
+    }
+
+    /**
+     * Add this device's status items, if it has any, to a channel's list.
+     */
+    void addStatusItems(java.util.Collection<gov.nasa.gsfc.drl.rtstps.core.status.StatusItem> list)
+    {
+    }
 }
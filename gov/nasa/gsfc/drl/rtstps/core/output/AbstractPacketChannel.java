@@ -5,6 +5,7 @@ All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core.output;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.Unit;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketReceiver;
 
@@ -33,15 +34,20 @@ public abstract class AbstractPacketChannel extends AbstractChannel
      */
     public final void putPackets(Packet[] packets) throws RtStpsException
     {
-        for (int n = 0; n < packets.length; n++)
-        {
-            putPacket(packets[n]);
-        }
+        writeUnits(packets,packets.length);
     }
 
     /**
-     * Format the packet annotation into a 32-bit integer and write it to the
-     * data output stream. The integer has the following format:
+     * Add a packet to the gather list. This version adds only the packet.
+     */
+    protected void gatherUnit(Unit unit)
+    {
+        gatherData(unit.getData(),unit.getStartOffset(),unit.getSize());
+    }
+
+    /**
+     * Format the packet annotation into a 32-bit integer and add it to the
+     * header buffer. The integer has the following format:
      * <pre>
      * bit 17       1= packet has invalid length, which is outside the configured
      *              minimum and maximum packet length for this packet stream.
@@ -52,13 +58,12 @@ public abstract class AbstractPacketChannel extends AbstractChannel
      *              it is the index of the first fill byte.
      * </pre>
      */
-    protected void writePacketAnnotation(Packet packet)
-            throws java.io.IOException
+    protected final void gatherPacketAnnotation(Packet packet)
     {
         Packet.Annotation pa = packet.getPacketAnnotation();
         int x = pa.goodByteCount;
         if (pa.isInvalidLength) x |= 0x020000;
         if (pa.isPacketWithFill) x |= 0x010000;
-        output.writeInt(x);
+        gatherInt(x);
     }
 }
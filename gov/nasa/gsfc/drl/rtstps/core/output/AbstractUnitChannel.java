@@ -36,10 +36,7 @@ public abstract class AbstractUnitChannel extends AbstractChannel
      */
     public final void putUnits(Unit[] units) throws RtStpsException
     {
-        for (int n = 0; n < units.length; n++)
-        {
-            putUnit(units[n]);
-        }
+        writeUnits(units,units.length);
     }
 
     /**
@@ -55,9 +52,6 @@ public abstract class AbstractUnitChannel extends AbstractChannel
      */
     public void putFrames(Frame[] frames) throws RtStpsException
     {
-        for (int n = 0; n < frames.length; n++)
-        {
-            putUnit(frames[n]);
-        }
+        writeUnits(frames,frames.length);
     }
 }
@@ -0,0 +1,432 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+import gov.nasa.gsfc.drl.rtstps.core.Configuration;
+import gov.nasa.gsfc.drl.rtstps.core.Convert;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketReceiver;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This RT-STPS node writes each application id's packets to its own file,
+ * so one node replaces a packet pipeline and file channel per application
+ * id. Link a path service to it, and it routes every packet on its
+ * application id.
+ * <p>
+ * I keep at most maxOpenFiles files open. When I need another, I close the
+ * one that was least recently written, and I reopen it for append when its
+ * application id shows up again. The open files share a pool of write
+ * buffers, so memory and file descriptors do not grow with the number of
+ * application ids in a pass.
+ * <p>
+ * The default file name is "tp" + date + label + "_" + apid + ".dat". If a
+ * file rotates, the next one has a new date and "_001", "_002", ... before
+ * the extension.
+ * <p>
+ * Setup attributes:
+ * <br>label -- the link name.
+ * <br>directory -- the output directory. The output directory override
+ *          replaces it.
+ * <br>maxOpenFiles=64 -- the most files open at once.
+ * <br>bufferKb=64 -- the size of each open file's write buffer.
+ * <br>rotateMb=0, rotateSeconds=0 -- if positive, I start a new file for an
+ *          application id when its current one reaches this size or age.
+ * <br>writeUnlisted=true -- if false, I discard the packets of application
+ *          ids that do not have an apid element.
+ * <p>
+ * An apid child element sets the rules for one application id. It has an
+ * id attribute and may have filename, rotateMb, and rotateSeconds, which
+ * replace the defaults for that id.
+ *
+ */
+public final class ApidSplitChannel extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
+        implements PacketReceiver, Cloneable
+{
+    /**
+     * This is the class name for this RT-STPS node type, which is also the
+     * element name. It is not necessarily the link name, which is the name
+     * of one particular object.
+     */
+    public static final String CLASSNAME = "apidsplit";
+
+    private static final int APIDS = 2048;
+
+    private File directory;
+    private String label;
+    private int maxOpenFiles;
+    private int bufferSize;
+    private long rotateBytes;
+    private long rotateMillis;
+    private boolean writeUnlisted;
+
+    private ApidFile[] files;
+    private java.util.ArrayDeque<ByteBuffer> freeBuffers;
+    private int openFiles = 0;
+
+    /** The most recently written open file, and the least. */
+    private ApidFile head = null;
+    private ApidFile tail = null;
+
+    private LongStatusItem packetsWritten;
+    private LongStatusItem apids;
+    private LongStatusItem filesOpened;
+    private LongStatusItem evictions;
+    private LongStatusItem errors;
+    private LongStatusItem discarded;
+
+    /**
+     * A null constructor.
+     */
+    public ApidSplitChannel()
+    {
+        super(CLASSNAME);
+    }
+
+    /**
+     * Configure from an XML document. You cannot assume that any other stps
+     * nodes have been created.
+     */
+    public void load(org.w3c.dom.Element element,
+            Configuration configuration) throws RtStpsException
+    {
+        label = element.getAttribute("label");
+        super.setLinkName(label);
+
+        directory = new File(element.getAttribute("directory"));
+        if (configuration.getOutputDirectory() != null)
+        {
+            directory = configuration.getOutputDirectory();
+        }
+        maxOpenFiles = Convert.toInteger(element,"maxOpenFiles",64,1);
+        bufferSize = Convert.toInteger(element,"bufferKb",64,1,65536) * 1024;
+        rotateBytes = Convert.toInteger(element,"rotateMb",0,0) * 1048576L;
+        rotateMillis = Convert.toInteger(element,"rotateSeconds",0,0) * 1000L;
+        writeUnlisted = Convert.toBoolean(element,"writeUnlisted",true);
+
+        files = new ApidFile[APIDS];
+        freeBuffers = new java.util.ArrayDeque<ByteBuffer>();
+        openFiles = 0;
+        head = tail = null;
+
+        statusItemList = new java.util.ArrayList<StatusItem>(6);
+        packetsWritten = new LongStatusItem("Packets Written");
+        apids = new LongStatusItem("APIDs");
+        filesOpened = new LongStatusItem("Files Opened");
+        evictions = new LongStatusItem("Evictions");
+        errors = new LongStatusItem("Errors");
+        discarded = new LongStatusItem("Discarded");
+        statusItemList.add(packetsWritten);
+        unitCount = packetsWritten;
+        statusItemList.add(apids);
+        statusItemList.add(filesOpened);
+        statusItemList.add(evictions);
+        statusItemList.add(errors);
+        statusItemList.add(discarded);
+
+        org.w3c.dom.NodeList list = element.getElementsByTagName("apid");
+        for (int n = 0; n < list.getLength(); n++)
+        {
+            org.w3c.dom.Element rule = (org.w3c.dom.Element)list.item(n);
+            if (rule.getAttribute("id").length() == 0)
+            {
+                throw new RtStpsException(CLASSNAME + " " + label +
+                        " has an apid element without an id.");
+            }
+            int id = Convert.toInteger(rule,"id",0,0,APIDS - 1);
+            ApidFile f = new ApidFile(id);
+            String filename = rule.getAttribute("filename");
+            if (filename.length() > 0) f.filename = filename;
+            f.rotateBytes = Convert.toInteger(rule,"rotateMb",
+                    (int)(rotateBytes / 1048576L),0) * 1048576L;
+            f.rotateMillis = Convert.toInteger(rule,"rotateSeconds",
+                    (int)(rotateMillis / 1000L),0) * 1000L;
+            files[id] = f;
+        }
+    }
+
+    /**
+     * Finish the setup. When this method is called, you may assume all nodes
+     * have been created and exist by name in the map, and all standard links
+     * have been resolved. This is a last chance to prepare for data flow.
+     */
+    public void finishSetup(Configuration configuration) throws RtStpsException
+    {
+    }
+
+    /**
+     * Give an array of packets to this PacketReceiver.
+     */
+    public void putPackets(Packet[] packets) throws RtStpsException
+    {
+        for (int n = 0; n < packets.length; n++)
+        {
+            putPacket(packets[n]);
+        }
+    }
+
+    /**
+     * Give a packet to this PacketReceiver.
+     */
+    public synchronized void putPacket(Packet packet) throws RtStpsException
+    {
+        if (packet.isDeleted()) return;
+
+        int apid = packet.getApplicationId();
+        ApidFile f = files[apid];
+        if (f == null)
+        {
+            if (!writeUnlisted)
+            {
+                ++discarded.value;
+                return;
+            }
+            f = new ApidFile(apid);
+            f.rotateBytes = rotateBytes;
+            f.rotateMillis = rotateMillis;
+            files[apid] = f;
+        }
+        if (!f.seen)
+        {
+            f.seen = true;
+            ++apids.value;
+        }
+
+        int size = packet.getSize();
+        try
+        {
+            if (f.file != null && f.mustRotate(size))
+            {
+                close(f);
+                f.file = null;
+            }
+            if (f.file == null) nextFile(f);
+            if (f.channel == null) open(f);
+            else touch(f);
+            write(f,packet.getData(),packet.getStartOffset(),size);
+            f.bytes += size;
+            ++packetsWritten.value;
+        }
+        catch (IOException ioe)
+        {
+            ++errors.value;
+            closeQuietly(f);
+        }
+    }
+
+    /**
+     * Choose the next file for an application id.
+     */
+    private void nextFile(ApidFile f)
+    {
+        String name = f.filename;
+        if (name == null)
+        {
+            name = "tp" + FileTime.now() + label + "_" +
+                    new java.text.DecimalFormat("0000").format(f.apid) + ".dat";
+        }
+        if (f.sequence > 0)
+        {
+            int dot = name.lastIndexOf('.');
+            if (dot < 0) dot = name.length();
+            String suffix = "_" + new java.text.DecimalFormat("000").format(f.sequence);
+            name = name.substring(0,dot) + suffix + name.substring(dot);
+        }
+        ++f.sequence;
+        f.file = new File(directory,name);
+        f.created = false;
+        f.bytes = 0L;
+        f.opened = System.currentTimeMillis();
+    }
+
+    /**
+     * Open an application id's file, closing the least recently written
+     * file if too many are open. I create the file the first time and
+     * append to it after that.
+     */
+    private void open(ApidFile f) throws IOException
+    {
+        if (openFiles >= maxOpenFiles)
+        {
+            ++evictions.value;
+            close(tail);
+        }
+        FileOutputStream fos = new FileOutputStream(f.file,f.created);
+        f.channel = fos.getChannel();
+        f.created = true;
+        f.buffer = freeBuffers.poll();
+        if (f.buffer == null) f.buffer = ByteBuffer.allocateDirect(bufferSize);
+        link(f);
+        ++openFiles;
+        ++filesOpened.value;
+    }
+
+    private void write(ApidFile f, byte[] data, int offset, int length)
+            throws IOException
+    {
+        ByteBuffer buffer = f.buffer;
+        if (length > buffer.remaining()) drain(f);
+        if (length > buffer.capacity())
+        {
+            ByteBuffer big = ByteBuffer.wrap(data,offset,length);
+            while (big.hasRemaining()) f.channel.write(big);
+        }
+        else
+        {
+            buffer.put(data,offset,length);
+        }
+    }
+
+    private void drain(ApidFile f) throws IOException
+    {
+        ByteBuffer buffer = f.buffer;
+        buffer.flip();
+        try
+        {
+            while (buffer.hasRemaining()) f.channel.write(buffer);
+        }
+        finally
+        {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Write an open file's buffer and close it. Its buffer goes back to the
+     * pool even if the write fails.
+     */
+    private void close(ApidFile f) throws IOException
+    {
+        if (f.channel == null) return;
+        try
+        {
+            drain(f);
+        }
+        finally
+        {
+            try
+            {
+                f.channel.close();
+            }
+            finally
+            {
+                f.channel = null;
+                freeBuffers.push(f.buffer);
+                f.buffer = null;
+                unlink(f);
+                --openFiles;
+            }
+        }
+    }
+
+    private void closeQuietly(ApidFile f)
+    {
+        try
+        {
+            close(f);
+        }
+        catch (IOException ioe)
+        {
+            ++errors.value;
+        }
+    }
+
+    /**
+     * Put an open file at the head of the recently written list.
+     */
+    private void link(ApidFile f)
+    {
+        f.previous = null;
+        f.next = head;
+        if (head != null) head.previous = f;
+        head = f;
+        if (tail == null) tail = f;
+    }
+
+    private void unlink(ApidFile f)
+    {
+        if (f.previous != null) f.previous.next = f.next;
+        else head = f.next;
+        if (f.next != null) f.next.previous = f.previous;
+        else tail = f.previous;
+        f.previous = f.next = null;
+    }
+
+    private void touch(ApidFile f)
+    {
+        if (f != head)
+        {
+            unlink(f);
+            link(f);
+        }
+    }
+
+    /**
+     * The session is over. I close all open files.
+     */
+    public synchronized void flush() throws RtStpsException
+    {
+        IOException failure = null;
+        while (head != null)
+        {
+            try
+            {
+                close(head);
+            }
+            catch (IOException ioe)
+            {
+                ++errors.value;
+                if (failure == null) failure = ioe;
+            }
+        }
+        if (failure != null) throw new RtStpsException(failure);
+    }
+
+    /**
+     * This class holds the file state of one application id.
+     */
+    private static final class ApidFile
+    {
+        final int apid;
+        String filename = null;
+        long rotateBytes;
+        long rotateMillis;
+        boolean seen = false;
+
+        /** The current file and its rotation state. */
+        File file = null;
+        boolean created;
+        int sequence = 0;
+        long bytes;
+        long opened;
+
+        /** If the file is open, its channel, buffer, and list links. */
+        FileChannel channel = null;
+        ByteBuffer buffer = null;
+        ApidFile previous = null;
+        ApidFile next = null;
+
+        ApidFile(int apid)
+        {
+            this.apid = apid;
+        }
+
+        boolean mustRotate(int size)
+        {
+            if (bytes == 0L) return false;
+            if (rotateBytes > 0L && bytes + size > rotateBytes) return true;
+            return rotateMillis > 0L &&
+                    System.currentTimeMillis() - opened >= rotateMillis;
+        }
+    }
+}
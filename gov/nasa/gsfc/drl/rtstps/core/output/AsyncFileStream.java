@@ -0,0 +1,396 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+import gov.nasa.gsfc.drl.rtstps.core.status.IntegerStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * This output stream writes a file from a background thread. The pipeline
+ * thread fills large direct buffers, and when one is full, it hands it to the
+ * writer thread, which writes it with a FileChannel. The pipeline thread waits
+ * only if every buffer is waiting to be written, so a short disk stall does
+ * not stall the pipeline.
+ * <p>
+ * The stream can preallocate each file, force it to disk on a schedule, and
+ * start a new file when the current one reaches a size or an age. It starts
+ * a new file only between units, when its device tells it a unit is done.
+ *
+ */
+final class AsyncFileStream extends OutputStream
+{
+    /**
+     * Fsync policy. I never force the file to disk.
+     */
+    static final String FSYNC_NONE = "NONE";
+
+    /**
+     * Fsync policy. I force the file to disk when I close it.
+     */
+    static final String FSYNC_CLOSE = "CLOSE";
+
+    /**
+     * Fsync policy. I force the file to disk after every buffer.
+     */
+    static final String FSYNC_BUFFER = "BUFFER";
+
+    /**
+     * The device gives me file names.
+     */
+    interface FileNamer
+    {
+        /**
+         * Get the name of a file.
+         * @param sequence Zero for the first file, then one for each rotation.
+         */
+        File getFile(int sequence);
+    }
+
+    /**
+     * Queue markers. They are never written.
+     */
+    private static final ByteBuffer ROTATE = ByteBuffer.allocate(0);
+    private static final ByteBuffer END = ByteBuffer.allocate(0);
+
+    private final FileNamer namer;
+    private final long preallocateBytes;
+    private final String fsync;
+    private final long rotateBytes;
+    private final long rotateMillis;
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final ArrayBlockingQueue<ByteBuffer> full;
+    private final Thread writer;
+    private ByteBuffer current;
+    private boolean closed = false;
+
+    /*
+     * The pipeline thread's view of the current file.
+     */
+    private long bytesInFile = 0L;
+    private long fileStartMillis;
+
+    /*
+     * The writer thread's file. Only the writer thread uses these after
+     * the constructor.
+     */
+    private PreallocatedFile raf = null;
+    private FileChannel channel = null;
+    private File file = null;
+    private long position = 0L;
+    private int sequence = 0;
+
+    /**
+     * The first error the writer thread had. The pipeline thread throws it
+     * from its next write.
+     */
+    private volatile IOException failure = null;
+
+    private final IntegerStatusItem backlog = new IntegerStatusItem("Writer Backlog");
+    private final LongStatusItem lastLatency = new LongStatusItem("Write Latency (us)");
+    private final LongStatusItem maxLatency = new LongStatusItem("Max Write Latency (us)");
+    private final LongStatusItem waits = new LongStatusItem("Writer Waits");
+    private final LongStatusItem files = new LongStatusItem("Files");
+
+    /**
+     * Create a stream and open its first file.
+     * @param namer Names each file.
+     * @param bufferSize The size of each buffer in bytes.
+     * @param buffers The number of buffers.
+     * @param preallocateBytes If positive, I reserve this much disk space for
+     *          each new file and trim it when I close it (see
+     *          PreallocatedFile).
+     * @param fsync The fsync policy.
+     * @param rotateBytes If positive, I start a new file after this many bytes.
+     * @param rotateMillis If positive, I start a new file after this long.
+     */
+    AsyncFileStream(FileNamer namer, int bufferSize, int buffers,
+            long preallocateBytes, String fsync, long rotateBytes,
+            long rotateMillis) throws IOException
+    {
+        this.namer = namer;
+        this.preallocateBytes = preallocateBytes;
+        this.fsync = fsync;
+        this.rotateBytes = rotateBytes;
+        this.rotateMillis = rotateMillis;
+
+        buffers = Math.max(2,buffers);
+        free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        full = new ArrayBlockingQueue<ByteBuffer>(buffers + 2);
+        for (int n = 1; n < buffers; n++)
+        {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        current = ByteBuffer.allocateDirect(bufferSize);
+
+        //I open the first file here, so a bad directory fails the setup.
+        openFile();
+        fileStartMillis = System.currentTimeMillis();
+
+        backlog.setClearable(false);
+        lastLatency.setClearable(false);
+        files.setClearable(false);
+
+        writer = new Thread("file writer " + file.getName())
+        {
+            public void run()
+            {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Add my status items to a list.
+     */
+    void addStatusItems(Collection<StatusItem> list)
+    {
+        list.add(backlog);
+        list.add(lastLatency);
+        list.add(maxLatency);
+        list.add(waits);
+        list.add(files);
+    }
+
+    /*------------------------------------------------------------------
+     * The pipeline thread calls these.
+     *------------------------------------------------------------------*/
+
+    public void write(int b) throws IOException
+    {
+        if (!current.hasRemaining()) handOff();
+        current.put((byte)b);
+        ++bytesInFile;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        bytesInFile += length;
+        while (length > 0)
+        {
+            if (!current.hasRemaining()) handOff();
+            int n = Math.min(length,current.remaining());
+            current.put(data,offset,n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copy buffers into my buffers. A channel uses this for a gathering
+     * write of annotation and units.
+     */
+    void write(ByteBuffer[] data, int length) throws IOException
+    {
+        for (int n = 0; n < length; n++)
+        {
+            ByteBuffer b = data[n];
+            bytesInFile += b.remaining();
+            while (b.hasRemaining())
+            {
+                if (!current.hasRemaining()) handOff();
+                if (b.remaining() <= current.remaining())
+                {
+                    current.put(b);
+                }
+                else
+                {
+                    int limit = b.limit();
+                    b.limit(b.position() + current.remaining());
+                    current.put(b);
+                    b.limit(limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * The device calls this after each unit. If the current file is big
+     * enough or old enough, I start a new one.
+     */
+    void endOfUnit() throws IOException
+    {
+        if (bytesInFile == 0L) return;
+        boolean rotate = (rotateBytes > 0L) && (bytesInFile >= rotateBytes);
+        if (!rotate && rotateMillis > 0L)
+        {
+            rotate = System.currentTimeMillis() - fileStartMillis >= rotateMillis;
+        }
+        if (rotate)
+        {
+            if (current.position() > 0) handOff();
+            put(ROTATE);
+            bytesInFile = 0L;
+            fileStartMillis = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * I give the writer thread what I have, but I do not wait for it.
+     */
+    public void flush() throws IOException
+    {
+        if (current.position() > 0) handOff();
+    }
+
+    /**
+     * Write everything and close the file.
+     */
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        if (current.position() > 0 && failure == null) handOff();
+        put(END);
+        try
+        {
+            writer.join();
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Give the current buffer to the writer thread and get a free one.
+     */
+    private void handOff() throws IOException
+    {
+        if (failure != null) throw failure;
+        current.flip();
+        put(current);
+        current = free.poll();
+        if (current == null)
+        {
+            ++waits.value;
+            try
+            {
+                current = free.take();
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void put(ByteBuffer buffer) throws IOException
+    {
+        try
+        {
+            full.put(buffer);
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException();
+        }
+        backlog.value = full.size();
+    }
+
+    /*------------------------------------------------------------------
+     * The writer thread calls these.
+     *------------------------------------------------------------------*/
+
+    private void writeLoop()
+    {
+        while (true)
+        {
+            ByteBuffer buffer;
+            try
+            {
+                buffer = full.take();
+            }
+            catch (InterruptedException ie)
+            {
+                break;
+            }
+            backlog.value = full.size();
+            if (buffer == END) break;
+
+            try
+            {
+                if (failure != null)
+                {
+                    //I discard data after an error.
+                }
+                else if (buffer == ROTATE)
+                {
+                    closeFile();
+                    ++sequence;
+                    openFile();
+                }
+                else
+                {
+                    long start = System.nanoTime();
+                    while (buffer.hasRemaining())
+                    {
+                        position += channel.write(buffer,position);
+                    }
+                    raf.setDataLength(position);
+                    if (fsync.equals(FSYNC_BUFFER)) channel.force(false);
+                    long micros = (System.nanoTime() - start) / 1000L;
+                    lastLatency.value = micros;
+                    if (micros > maxLatency.value) maxLatency.value = micros;
+                }
+            }
+            catch (IOException ioe)
+            {
+                failure = ioe;
+            }
+
+            if (buffer != ROTATE)
+            {
+                buffer.clear();
+                free.offer(buffer);
+            }
+        }
+
+        try
+        {
+            closeFile();
+        }
+        catch (IOException ioe)
+        {
+            if (failure == null) failure = ioe;
+        }
+    }
+
+    private void openFile() throws IOException
+    {
+        file = namer.getFile(sequence);
+        raf = new PreallocatedFile(file,preallocateBytes);
+        channel = raf.getChannel();
+        position = 0L;
+        ++files.value;
+    }
+
+    private void closeFile() throws IOException
+    {
+        if (raf == null) return;
+        try
+        {
+            raf.close(position,!fsync.equals(FSYNC_NONE));
+        }
+        finally
+        {
+            raf = null;
+            channel = null;
+        }
+    }
+}
@@ -6,6 +6,7 @@ All rights reserved.
 package gov.nasa.gsfc.drl.rtstps.core.output;
 import gov.nasa.gsfc.drl.rtstps.core.Convert;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
 
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
@@ -17,11 +18,35 @@ import java.io.FileOutputStream;
  * auto-generated file name format:
  * "t" + code + userLabel + currentDateTime + ".dat"
  * code = 'p':packet, 'f':frame, "g":generic unit
+ * <p>
+ * If the setup element has asynchronous="true", a background thread writes
+ * the file from large buffers (see AsyncFileStream). These attributes then
+ * apply:
+ * <br>bufferKb=1024 -- the size of each buffer.
+ * <br>buffers=4 -- the number of buffers.
+ * <br>preallocateMb=0 -- if positive, this much disk space is reserved for
+ *          each file, which is trimmed when it is closed. After a crash, the
+ *          next setup trims it (see PreallocatedFile).
+ * <br>fsync=NONE -- NONE, CLOSE (force each file when it is closed), or
+ *          BUFFER (force after every buffer).
+ * <br>rotateMb=0, rotateSeconds=0 -- if positive, the device starts a new
+ *          file when the current one reaches this size or age. The rotated
+ *          files have "_001", "_002", ... before the extension.
+ * <p>
+ * If the setup element has compression="gzip", the device writes a gzip
+ * file, with ".gz" after the file name, and compresses it in parallel (see
+ * ParallelGzipStream). It also writes a block index with ".idx" after the
+ * gzip file name. Rotation does not apply. These attributes then apply:
+ * <br>compressBlockKb=1024 -- the uncompressed size of each gzip member.
+ * <br>compressThreads=0 -- the number of compression threads. Zero uses
+ *          one for each processor.
+ * <br>compressLevel=6 -- the deflate level, 1 (fast) to 9 (small).
  * 
  */
 class FileDevice extends AbstractOutputDevice
 {
-    private static java.text.SimpleDateFormat sdf = null;
+    private AsyncFileStream async = null;
+    private ParallelGzipStream gzip = null;
 
     FileDevice(String unitType,String userLable) throws RtStpsException{
         String directory = "/home/youngcle";
@@ -32,11 +57,7 @@ class FileDevice extends AbstractOutputDevice
 
         if (autoGenerateFilename || (filename.length() == 0))
         {
-            if (sdf == null)
-            {
-                sdf = new java.text.SimpleDateFormat("yyyyDDDHHmmss");
-            }
-            String fdate = sdf.format(new java.util.Date());
+            String fdate = FileTime.now();
             char type = unitType.toLowerCase().charAt(0);
             filename = "t" + type + fdate + userLabel + ".dat";
         }
@@ -57,8 +78,23 @@ class FileDevice extends AbstractOutputDevice
 
     FileDevice(org.w3c.dom.Element element, String unitType)
             throws RtStpsException
+    {
+        this(element,unitType,null);
+    }
+
+    /**
+     * Create a file device from a setup element.
+     * @param outputDirectory If not null, it replaces the directory in the
+     *          setup element.
+     */
+    FileDevice(org.w3c.dom.Element element, String unitType,
+            File outputDirectory) throws RtStpsException
     {
         String directory = element.getAttribute("directory");
+        if (outputDirectory != null)
+        {
+            directory = outputDirectory.getPath();
+        }
         String userLabel = element.getAttribute("userLabel");
         String filename = element.getAttribute("filename");
 
@@ -67,13 +103,26 @@ class FileDevice extends AbstractOutputDevice
 
         if (autoGenerateFilename || (filename.length() == 0))
         {
-            if (sdf == null)
-            {
-                sdf = new java.text.SimpleDateFormat("yyyyDDDHHmmss");
-            }
-            String fdate = sdf.format(new java.util.Date());
-            char type = unitType.toLowerCase().charAt(0);
-            filename = "t" + type + fdate + userLabel + ".dat";
+            filename = generateFilename(unitType,userLabel);
+        }
+
+        String compression = element.getAttribute("compression");
+        if (compression.equalsIgnoreCase("gzip"))
+        {
+            createGzip(element,new File(directory,filename + ".gz"));
+            return;
+        }
+        else if (compression.length() > 0 && !compression.equalsIgnoreCase("none"))
+        {
+            throw new RtStpsException(element.getTagName() +
+                    " attribute compression must be gzip or none.");
+        }
+
+        if (Convert.toBoolean(element,"asynchronous",false))
+        {
+            createAsync(element,directory,filename,
+                    autoGenerateFilename? unitType : null,userLabel);
+            return;
         }
 
         try
@@ -89,6 +138,105 @@ class FileDevice extends AbstractOutputDevice
         }
     }
 
+    /**
+     * Create the asynchronous output stream.
+     * @param unitType If not null, I generate a new name for each rotated
+     *          file from it and the user label.
+     */
+    private void createAsync(org.w3c.dom.Element element, final String directory,
+            final String filename, final String unitType, final String userLabel)
+            throws RtStpsException
+    {
+        int bufferSize = Convert.toInteger(element,"bufferKb",1024,1) * 1024;
+        int buffers = Convert.toInteger(element,"buffers",4,2);
+        long preallocate = Convert.toInteger(element,"preallocateMb",0,0) * 1048576L;
+        long rotateBytes = Convert.toInteger(element,"rotateMb",0,0) * 1048576L;
+        long rotateMillis = Convert.toInteger(element,"rotateSeconds",0,0) * 1000L;
+        String fsync = element.getAttribute("fsync");
+        if (fsync.length() == 0) fsync = AsyncFileStream.FSYNC_NONE;
+        if (!fsync.equals(AsyncFileStream.FSYNC_NONE) &&
+                !fsync.equals(AsyncFileStream.FSYNC_CLOSE) &&
+                !fsync.equals(AsyncFileStream.FSYNC_BUFFER))
+        {
+            throw new RtStpsException(element.getTagName() +
+                    " attribute fsync must be NONE, CLOSE, or BUFFER.");
+        }
+
+        AsyncFileStream.FileNamer namer = new AsyncFileStream.FileNamer()
+        {
+            public File getFile(int sequence)
+            {
+                if (sequence == 0) return new File(directory,filename);
+                String name = (unitType == null)? filename :
+                        generateFilename(unitType,userLabel);
+                int dot = name.lastIndexOf('.');
+                if (dot < 0) dot = name.length();
+                String suffix = "_" + new java.text.DecimalFormat("000").format(sequence);
+                return new File(directory,name.substring(0,dot) + suffix +
+                        name.substring(dot));
+            }
+        };
+
+        try
+        {
+            //A crash may have left a file with its reserved tail.
+            if (preallocate > 0L) PreallocatedFile.recover(new File(directory));
+            async = new AsyncFileStream(namer,bufferSize,buffers,preallocate,
+                    fsync,rotateBytes,rotateMillis);
+            output = new DataOutputStream(async);
+        }
+        catch (java.io.IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+
+    /**
+     * Create the parallel gzip output stream.
+     */
+    private void createGzip(org.w3c.dom.Element element, File file)
+            throws RtStpsException
+    {
+        int blockSize = Convert.toInteger(element,"compressBlockKb",1024,1,65536) * 1024;
+        int threads = Convert.toInteger(element,"compressThreads",0,0);
+        if (threads == 0) threads = Runtime.getRuntime().availableProcessors();
+        int level = Convert.toInteger(element,"compressLevel",6,1,9);
+        try
+        {
+            gzip = new ParallelGzipStream(file,blockSize,threads,level);
+            output = new DataOutputStream(gzip);
+        }
+        catch (java.io.IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+
+    private static String generateFilename(String unitType, String userLabel)
+    {
+        String fdate = FileTime.now();
+        char type = unitType.toLowerCase().charAt(0);
+        return "t" + type + fdate + userLabel + ".dat";
+    }
+
+    void write(java.nio.ByteBuffer[] data, int length) throws java.io.IOException
+    {
+        if (async != null) async.write(data,length);
+        else if (gzip != null) gzip.write(data,length);
+        else super.write(data,length);
+    }
+
+    void endOfUnit() throws java.io.IOException
+    {
+        if (async != null) async.endOfUnit();
+    }
+
+    void addStatusItems(java.util.Collection<StatusItem> list)
+    {
+        if (async != null) async.addStatusItems(list);
+        else if (gzip != null) gzip.addStatusItems(list);
+    }
+
     void shutdown() throws RtStpsException
     {
         try
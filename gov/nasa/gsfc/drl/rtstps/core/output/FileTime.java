@@ -0,0 +1,36 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * This class formats the time that output nodes put in the names of the
+ * files they create. The formatter is immutable, so parallel pipelines may
+ * share it.
+ * 
+ */
+final class FileTime
+{
+    /**
+     * The time format is yyyyDDDHHmmss in the local time zone.
+     */
+    private static final DateTimeFormatter FORMAT =
+            DateTimeFormatter.ofPattern("yyyyDDDHHmmss").withZone(ZoneId.systemDefault());
+
+    private FileTime()
+    {
+    }
+
+    /**
+     * Format the current time.
+     */
+    static String now()
+    {
+        return FORMAT.format(java.time.Instant.now());
+    }
+}
@@ -35,29 +35,6 @@ public final class PacketChannel extends AbstractPacketChannel
      */
     public void putPacket(Packet packet) throws gov.nasa.gsfc.drl.rtstps.core.RtStpsException
     {
-        if (!packet.isDeleted())
-        {
-            if (consecutiveErrors == CONSECUTIVE_PERMITTED_ERRORS)
-            {
-                ++dicardedCount.value;
-            }
-            else
-            {
-              if (output != null) {	// in case a socket connection was refused or the file (directory) doesn't exist or couldn't be created
-                try
-                {
-                    output.write(packet.getData(),0,packet.getSize());
-                   // output.flush(); // some receivers get incomplete chunks and they break; this helps
-                    ++count.value;
-                    consecutiveErrors = 0;
-                }
-                catch (java.io.IOException e)
-                {
-                    ++outputErrorCount.value;
-                    ++consecutiveErrors;
-                }
-              }
-            }
-        }
+        writeUnit(packet);
     }
 }
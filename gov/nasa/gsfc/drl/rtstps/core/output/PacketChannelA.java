@@ -4,6 +4,7 @@ the Administrator for The National Aeronautics and Space Administration.
 All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core.output;
+import gov.nasa.gsfc.drl.rtstps.core.Unit;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketReceiver;
 
@@ -35,28 +36,18 @@ public final class PacketChannelA extends AbstractPacketChannel
      */
     public void putPacket(Packet packet) throws gov.nasa.gsfc.drl.rtstps.core.RtStpsException
     {
-        if (!packet.isDeleted())
-        {
-            if (consecutiveErrors == CONSECUTIVE_PERMITTED_ERRORS)
-            {
-                ++dicardedCount.value;
-            }
-            else
-            {
-                try
-                {
-                    writePacketAnnotation(packet);
-                    writeFrameAnnotation(packet);
-                    output.write(packet.getData(),0,packet.getSize());
-                    ++count.value;
-                    consecutiveErrors = 0;
-                }
-                catch (java.io.IOException e)
-                {
-                    ++outputErrorCount.value;
-                    ++consecutiveErrors;
-                }
-            }
-        }
+        writeUnit(packet);
+    }
+
+    /**
+     * Add a packet and its annotation to the gather list.
+     */
+    protected void gatherUnit(Unit unit)
+    {
+        Packet packet = (Packet)unit;
+        gatherPacketAnnotation(packet);
+        gatherFrameAnnotation(packet);
+        gatherData(packet.getData(),packet.getStartOffset(),
+                packet.getSize());
     }
 }
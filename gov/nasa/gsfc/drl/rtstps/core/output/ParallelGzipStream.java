@@ -0,0 +1,424 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+import gov.nasa.gsfc.drl.rtstps.core.status.IntegerStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * This output stream writes a gzip file. It cuts the stream into fixed-size
+ * blocks and deflates them in parallel on a pool of worker threads. Each
+ * block becomes one gzip member, and a writer thread appends the members in
+ * order, so the file is a standard multi-member gzip file that gunzip and
+ * GZIPInputStream read straight through.
+ * <p>
+ * Beside the file, I write a block index with the same name plus ".idx" for
+ * random access. It is big-endian:
+ * <pre>
+ *  int   magic 0x52544758 ("RTGX")
+ *  int   version 1
+ *  int   block size (uncompressed)
+ *  then one entry per member:
+ *  long  uncompressed offset of the block
+ *  long  file offset of the member
+ *  int   member length in bytes
+ *  int   uncompressed length of the block
+ * </pre>
+ * A reader finds the block that holds an offset, reads the member, and
+ * inflates it on its own.
+ *
+ */
+final class ParallelGzipStream extends OutputStream
+{
+    static final int INDEX_MAGIC = 0x52544758;
+    static final int INDEX_VERSION = 1;
+    static final String INDEX_SUFFIX = ".idx";
+
+    private static final int GZIP_HEADER_SIZE = 10;
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    /**
+     * A deflated block.
+     */
+    private static final class Member
+    {
+        byte[] data;
+        int length;
+        int uncompressedLength;
+    }
+
+    private final int blockSize;
+    private final int level;
+    private final FileOutputStream file;
+    private final FileChannel channel;
+    private final DataOutputStream index;
+    private final ExecutorService pool;
+    private final Thread writer;
+
+    /**
+     * Blocks being compressed or waiting to be written, in file order.
+     */
+    private final ArrayBlockingQueue<Future<Member>> pending;
+    private final ArrayBlockingQueue<byte[]> freeBlocks;
+    private final ArrayBlockingQueue<byte[]> freeOutputs;
+
+    private byte[] current;
+    private int fill = 0;
+    private boolean closed = false;
+    private volatile IOException failure = null;
+
+    /**
+     * Each worker keeps its own Deflater.
+     */
+    private final ThreadLocal<Deflater> deflaters = new ThreadLocal<Deflater>()
+    {
+        protected Deflater initialValue()
+        {
+            return new Deflater(level,true);
+        }
+    };
+
+    private final IntegerStatusItem backlog = new IntegerStatusItem("Compress Backlog");
+    private final LongStatusItem bytesIn = new LongStatusItem("Bytes In");
+    private final LongStatusItem bytesOut = new LongStatusItem("Bytes Out");
+    private final LongStatusItem waits = new LongStatusItem("Compress Waits");
+
+    /**
+     * Create a stream and open its file and index.
+     * @param path The gzip file.
+     * @param blockSize The uncompressed size of each block.
+     * @param threads The number of compression threads.
+     * @param level The Deflater compression level.
+     */
+    ParallelGzipStream(File path, int blockSize, int threads, int level)
+            throws IOException
+    {
+        this.blockSize = blockSize;
+        this.level = level;
+
+        file = new FileOutputStream(path);
+        channel = file.getChannel();
+        File indexPath = new File(path.getPath() + INDEX_SUFFIX);
+        index = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(indexPath),8192));
+        index.writeInt(INDEX_MAGIC);
+        index.writeInt(INDEX_VERSION);
+        index.writeInt(blockSize);
+
+        int depth = threads * 2;
+        pending = new ArrayBlockingQueue<Future<Member>>(depth + 1);
+        freeBlocks = new ArrayBlockingQueue<byte[]>(depth + 1);
+        freeOutputs = new ArrayBlockingQueue<byte[]>(depth + 1);
+        for (int n = 0; n < depth; n++)
+        {
+            freeBlocks.add(new byte[blockSize]);
+        }
+        current = new byte[blockSize];
+
+        pool = Executors.newFixedThreadPool(threads,new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r,"gzip " + path.getName());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        backlog.setClearable(false);
+        bytesIn.setClearable(false);
+        bytesOut.setClearable(false);
+
+        writer = new Thread("gzip writer " + path.getName())
+        {
+            public void run()
+            {
+                writeLoop();
+            }
+        };
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Add my status items to a list.
+     */
+    void addStatusItems(Collection<StatusItem> list)
+    {
+        list.add(backlog);
+        list.add(bytesIn);
+        list.add(bytesOut);
+        list.add(waits);
+    }
+
+    /*------------------------------------------------------------------
+     * The pipeline thread calls these.
+     *------------------------------------------------------------------*/
+
+    public void write(int b) throws IOException
+    {
+        if (fill == blockSize) handOff();
+        current[fill++] = (byte)b;
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (fill == blockSize) handOff();
+            int n = Math.min(length,blockSize - fill);
+            System.arraycopy(data,offset,current,fill,n);
+            fill += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copy buffers into my block. A channel uses this for a gathering
+     * write of annotation and units.
+     */
+    void write(ByteBuffer[] data, int length) throws IOException
+    {
+        for (int n = 0; n < length; n++)
+        {
+            ByteBuffer b = data[n];
+            while (b.hasRemaining())
+            {
+                if (fill == blockSize) handOff();
+                int k = Math.min(b.remaining(),blockSize - fill);
+                b.get(current,fill,k);
+                fill += k;
+            }
+        }
+    }
+
+    /**
+     * Compress and write everything, and close the file and index.
+     */
+    public void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        if (fill > 0 && failure == null) handOff();
+        FutureTask<Member> end = new FutureTask<Member>(new Callable<Member>()
+        {
+            public Member call()
+            {
+                return null;
+            }
+        });
+        end.run();
+        put(end);
+        try
+        {
+            writer.join();
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException();
+        }
+        finally
+        {
+            pool.shutdown();
+        }
+        if (failure != null) throw failure;
+    }
+
+    /**
+     * Give the current block to the pool and get an empty one.
+     */
+    private void handOff() throws IOException
+    {
+        if (failure != null) throw failure;
+        final byte[] block = current;
+        final int length = fill;
+        bytesIn.value += length;
+        put(pool.submit(new Callable<Member>()
+        {
+            public Member call()
+            {
+                return compress(block,length);
+            }
+        }));
+
+        fill = 0;
+        current = freeBlocks.poll();
+        if (current == null)
+        {
+            ++waits.value;
+            try
+            {
+                current = freeBlocks.take();
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    private void put(Future<Member> future) throws IOException
+    {
+        try
+        {
+            pending.put(future);
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException();
+        }
+        backlog.value = pending.size();
+    }
+
+    /*------------------------------------------------------------------
+     * The worker threads call this.
+     *------------------------------------------------------------------*/
+
+    /**
+     * Deflate a block into a gzip member and recycle the block.
+     */
+    private Member compress(byte[] block, int length)
+    {
+        CRC32 crc = new CRC32();
+        crc.update(block,0,length);
+
+        int bound = GZIP_HEADER_SIZE + length + (length >>> 12) + (length >>> 14) +
+                (length >>> 25) + 13 + GZIP_TRAILER_SIZE;
+        byte[] out = freeOutputs.poll();
+        if (out == null || out.length < bound) out = new byte[bound];
+
+        out[0] = (byte)0x1f;
+        out[1] = (byte)0x8b;
+        out[2] = 8;         //deflate
+        out[3] = 0;         //no flags
+        out[4] = out[5] = out[6] = out[7] = 0;     //no time
+        out[8] = 0;
+        out[9] = (byte)255; //unknown OS
+
+        Deflater deflater = deflaters.get();
+        deflater.reset();
+        deflater.setInput(block,0,length);
+        deflater.finish();
+        int position = GZIP_HEADER_SIZE;
+        while (!deflater.finished())
+        {
+            if (position == out.length - GZIP_TRAILER_SIZE)
+            {
+                byte[] bigger = new byte[out.length * 2];
+                System.arraycopy(out,0,bigger,0,position);
+                out = bigger;
+            }
+            position += deflater.deflate(out,position,
+                    out.length - GZIP_TRAILER_SIZE - position);
+        }
+        freeBlocks.offer(block);
+
+        putIntLE(out,position,(int)crc.getValue());
+        putIntLE(out,position + 4,length);
+
+        Member member = new Member();
+        member.data = out;
+        member.length = position + GZIP_TRAILER_SIZE;
+        member.uncompressedLength = length;
+        return member;
+    }
+
+    private static void putIntLE(byte[] b, int offset, int x)
+    {
+        b[offset] = (byte)x;
+        b[offset + 1] = (byte)(x >>> 8);
+        b[offset + 2] = (byte)(x >>> 16);
+        b[offset + 3] = (byte)(x >>> 24);
+    }
+
+    /*------------------------------------------------------------------
+     * The writer thread calls these.
+     *------------------------------------------------------------------*/
+
+    private void writeLoop()
+    {
+        long uncompressedOffset = 0L;
+        long fileOffset = 0L;
+
+        while (true)
+        {
+            Member member;
+            try
+            {
+                Future<Member> future = pending.take();
+                backlog.value = pending.size();
+                member = future.get();
+            }
+            catch (InterruptedException ie)
+            {
+                break;
+            }
+            catch (ExecutionException ee)
+            {
+                if (failure == null)
+                {
+                    failure = new IOException("compression failed: " + ee.getCause());
+                }
+                continue;
+            }
+            if (member == null) break;
+            if (failure != null) continue;
+
+            try
+            {
+                ByteBuffer b = ByteBuffer.wrap(member.data,0,member.length);
+                while (b.hasRemaining())
+                {
+                    channel.write(b);
+                }
+                index.writeLong(uncompressedOffset);
+                index.writeLong(fileOffset);
+                index.writeInt(member.length);
+                index.writeInt(member.uncompressedLength);
+                uncompressedOffset += member.uncompressedLength;
+                fileOffset += member.length;
+                bytesOut.value = fileOffset;
+            }
+            catch (IOException ioe)
+            {
+                failure = ioe;
+            }
+            freeOutputs.offer(member.data);
+        }
+
+        try
+        {
+            index.close();
+            file.close();
+        }
+        catch (IOException ioe)
+        {
+            if (failure == null) failure = ioe;
+        }
+    }
+}
@@ -0,0 +1,250 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+
+/**
+ * This is an output file whose disk space I reserve when I open it.
+ * RandomAccessFile.setLength only makes a sparse file, which reserves no
+ * disk blocks, so I write zeros up to the reserved length instead.
+ * <p>
+ * A reserved file is longer than its data until I close it and cut off the
+ * zeros. While it is open, a side file with the same name plus ".len" holds
+ * the length of the data written so far, and I hold a lock on the side file.
+ * If the writer crashes, recover() cuts the file back to that length, so no
+ * reader mistakes the zeros for data.
+ *
+ */
+public final class PreallocatedFile
+{
+    /**
+     * The side file name is the data file name plus this.
+     */
+    public static final String LENGTH_SUFFIX = ".len";
+
+    /**
+     * I reserve space by writing zeros in pieces of this size.
+     */
+    private static final int ZERO_SIZE = 1024 * 1024;
+
+    /**
+     * The side files open in this process. Closing any channel of a file may
+     * release every lock this process holds on it, so recover() must not
+     * even open these.
+     */
+    private static final java.util.Set<String> openSides =
+            java.util.Collections.synchronizedSet(new java.util.HashSet<String>());
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private final ByteBuffer lengthBuffer = ByteBuffer.allocate(8);
+    private RandomAccessFile lengthFile = null;
+
+    /**
+     * Open a file, empty it, and reserve disk space for it.
+     * @param file The file.
+     * @param reserved The number of bytes to reserve. If it is not positive,
+     *          I reserve nothing and keep no side file.
+     */
+    public PreallocatedFile(File file, long reserved) throws IOException
+    {
+        this.file = file;
+        raf = new RandomAccessFile(file,"rw");
+        channel = raf.getChannel();
+        try
+        {
+            raf.setLength(0L);
+            if (reserved > 0L)
+            {
+                //I record an empty file before I write the zeros, so a crash
+                //during the reservation leaves an empty file.
+                openSides.add(getLengthFile(file).getAbsolutePath());
+                lengthFile = new RandomAccessFile(getLengthFile(file),"rw");
+                lengthFile.getChannel().lock();
+                setDataLength(0L);
+                allocate(channel,0L,reserved);
+            }
+        }
+        catch (IOException ioe)
+        {
+            closeQuietly();
+            throw ioe;
+        }
+    }
+
+    /**
+     * Get the side file of a data file.
+     */
+    static File getLengthFile(File file)
+    {
+        return new File(file.getPath() + LENGTH_SUFFIX);
+    }
+
+    /**
+     * Get the data file.
+     */
+    public File getFile()
+    {
+        return file;
+    }
+
+    /**
+     * Get the channel for writing the file. Reserving the space does not
+     * move its position.
+     */
+    public FileChannel getChannel()
+    {
+        return channel;
+    }
+
+    /**
+     * Record how much of the file is data. If the file has no reserved
+     * space, I do nothing.
+     */
+    public void setDataLength(long length) throws IOException
+    {
+        if (lengthFile == null) return;
+        lengthBuffer.clear();
+        lengthBuffer.putLong(length);
+        lengthBuffer.flip();
+        FileChannel fc = lengthFile.getChannel();
+        while (lengthBuffer.hasRemaining())
+        {
+            fc.write(lengthBuffer,lengthBuffer.position());
+        }
+    }
+
+    /**
+     * Cut off the unused reserved space, close the file, and delete its side
+     * file.
+     * @param length The length of the data in the file.
+     * @param force If true, I force the file to disk before I close it.
+     */
+    public void close(long length, boolean force) throws IOException
+    {
+        try
+        {
+            if (lengthFile != null) raf.setLength(length);
+            if (force) channel.force(true);
+        }
+        finally
+        {
+            raf.close();
+            if (lengthFile != null)
+            {
+                lengthFile.close();
+                getLengthFile(file).delete();
+                openSides.remove(getLengthFile(file).getAbsolutePath());
+                lengthFile = null;
+            }
+        }
+    }
+
+    private void closeQuietly()
+    {
+        try { raf.close(); } catch (IOException ioe) { }
+        if (lengthFile != null)
+        {
+            try { lengthFile.close(); } catch (IOException ioe) { }
+            getLengthFile(file).delete();
+            lengthFile = null;
+        }
+        openSides.remove(getLengthFile(file).getAbsolutePath());
+    }
+
+    /**
+     * Reserve disk space by writing zeros. I do not move the channel's
+     * position.
+     * @param channel The file.
+     * @param from The first byte to reserve.
+     * @param to The byte after the last one to reserve.
+     */
+    public static void allocate(FileChannel channel, long from, long to)
+            throws IOException
+    {
+        ByteBuffer zeros = ByteBuffer.allocateDirect(
+                (int)Math.min(ZERO_SIZE,Math.max(0L,to - from)));
+        long position = from;
+        while (position < to)
+        {
+            zeros.clear();
+            if (to - position < zeros.capacity())
+            {
+                zeros.limit((int)(to - position));
+            }
+            while (zeros.hasRemaining())
+            {
+                position += channel.write(zeros,position);
+            }
+        }
+    }
+
+    /**
+     * Cut back every file in a directory that a crashed writer left with
+     * reserved space, and delete its side file. I leave alone files that a
+     * writer still holds open.
+     * @return The number of files I cut back.
+     */
+    public static int recover(File directory) throws IOException
+    {
+        File[] sides = directory.listFiles();
+        if (sides == null) return 0;
+        int count = 0;
+        for (int n = 0; n < sides.length; n++)
+        {
+            String name = sides[n].getPath();
+            if (!name.endsWith(LENGTH_SUFFIX) ||
+                    openSides.contains(sides[n].getAbsolutePath())) continue;
+            RandomAccessFile side = new RandomAccessFile(sides[n],"rw");
+            try
+            {
+                FileLock held;
+                try
+                {
+                    held = side.getChannel().tryLock();
+                }
+                catch (OverlappingFileLockException ofle)
+                {
+                    held = null;
+                }
+                //A live writer in this or another process holds the lock.
+                if (held == null) continue;
+
+                long length = (side.length() >= 8L)? side.readLong() : 0L;
+                File data = new File(name.substring(0,name.length() -
+                        LENGTH_SUFFIX.length()));
+                if (data.isFile() && data.length() > length)
+                {
+                    RandomAccessFile raf = new RandomAccessFile(data,"rw");
+                    try
+                    {
+                        raf.setLength(length);
+                    }
+                    finally
+                    {
+                        raf.close();
+                    }
+                    ++count;
+                }
+                held.release();
+            }
+            finally
+            {
+                side.close();
+            }
+            sides[n].delete();
+        }
+        return count;
+    }
+}
@@ -0,0 +1,534 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+import gov.nasa.gsfc.drl.rtstps.core.status.IntegerStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.TextStatusItem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This output stream sends data to a socket from a background thread. The
+ * pipeline thread fills buffers and puts them on a bounded queue. The sender
+ * thread takes whatever is queued and sends it with one gathering write.
+ * <p>
+ * If the consumer is slow or gone, the queue fills, and the overflow policy
+ * decides what happens: BLOCK waits for room, as the old blocking socket did;
+ * DROP discards the buffer; SPILL appends it to a file, which the sender
+ * drains after the queue. The spill file is a ring of maxSpillBytes, so it
+ * never grows past that even if the sender never catches up. If the
+ * connection breaks, the sender reconnects
+ * with an exponential backoff. The consumer should expect to resynchronize
+ * after a reconnect, because the buffers do not fall on unit boundaries.
+ *
+ */
+final class QueuedSocketStream extends OutputStream
+{
+    /**
+     * Overflow policy. The pipeline waits until the queue has room.
+     */
+    static final String BLOCK = "BLOCK";
+
+    /**
+     * Overflow policy. I discard the buffer that does not fit.
+     */
+    static final String DROP = "DROP";
+
+    /**
+     * Overflow policy. I append the buffer to a spill file.
+     */
+    static final String SPILL = "SPILL";
+
+    /**
+     * The most buffers I send in one gathering write.
+     */
+    private static final int GATHER = 16;
+
+    /**
+     * The sender checks for shutdown this often when it is idle.
+     */
+    private static final long POLL_MILLIS = 100L;
+
+    private static final int CONNECT_TIMEOUT_MILLIS = 5000;
+
+    private final InetSocketAddress address;
+    private final int bufferSize;
+    private final int sendBufferSize;
+    private final String policy;
+    private final long maxSpillBytes;
+    private final File spillDirectory;
+    private final long minBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long drainMillis;
+
+    private final ArrayBlockingQueue<ByteBuffer> queue;
+    private final ArrayBlockingQueue<ByteBuffer> free;
+    private final Thread sender;
+    private ByteBuffer current;
+
+    /**
+     * The queue and the spill file change together under this lock when the
+     * policy is SPILL. While I am spilling, the pipeline appends everything
+     * to the spill file, so the data stays in order.
+     */
+    private final Object lock = new Object();
+    private volatile boolean spilling = false;
+    private RandomAccessFile spillFile = null;
+    private File spillName = null;
+
+    /**
+     * These count bytes since the spill began. The file position of either
+     * one is the count modulo maxSpillBytes.
+     */
+    private long spillWrite = 0L;
+    private long spillRead = 0L;
+
+    private volatile boolean closing = false;
+    private SocketChannel channel = null;
+    private boolean connected = false;
+
+    private final IntegerStatusItem depth = new IntegerStatusItem("Queue Depth");
+    private final LongStatusItem dropped = new LongStatusItem("Bytes Dropped");
+    private final LongStatusItem spilled = new LongStatusItem("Spill Backlog");
+    private final LongStatusItem reconnects = new LongStatusItem("Reconnects");
+    private final TextStatusItem connection = new TextStatusItem("Connection","connecting");
+
+    /**
+     * Create a stream. I connect in the background.
+     * @param address The consumer.
+     * @param bufferSize The size of each buffer.
+     * @param queueDepth The number of buffers the queue holds.
+     * @param sendBufferSize If larger than the socket default, the socket's
+     *          send buffer size.
+     * @param policy BLOCK, DROP, or SPILL.
+     * @param maxSpillBytes The size of the spill file ring. I drop what
+     *          does not fit.
+     * @param spillDirectory Where the spill file goes. If null, it goes to
+     *          the system temp directory.
+     * @param minBackoffMillis The first wait before I reconnect.
+     * @param maxBackoffMillis The longest wait before I reconnect.
+     * @param drainMillis How long close() waits for the queue to drain.
+     */
+    QueuedSocketStream(InetSocketAddress address, int bufferSize,
+            int queueDepth, int sendBufferSize, String policy,
+            long maxSpillBytes, File spillDirectory, long minBackoffMillis,
+            long maxBackoffMillis, long drainMillis)
+    {
+        this.address = address;
+        this.bufferSize = bufferSize;
+        this.sendBufferSize = sendBufferSize;
+        this.policy = policy;
+        this.maxSpillBytes = maxSpillBytes;
+        this.spillDirectory = spillDirectory;
+        this.minBackoffMillis = minBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.drainMillis = drainMillis;
+
+        queue = new ArrayBlockingQueue<ByteBuffer>(queueDepth);
+        int buffers = queueDepth + GATHER + 1;
+        free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+        for (int n = 1; n < buffers; n++)
+        {
+            free.add(ByteBuffer.allocateDirect(bufferSize));
+        }
+        current = ByteBuffer.allocateDirect(bufferSize);
+
+        depth.setClearable(false);
+        spilled.setClearable(false);
+        connection.setClearable(false);
+
+        sender = new Thread("socket sender " + address)
+        {
+            public void run()
+            {
+                sendLoop();
+            }
+        };
+        sender.setDaemon(true);
+        sender.start();
+    }
+
+    /**
+     * Add my status items to a list.
+     */
+    void addStatusItems(Collection<StatusItem> list)
+    {
+        list.add(connection);
+        list.add(depth);
+        list.add(dropped);
+        list.add(spilled);
+        list.add(reconnects);
+    }
+
+    /*------------------------------------------------------------------
+     * The pipeline thread calls these.
+     *------------------------------------------------------------------*/
+
+    public void write(int b) throws IOException
+    {
+        if (!current.hasRemaining()) handOff();
+        current.put((byte)b);
+    }
+
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (!current.hasRemaining()) handOff();
+            int n = Math.min(length,current.remaining());
+            current.put(data,offset,n);
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Copy buffers into my buffers. A channel uses this for a gathering
+     * write of annotation and units.
+     */
+    void write(ByteBuffer[] data, int length) throws IOException
+    {
+        for (int n = 0; n < length; n++)
+        {
+            ByteBuffer b = data[n];
+            while (b.hasRemaining())
+            {
+                if (!current.hasRemaining()) handOff();
+                if (b.remaining() <= current.remaining())
+                {
+                    current.put(b);
+                }
+                else
+                {
+                    int limit = b.limit();
+                    b.limit(b.position() + current.remaining());
+                    current.put(b);
+                    b.limit(limit);
+                }
+            }
+        }
+    }
+
+    /**
+     * I queue what I have, but I do not wait for it to be sent.
+     */
+    public void flush() throws IOException
+    {
+        if (current.position() > 0) handOff();
+    }
+
+    /**
+     * Queue what I have, give the sender a while to drain the queue, and
+     * close the socket.
+     */
+    public void close() throws IOException
+    {
+        if (closing) return;
+        flush();
+        closing = true;
+        try
+        {
+            sender.join(drainMillis);
+        }
+        catch (InterruptedException ie)
+        {
+            throw new InterruptedIOException();
+        }
+        if (sender.isAlive())
+        {
+            //The consumer is gone or too slow. I give up on the rest.
+            sender.interrupt();
+            try { sender.join(); } catch (InterruptedException ie) { }
+        }
+        closeSpill();
+    }
+
+    /**
+     * Put the current buffer on the queue and get an empty one.
+     */
+    private void handOff() throws IOException
+    {
+        current.flip();
+        boolean queued = false;
+        synchronized (lock)
+        {
+            if (!spilling)
+            {
+                queued = queue.offer(current);
+            }
+            if (!queued && policy.equals(SPILL))
+            {
+                if (spillWrite - spillRead + current.remaining() <= maxSpillBytes)
+                {
+                    spill(current);
+                    spilling = true;
+                }
+                else
+                {
+                    dropped.value += current.remaining();
+                }
+                current.clear();
+                return;
+            }
+        }
+
+        if (!queued)
+        {
+            if (policy.equals(DROP))
+            {
+                dropped.value += current.remaining();
+                current.clear();
+                return;
+            }
+            try
+            {
+                queue.put(current);
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+        depth.value = queue.size();
+
+        current = free.poll();
+        if (current == null)
+        {
+            try
+            {
+                current = free.take();
+            }
+            catch (InterruptedException ie)
+            {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+
+    /**
+     * Append a buffer to the spill file. I hold the lock.
+     */
+    private void spill(ByteBuffer buffer) throws IOException
+    {
+        if (spillFile == null)
+        {
+            spillName = File.createTempFile("rt-stps-socket",null,spillDirectory);
+            spillName.deleteOnExit();
+            spillFile = new RandomAccessFile(spillName,"rw");
+        }
+        FileChannel fc = spillFile.getChannel();
+        int limit = buffer.limit();
+        while (buffer.position() < limit)
+        {
+            //I write no further than the end of the ring.
+            long at = spillWrite % maxSpillBytes;
+            buffer.limit((int)Math.min(limit,buffer.position() + (maxSpillBytes - at)));
+            spillWrite += fc.write(buffer,at);
+            buffer.limit(limit);
+        }
+        spilled.value = spillWrite - spillRead;
+    }
+
+    private void closeSpill()
+    {
+        synchronized (lock)
+        {
+            if (spillFile == null) return;
+            try { spillFile.close(); } catch (IOException ioe) { }
+            spillName.delete();
+            spillFile = null;
+        }
+    }
+
+    /*------------------------------------------------------------------
+     * The sender thread calls these.
+     *------------------------------------------------------------------*/
+
+    private void sendLoop()
+    {
+        ArrayList<ByteBuffer> batch = new ArrayList<ByteBuffer>(GATHER);
+        ByteBuffer spillBuffer = null;
+        long backoff = minBackoffMillis;
+
+        try
+        {
+            while (true)
+            {
+                if (batch.isEmpty())
+                {
+                    queue.drainTo(batch,GATHER);
+                    depth.value = queue.size();
+                }
+                if (batch.isEmpty() && spilling)
+                {
+                    if (spillBuffer == null)
+                    {
+                        spillBuffer = ByteBuffer.allocateDirect(bufferSize * GATHER);
+                    }
+                    readSpill(spillBuffer);
+                    batch.add(spillBuffer);
+                }
+                if (batch.isEmpty())
+                {
+                    if (closing) break;
+                    ByteBuffer b = queue.poll(POLL_MILLIS,TimeUnit.MILLISECONDS);
+                    if (b != null) batch.add(b);
+                    continue;
+                }
+
+                if (channel == null)
+                {
+                    if (!connect())
+                    {
+                        Thread.sleep(backoff);
+                        backoff = Math.min(maxBackoffMillis,backoff * 2L);
+                        continue;
+                    }
+                    backoff = minBackoffMillis;
+                }
+
+                ByteBuffer[] array = batch.toArray(new ByteBuffer[batch.size()]);
+                try
+                {
+                    while (array[array.length - 1].hasRemaining())
+                    {
+                        channel.write(array);
+                    }
+                }
+                catch (IOException ioe)
+                {
+                    disconnect();
+                    for (int n = 0; n < array.length; n++)
+                    {
+                        dropped.value += array[n].remaining();
+                    }
+                }
+                recycle(batch,spillBuffer);
+            }
+        }
+        catch (InterruptedException ie)
+        {
+        }
+
+        for (int n = 0; n < batch.size(); n++)
+        {
+            dropped.value += batch.get(n).remaining();
+        }
+        recycle(batch,spillBuffer);
+        disconnect();
+        connection.value = "closed";
+    }
+
+    /**
+     * Move the next part of the spill file into a buffer. When the spill
+     * file is empty, I stop spilling.
+     */
+    private void readSpill(ByteBuffer buffer)
+    {
+        buffer.clear();
+        synchronized (lock)
+        {
+            try
+            {
+                long available = spillWrite - spillRead;
+                if (available < buffer.capacity())
+                {
+                    buffer.limit((int)available);
+                }
+                FileChannel fc = spillFile.getChannel();
+                int limit = buffer.limit();
+                while (buffer.position() < limit)
+                {
+                    long at = spillRead % maxSpillBytes;
+                    buffer.limit((int)Math.min(limit,buffer.position() + (maxSpillBytes - at)));
+                    int n = fc.read(buffer,at);
+                    buffer.limit(limit);
+                    if (n < 0) break;
+                    spillRead += n;
+                }
+            }
+            catch (IOException ioe)
+            {
+                //I lose the rest of the spill file.
+                dropped.value += spillWrite - spillRead;
+                spillRead = spillWrite;
+            }
+            if (spillRead == spillWrite)
+            {
+                spillRead = spillWrite = 0L;
+                spilling = false;
+            }
+            spilled.value = spillWrite - spillRead;
+        }
+        buffer.flip();
+    }
+
+    private void recycle(ArrayList<ByteBuffer> batch, ByteBuffer spillBuffer)
+    {
+        for (int n = 0; n < batch.size(); n++)
+        {
+            ByteBuffer b = batch.get(n);
+            if (b != spillBuffer)
+            {
+                b.clear();
+                free.offer(b);
+            }
+        }
+        batch.clear();
+    }
+
+    private boolean connect()
+    {
+        try
+        {
+            SocketChannel sc = SocketChannel.open();
+            try
+            {
+                if (sendBufferSize > sc.socket().getSendBufferSize())
+                {
+                    sc.socket().setSendBufferSize(sendBufferSize);
+                }
+                sc.socket().connect(address,CONNECT_TIMEOUT_MILLIS);
+            }
+            catch (IOException ioe)
+            {
+                sc.close();
+                throw ioe;
+            }
+            channel = sc;
+            if (connected) ++reconnects.value;
+            connected = true;
+            connection.value = "connected";
+            return true;
+        }
+        catch (IOException ioe)
+        {
+            connection.value = "disconnected: " + ioe.getMessage();
+            return false;
+        }
+    }
+
+    private void disconnect()
+    {
+        if (channel == null) return;
+        try { channel.close(); } catch (IOException ioe) { }
+        channel = null;
+        connection.value = "disconnected";
+    }
+}
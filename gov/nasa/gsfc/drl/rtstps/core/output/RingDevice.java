@@ -0,0 +1,254 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+import gov.nasa.gsfc.drl.rtstps.core.Convert;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This device publishes units to a memory-mapped ring file, so processes on
+ * the same host can read them without a socket. Each unit or packet, with
+ * its annotation, is one record. The file layout and a reader are in
+ * RingReader. I never wait for readers; when the ring is full, I overwrite
+ * the oldest records.
+ * <p>
+ * Setup attributes:
+ * <br>directory -- where the ring file goes. The default is /dev/shm if it
+ *          exists, so the ring stays in memory, or else the temp directory.
+ *          The configuration's output directory, if it has one, overrides
+ *          it.
+ * <br>filename -- the ring file. The default is the channel label plus
+ *          ".ring".
+ * <br>sizeMb=64 -- the size of the data area.
+ *
+ */
+class RingDevice extends AbstractOutputDevice
+{
+    private final File file;
+    private final RandomAccessFile raf;
+    private final MappedByteBuffer map;
+    private final long capacity;
+
+    /*
+     * Only the pipeline thread uses these. The header has copies.
+     */
+    private long writePosition = 0L;
+    private long nextSequence = 0L;
+    private long oldestPosition = 0L;
+    private long oldestSequence = 0L;
+
+    private final LongStatusItem records = new LongStatusItem("Ring Records");
+    private final LongStatusItem overwritten = new LongStatusItem("Ring Overwritten");
+    private final LongStatusItem laps = new LongStatusItem("Ring Laps");
+
+    /**
+     * Create a ring device.
+     * @param override If not null, the ring file goes in this directory
+     *          instead of the one in the setup.
+     */
+    RingDevice(org.w3c.dom.Element element, File override)
+            throws RtStpsException
+    {
+        String directory = element.getAttribute("directory");
+        if (override != null)
+        {
+            directory = override.getPath();
+        }
+        else if (directory.length() == 0)
+        {
+            directory = new File("/dev/shm").isDirectory()? "/dev/shm" :
+                    System.getProperty("java.io.tmpdir");
+        }
+        String filename = element.getAttribute("filename");
+        if (filename.length() == 0)
+        {
+            filename = element.getAttribute("label") + ".ring";
+        }
+        int sizeMb = Convert.toInteger(element,"sizeMb",64,1,2047);
+        capacity = sizeMb * 1048576L - RingReader.HEADER_SIZE;
+        file = new File(directory,filename);
+
+        try
+        {
+            raf = new RandomAccessFile(file,"rw");
+            raf.setLength(RingReader.HEADER_SIZE + capacity);
+            map = raf.getChannel().map(FileChannel.MapMode.READ_WRITE,0L,
+                    RingReader.HEADER_SIZE + capacity);
+        }
+        catch (IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+
+        //A reader of an earlier ring in this file sees the new epoch and
+        //starts over. I write it last.
+        long epoch = System.currentTimeMillis();
+        if (epoch == map.getLong(RingReader.EPOCH_OFFSET)) ++epoch;
+        map.putInt(RingReader.MAGIC_OFFSET,RingReader.MAGIC);
+        map.putInt(RingReader.VERSION_OFFSET,RingReader.VERSION);
+        map.putLong(RingReader.CAPACITY_OFFSET,capacity);
+        map.putInt(RingReader.STATE_OFFSET,RingReader.STATE_WRITING);
+        map.putLong(RingReader.OLDEST_SEQUENCE_OFFSET,0L);
+        map.putLong(RingReader.OLDEST_POSITION_OFFSET,0L);
+        publish();
+        map.putLong(RingReader.EPOCH_OFFSET,epoch);
+
+        output = new DataOutputStream(new OutputStream()
+        {
+            public void write(int b) throws IOException
+            {
+                write(new byte[] {(byte)b},0,1);
+            }
+
+            public void write(byte[] data, int offset, int length)
+                    throws IOException
+            {
+                RingDevice.this.write(new ByteBuffer[] {
+                        ByteBuffer.wrap(data,offset,length)},1);
+            }
+        });
+
+        records.setClearable(false);
+        laps.setClearable(false);
+    }
+
+    /**
+     * Each write is one record, so a channel gives me one unit at a time.
+     */
+    boolean isRecordOriented()
+    {
+        return true;
+    }
+
+    /**
+     * Write the buffers as one record.
+     */
+    void write(ByteBuffer[] data, int length) throws IOException
+    {
+        int payload = 0;
+        for (int n = 0; n < length; n++)
+        {
+            payload += data[n].remaining();
+        }
+        int size = RingReader.RECORD_HEADER_SIZE + RingReader.align(payload);
+        if (size > capacity / 4)
+        {
+            throw new IOException("A " + payload + " byte record is too big for ring " +
+                    file);
+        }
+
+        int offset = (int)(writePosition % capacity);
+        long start = writePosition;
+        if (size > capacity - offset)
+        {
+            start += capacity - offset;
+        }
+        reclaim(start + size);
+
+        if (start != writePosition)
+        {
+            map.putInt(RingReader.HEADER_SIZE + offset,RingReader.WRAP);
+            offset = 0;
+            ++laps.value;
+        }
+
+        int p = RingReader.HEADER_SIZE + offset;
+        map.putInt(p,payload);
+        map.putInt(p + 4,0);
+        map.putLong(p + 8,nextSequence);
+        p += RingReader.RECORD_HEADER_SIZE;
+        for (int n = 0; n < length; n++)
+        {
+            ByteBuffer b = data[n];
+            int k = b.remaining();
+            map.position(p);
+            map.put(b);
+            p += k;
+        }
+        for (int end = RingReader.HEADER_SIZE + offset + size; p < end; p++)
+        {
+            map.put(p,(byte)0);
+        }
+
+        writePosition = start + size;
+        ++nextSequence;
+        ++records.value;
+        publish();
+    }
+
+    /**
+     * Move the oldest position past every record that lies before the end
+     * of the next record minus one lap, and tell readers before I overwrite
+     * them.
+     */
+    private void reclaim(long end)
+    {
+        long limit = end - capacity;
+        if (oldestPosition >= limit) return;
+        while (oldestPosition < limit && oldestPosition < writePosition)
+        {
+            int offset = (int)(oldestPosition % capacity);
+            int length = map.getInt(RingReader.HEADER_SIZE + offset);
+            if (length == RingReader.WRAP)
+            {
+                oldestPosition += capacity - offset;
+            }
+            else
+            {
+                oldestPosition += RingReader.RECORD_HEADER_SIZE +
+                        RingReader.align(length);
+                ++oldestSequence;
+                ++overwritten.value;
+            }
+        }
+        map.putLong(RingReader.OLDEST_SEQUENCE_OFFSET,oldestSequence);
+        map.putLong(RingReader.OLDEST_POSITION_OFFSET,oldestPosition);
+        RingReader.fence = 0;
+    }
+
+    /**
+     * Make the records I wrote visible to readers.
+     */
+    private void publish()
+    {
+        RingReader.fence = 0;
+        map.putLong(RingReader.NEXT_SEQUENCE_OFFSET,nextSequence);
+        map.putLong(RingReader.WRITE_POSITION_OFFSET,writePosition);
+    }
+
+    void addStatusItems(java.util.Collection<StatusItem> list)
+    {
+        list.add(records);
+        list.add(overwritten);
+        list.add(laps);
+    }
+
+    /**
+     * I mark the ring closed but leave the file, so readers can finish.
+     */
+    void shutdown() throws RtStpsException
+    {
+        map.putInt(RingReader.STATE_OFFSET,RingReader.STATE_CLOSED);
+        try
+        {
+            raf.close();
+        }
+        catch (IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+}
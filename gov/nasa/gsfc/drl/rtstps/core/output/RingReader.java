@@ -0,0 +1,398 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class reads a ring file that a ring device writes. A ring file is a
+ * memory-mapped file that holds the most recent units or packets from one
+ * channel. One RT-STPS channel writes it, and any number of processes on the
+ * same host may read it at the same time. A reader maps the file and gets
+ * each record as a view of the mapped memory, so there is no copy and no
+ * socket. The writer never waits for readers. If a reader falls a full ring
+ * behind, the writer overwrites records it has not read, and the reader's
+ * overrun policy decides what happens.
+ * <p>
+ * All numbers are big-endian. The file starts with a header of HEADER_SIZE
+ * bytes:
+ * <pre>
+ *   0  int   magic 0x52545247 ("RTRG")
+ *   4  int   version 1
+ *   8  long  capacity of the data area in bytes (a multiple of 8)
+ *  16  long  epoch. A writer sets it when it starts. If it changes, the
+ *            writer restarted and everything else starts over.
+ *  24  int   state: 1 writing, 2 closed
+ *  64  long  write position. Positions count bytes from the start of the
+ *            epoch and never wrap. This is the end of the last record.
+ *  72  long  the sequence number the next record will have
+ * 128  long  oldest position: the oldest record the writer has not
+ *            overwritten or begun to overwrite
+ * 136  long  the sequence number of the oldest record
+ * </pre>
+ * Position p is at byte HEADER_SIZE + (p % capacity) in the file. Each
+ * record starts on an 8-byte boundary:
+ * <pre>
+ *   0  int   payload length, or -1 to mark that the rest of the lap is
+ *            empty and the next record is at the start of the data area
+ *   4  int   zero
+ *   8  long  sequence number. The first record of an epoch is 0.
+ *  16        payload, padded with zeros to a multiple of 8 bytes
+ * </pre>
+ * The payload is one unit or packet with its annotation, exactly as a file
+ * device would write it.
+ * <p>
+ * The writer writes a record, then the write position. Before it overwrites
+ * old records, it first moves the oldest position past them. So a reader
+ * trusts a record if the record is before the write position, and it is
+ * still at or after the oldest position when the reader is done with it.
+ * Java 8 has no portable memory fence for mapped memory, so both sides put a
+ * volatile access between the data and the positions. HotSpot orders mapped
+ * memory around it.
+ *
+ */
+public final class RingReader
+{
+    public static final int MAGIC = 0x52545247;
+    public static final int VERSION = 1;
+    public static final int HEADER_SIZE = 4096;
+    public static final int RECORD_HEADER_SIZE = 16;
+    public static final int WRAP = -1;
+    public static final int STATE_WRITING = 1;
+    public static final int STATE_CLOSED = 2;
+
+    static final int MAGIC_OFFSET = 0;
+    static final int VERSION_OFFSET = 4;
+    static final int CAPACITY_OFFSET = 8;
+    static final int EPOCH_OFFSET = 16;
+    static final int STATE_OFFSET = 24;
+    static final int WRITE_POSITION_OFFSET = 64;
+    static final int NEXT_SEQUENCE_OFFSET = 72;
+    static final int OLDEST_POSITION_OFFSET = 128;
+    static final int OLDEST_SEQUENCE_OFFSET = 136;
+
+    /**
+     * Overrun policy. After an overrun, I go on with the oldest record the
+     * writer still has. I lose as little as possible, but I stay behind.
+     */
+    public static final int SKIP_TO_OLDEST = 0;
+
+    /**
+     * Overrun policy. After an overrun, I go on with the next new record.
+     * I catch up at once.
+     */
+    public static final int SKIP_TO_NEWEST = 1;
+
+    /**
+     * Overrun policy. An overrun is an error. next() throws an IOException.
+     */
+    public static final int FAIL = 2;
+
+    /**
+     * A volatile access that orders mapped memory.
+     */
+    static volatile int fence;
+
+    private final File file;
+    private final int overrunPolicy;
+    private final boolean fromOldest;
+
+    private RandomAccessFile raf;
+    private MappedByteBuffer map;
+    private long capacity;
+    private long epoch;
+
+    private long readPosition;
+    private long lastPosition = -1L;
+    private long lastSequence = -1L;
+    private long expectedSequence = -1L;
+
+    private long records = 0L;
+    private long lostRecords = 0L;
+    private long overruns = 0L;
+    private long restarts = 0L;
+
+    /**
+     * Open a ring file.
+     * @param file The ring file.
+     * @param overrunPolicy SKIP_TO_OLDEST, SKIP_TO_NEWEST, or FAIL
+     * @param fromOldest If true, I start with the oldest record in the ring.
+     *          If false, I start with the next new record.
+     */
+    public RingReader(File file, int overrunPolicy, boolean fromOldest)
+            throws IOException
+    {
+        if (overrunPolicy < SKIP_TO_OLDEST || overrunPolicy > FAIL)
+        {
+            throw new IllegalArgumentException("bad overrun policy " + overrunPolicy);
+        }
+        this.file = file;
+        this.overrunPolicy = overrunPolicy;
+        this.fromOldest = fromOldest;
+        mapFile();
+        readPosition = fromOldest? map.getLong(OLDEST_POSITION_OFFSET) :
+                map.getLong(WRITE_POSITION_OFFSET);
+    }
+
+    /**
+     * Open a ring file and start with the next new record. I skip to the
+     * oldest record after an overrun.
+     */
+    public RingReader(File file) throws IOException
+    {
+        this(file,SKIP_TO_OLDEST,false);
+    }
+
+    private void mapFile() throws IOException
+    {
+        raf = new RandomAccessFile(file,"r");
+        FileChannel channel = raf.getChannel();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        channel.read(header,0L);
+        header.flip();
+        if (header.remaining() < HEADER_SIZE || header.getInt(MAGIC_OFFSET) != MAGIC)
+        {
+            raf.close();
+            throw new IOException(file + " is not a ring file.");
+        }
+        if (header.getInt(VERSION_OFFSET) != VERSION)
+        {
+            raf.close();
+            throw new IOException(file + " is ring version " +
+                    header.getInt(VERSION_OFFSET) + ", not " + VERSION);
+        }
+        capacity = header.getLong(CAPACITY_OFFSET);
+        map = channel.map(FileChannel.MapMode.READ_ONLY,0L,HEADER_SIZE + capacity);
+        epoch = map.getLong(EPOCH_OFFSET);
+    }
+
+    /**
+     * Get the next record if there is one.
+     * @return A read-only view of the record's payload in the mapped file,
+     *          or null if there is no new record. The view is good until the
+     *          writer laps it. Call isValid() when you are done with it to
+     *          make sure it was not overwritten while you used it.
+     * @throws IOException if the policy is FAIL and the writer overran me.
+     */
+    public ByteBuffer next() throws IOException
+    {
+        while (true)
+        {
+            if (map.getLong(EPOCH_OFFSET) != epoch) restart();
+
+            long writePosition = map.getLong(WRITE_POSITION_OFFSET);
+            int f = fence;
+            if (readPosition >= writePosition) return null;
+
+            if (readPosition < map.getLong(OLDEST_POSITION_OFFSET))
+            {
+                overrun();
+                continue;
+            }
+
+            int offset = (int)(readPosition % capacity);
+            int length = map.getInt(HEADER_SIZE + offset);
+            if (length == WRAP)
+            {
+                readPosition += capacity - offset;
+                continue;
+            }
+            long sequence = map.getLong(HEADER_SIZE + offset + 8);
+            int recordSize = RECORD_HEADER_SIZE + align(length);
+
+            //The record header is good only if the writer did not reach it
+            //while I read it. A volatile write keeps my reads before it.
+            fence = 0;
+            if (length < 0 || recordSize > capacity - offset ||
+                    readPosition < map.getLong(OLDEST_POSITION_OFFSET))
+            {
+                overrun();
+                continue;
+            }
+
+            ByteBuffer view = map.duplicate();
+            view.position(HEADER_SIZE + offset + RECORD_HEADER_SIZE);
+            view.limit(HEADER_SIZE + offset + RECORD_HEADER_SIZE + length);
+            view = view.slice().asReadOnlyBuffer();
+
+            if (expectedSequence >= 0L && sequence > expectedSequence)
+            {
+                lostRecords += sequence - expectedSequence;
+            }
+            expectedSequence = sequence + 1L;
+            lastSequence = sequence;
+            lastPosition = readPosition;
+            readPosition += recordSize;
+            ++records;
+            return view;
+        }
+    }
+
+    /**
+     * Wait for the next record.
+     * @param timeoutMillis How long to wait. Zero waits forever.
+     * @return A view of the record, or null if none came in time or the
+     *          writer closed the ring.
+     */
+    public ByteBuffer next(long timeoutMillis) throws IOException
+    {
+        long deadline = System.nanoTime() + timeoutMillis * 1000000L;
+        long park = 1000L;
+        while (true)
+        {
+            ByteBuffer view = next();
+            if (view != null) return view;
+            if (isWriterClosed()) return null;
+            if (timeoutMillis > 0L && System.nanoTime() - deadline >= 0L) return null;
+            LockSupport.parkNanos(park);
+            if (park < 1000000L) park *= 2L;
+        }
+    }
+
+    /**
+     * Copy the next record into an array.
+     * @return The payload length, 0 if there is no new record, or -1 if the
+     *          array is too small, in which case I do not consume the record.
+     */
+    public int next(byte[] data) throws IOException
+    {
+        while (true)
+        {
+            long position = readPosition;
+            long expected = expectedSequence;
+            long lost = lostRecords;
+            ByteBuffer view = next();
+            if (view == null) return 0;
+            int length = view.remaining();
+            if (length > data.length)
+            {
+                readPosition = position;
+                expectedSequence = expected;
+                lostRecords = lost;
+                --records;
+                return -1;
+            }
+            view.get(data,0,length);
+            if (isValid()) return length;
+            expectedSequence = lastSequence;
+            --records;
+            overrun();
+        }
+    }
+
+    /**
+     * Find out if the writer has overwritten the last record next() gave
+     * me. Check this after you use the record's view.
+     */
+    public boolean isValid()
+    {
+        fence = 0;
+        return lastPosition >= 0L && map.getLong(EPOCH_OFFSET) == epoch &&
+                lastPosition >= map.getLong(OLDEST_POSITION_OFFSET);
+    }
+
+    /**
+     * Get the sequence number of the last record next() gave me.
+     */
+    public long getSequence()
+    {
+        return lastSequence;
+    }
+
+    /**
+     * Get the number of records I read.
+     */
+    public long getRecords()
+    {
+        return records;
+    }
+
+    /**
+     * Get the number of records the writer overwrote before I read them.
+     */
+    public long getLostRecords()
+    {
+        return lostRecords;
+    }
+
+    /**
+     * Get the number of times the writer overran me.
+     */
+    public long getOverruns()
+    {
+        return overruns;
+    }
+
+    /**
+     * Get the number of times the writer restarted the ring.
+     */
+    public long getRestarts()
+    {
+        return restarts;
+    }
+
+    /**
+     * Get how far behind the writer I am, in bytes.
+     */
+    public long getLag()
+    {
+        return Math.max(0L,map.getLong(WRITE_POSITION_OFFSET) - readPosition);
+    }
+
+    /**
+     * Find out if the writer closed the ring.
+     */
+    public boolean isWriterClosed()
+    {
+        return map.getInt(STATE_OFFSET) == STATE_CLOSED &&
+                readPosition >= map.getLong(WRITE_POSITION_OFFSET);
+    }
+
+    public void close() throws IOException
+    {
+        raf.close();
+    }
+
+    private void overrun() throws IOException
+    {
+        ++overruns;
+        if (overrunPolicy == FAIL)
+        {
+            throw new IOException("The writer overran the reader of " + file);
+        }
+        if (overrunPolicy == SKIP_TO_NEWEST)
+        {
+            readPosition = map.getLong(WRITE_POSITION_OFFSET);
+        }
+        else
+        {
+            readPosition = map.getLong(OLDEST_POSITION_OFFSET);
+        }
+    }
+
+    /**
+     * The writer restarted. I map the file again and start over.
+     */
+    private void restart() throws IOException
+    {
+        ++restarts;
+        raf.close();
+        mapFile();
+        readPosition = fromOldest? 0L : map.getLong(WRITE_POSITION_OFFSET);
+        expectedSequence = -1L;
+        lastPosition = -1L;
+    }
+
+    static int align(int length)
+    {
+        return (length + 7) & ~7;
+    }
+}
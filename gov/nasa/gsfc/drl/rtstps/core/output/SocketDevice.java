@@ -6,6 +6,7 @@ All rights reserved.
 package gov.nasa.gsfc.drl.rtstps.core.output;
 import gov.nasa.gsfc.drl.rtstps.core.Convert;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
 
 import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
@@ -13,11 +14,24 @@ import java.io.OutputStream;
 
 /**
  * This device writes units to a tcp/ip socket.
+ * <p>
+ * If the setup element has asynchronous="true", the pipeline does not write
+ * to the socket itself. It queues buffers for a sender thread, which
+ * connects in the background and reconnects when the consumer goes away
+ * (see QueuedSocketStream). These attributes then apply:
+ * <br>queueDepth=256 -- the number of bufferSize buffers in the queue.
+ * <br>overflow=DROP -- BLOCK, DROP, or SPILL, when the queue is full.
+ * <br>maxSpillMb=1024 -- the most the SPILL file holds. It is a ring, so the
+ *          file never grows past this.
+ * <br>spillDirectory -- where the SPILL file goes.
+ * <br>minBackoffMs=500, maxBackoffSeconds=30 -- the reconnect backoff.
+ * <br>drainSeconds=10 -- how long shutdown waits for the queue to drain.
  * 
  */
 class SocketDevice extends AbstractOutputDevice
 {
     private java.net.Socket socket;
+    private QueuedSocketStream queued = null;
 
     SocketDevice(org.w3c.dom.Element element) throws RtStpsException
     {
@@ -25,6 +39,12 @@ class SocketDevice extends AbstractOutputDevice
         int port = Convert.toInteger(element,"port",4000);
         int bufferSize = Convert.toInteger(element,"bufferSize",8192);
 
+        if (Convert.toBoolean(element,"asynchronous",false))
+        {
+            createQueued(element,host,port,bufferSize);
+            return;
+        }
+
         try
         {
             socket = new java.net.Socket(host,port);
@@ -46,8 +66,58 @@ class SocketDevice extends AbstractOutputDevice
         }
     }
 
+    private void createQueued(org.w3c.dom.Element element, String host,
+            int port, int bufferSize) throws RtStpsException
+    {
+        int queueDepth = Convert.toInteger(element,"queueDepth",256,1);
+        String policy = element.getAttribute("overflow");
+        if (policy.length() == 0) policy = QueuedSocketStream.DROP;
+        if (!policy.equals(QueuedSocketStream.BLOCK) &&
+                !policy.equals(QueuedSocketStream.DROP) &&
+                !policy.equals(QueuedSocketStream.SPILL))
+        {
+            throw new RtStpsException(element.getTagName() +
+                    " attribute overflow must be BLOCK, DROP, or SPILL.");
+        }
+        long maxSpill = Convert.toInteger(element,"maxSpillMb",1024,0) * 1048576L;
+        String dir = element.getAttribute("spillDirectory");
+        java.io.File spillDirectory = (dir.length() == 0)? null : new java.io.File(dir);
+        long minBackoff = Convert.toInteger(element,"minBackoffMs",500,1);
+        long maxBackoff = Convert.toInteger(element,"maxBackoffSeconds",30,1) * 1000L;
+        long drain = Convert.toInteger(element,"drainSeconds",10,0) * 1000L;
+
+        java.net.InetSocketAddress address = new java.net.InetSocketAddress(host,port);
+        queued = new QueuedSocketStream(address,bufferSize,queueDepth,bufferSize,
+                policy,maxSpill,spillDirectory,minBackoff,
+                Math.max(minBackoff,maxBackoff),drain);
+        output = new DataOutputStream(queued);
+    }
+
+    void write(java.nio.ByteBuffer[] data, int length) throws java.io.IOException
+    {
+        if (queued != null) queued.write(data,length);
+        else super.write(data,length);
+    }
+
+    void addStatusItems(java.util.Collection<StatusItem> list)
+    {
+        if (queued != null) queued.addStatusItems(list);
+    }
+
     void shutdown() throws RtStpsException
     {
+        if (queued != null)
+        {
+            try
+            {
+                output.close();
+            }
+            catch (java.io.IOException ioe)
+            {
+                throw new RtStpsException(ioe);
+            }
+            return;
+        }
         try
         {
             output.flush();
@@ -67,6 +67,7 @@ public final class UnitChannel extends AbstractUnitChannel
 
         statusItemList = new java.util.ArrayList<StatusItem>(3);
         statusItemList.add(count);
+        unitCount = count;
         statusItemList.add(outputErrorCount);
         statusItemList.add(dicardedCount);
 
@@ -76,27 +77,6 @@ public final class UnitChannel extends AbstractUnitChannel
      */
     public void putUnit(Unit unit) throws RtStpsException
     {
-        if (!unit.isDeleted())
-        {
-            if (consecutiveErrors == CONSECUTIVE_PERMITTED_ERRORS)
-            {
-                ++dicardedCount.value;
-            }
-            else
-            {
-                try
-                {
-                    output.write(unit.getData(),unit.getStartOffset(),
-                            unit.getSize());
-                    ++count.value;
-                    consecutiveErrors = 0;
-                }
-                catch (java.io.IOException e)
-                {
-                    ++outputErrorCount.value;
-                    ++consecutiveErrors;
-                }
-            }
-        }
+        writeUnit(unit);
     }
 }
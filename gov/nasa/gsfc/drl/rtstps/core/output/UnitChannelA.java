@@ -38,28 +38,15 @@ public final class UnitChannelA extends AbstractUnitChannel
      */
     public void putUnit(Unit unit) throws RtStpsException
     {
-        if (!unit.isDeleted())
-        {
-            if (consecutiveErrors == CONSECUTIVE_PERMITTED_ERRORS)
-            {
-                ++dicardedCount.value;
-            }
-            else
-            {
-                try
-                {
-                    writeFrameAnnotation(unit);
-                    output.write(unit.getData(),unit.getStartOffset(),
-                            unit.getSize());
-                    ++count.value;
-                    consecutiveErrors = 0;
-                }
-                catch (java.io.IOException e)
-                {
-                    ++outputErrorCount.value;
-                    ++consecutiveErrors;
-                }
-            }
-        }
+        writeUnit(unit);
+    }
+
+    /**
+     * Add a unit and its annotation to the gather list.
+     */
+    protected void gatherUnit(Unit unit)
+    {
+        gatherFrameAnnotation(unit);
+        gatherData(unit.getData(),unit.getStartOffset(),unit.getSize());
     }
 }
@@ -0,0 +1,250 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output.packetlog;
+import gov.nasa.gsfc.drl.rtstps.core.Configuration;
+import gov.nasa.gsfc.drl.rtstps.core.Convert;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+
+/**
+ * This RT-STPS node writes packets to an append-only packet log. The log is
+ * a series of segment files, each a plain packet file that any packet tool
+ * can read, and each with a sparse index of application id and packet time
+ * to byte offset (see SegmentIndex). PacketLogReader uses the indexes to
+ * read one application id in a time range without scanning whole files.
+ * <p>
+ * Segment files are named label.000001.pkt, label.000002.pkt, and so on, and
+ * each index has the same name with ".idx". When I start, I repair the last
+ * segment of an earlier log with the same label if its writer crashed, and I
+ * continue the log with the next segment.
+ * <p>
+ * Setup attributes:
+ * <br>label -- the link name and the log name.
+ * <br>path -- the log directory. The output directory override replaces it.
+ * <br>segmentMb=256 -- the most bytes in a segment.
+ * <br>indexKb=64 -- the most segment bytes between indexed packets of one
+ *          application id.
+ * <br>timeOffset=6, timeSize=8 -- where the packet time is in each packet.
+ * <br>flushMs=1000 -- the most time I keep written packets and index entries
+ *          in memory before I flush them to the files.
+ *
+ */
+public final class PacketLogOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
+        implements gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketReceiver, Cloneable
+{
+    /**
+     * This is the class name for this RT-STPS node type, which is also the
+     * element name. It is not necessarily the link name, which is the name
+     * of one particular object.
+     */
+    public static final String CLASSNAME = "packetlog";
+
+    private File directory;
+    private String name;
+    private long segmentBytes;
+    private long indexBytes;
+    private int timeOffset;
+    private int timeSize;
+    private int sequence;
+    private long flushNanos;
+    private long lastFlush;
+
+    private SegmentIndex index = null;
+    private OutputStream segment = null;
+    private DataOutputStream indexOutput = null;
+
+    private LongStatusItem packetsWritten;
+    private LongStatusItem segments;
+    private LongStatusItem indexEntries;
+
+    /**
+     * A null constructor.
+     */
+    public PacketLogOutput()
+    {
+        super(CLASSNAME);
+    }
+
+    /**
+     * Configure from an XML document. You cannot assume that any other stps
+     * nodes have been created.
+     */
+    public void load(org.w3c.dom.Element element,
+            Configuration configuration) throws RtStpsException
+    {
+        name = element.getAttribute("label");
+        super.setLinkName(name);
+
+        directory = new File(element.getAttribute("path"));
+        if (configuration.getOutputDirectory() != null)
+        {
+            directory = configuration.getOutputDirectory();
+        }
+        segmentBytes = Convert.toInteger(element,"segmentMb",256,1,2047) * 1048576L;
+        indexBytes = Convert.toInteger(element,"indexKb",64,1) * 1024L;
+        timeOffset = Convert.toInteger(element,"timeOffset",6,0,65535);
+        timeSize = Convert.toInteger(element,"timeSize",8,1,8);
+        flushNanos = Convert.toInteger(element,"flushMs",1000,1) * 1000000L;
+
+        statusItemList = new java.util.ArrayList<StatusItem>(3);
+        packetsWritten = new LongStatusItem("Packets Written");
+        segments = new LongStatusItem("Segments");
+        indexEntries = new LongStatusItem("Index Entries");
+        statusItemList.add(packetsWritten);
+        unitCount = packetsWritten;
+        statusItemList.add(segments);
+        statusItemList.add(indexEntries);
+
+        try
+        {
+            File last = PacketLogReader.findLastSegment(directory,name);
+            sequence = 1;
+            if (last != null)
+            {
+                sequence = PacketLogReader.getSequence(last,name) + 1;
+                repair(last);
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+
+    /**
+     * If the writer of a segment crashed, I cut off any partial packet at
+     * its end and rebuild its index.
+     */
+    private void repair(File file) throws IOException
+    {
+        SegmentIndex old = SegmentIndex.load(file,timeOffset,timeSize,indexBytes);
+        if (old.isComplete()) return;
+        RandomAccessFile raf = new RandomAccessFile(file,"rw");
+        try
+        {
+            raf.setLength(old.getLength());
+        }
+        finally
+        {
+            raf.close();
+        }
+        old.write();
+    }
+
+    /**
+     * Finish the setup. When this method is called, you may assume all nodes
+     * have been created and exist by name in the map, and all standard links
+     * have been resolved. This is a last chance to prepare for data flow.
+     */
+    public void finishSetup(Configuration configuration) throws RtStpsException
+    {
+    }
+
+    /**
+     * Give an array of packets to this PacketReceiver.
+     */
+    public void putPackets(Packet[] packets) throws RtStpsException
+    {
+        for (int n = 0; n < packets.length; n++)
+        {
+            putPacket(packets[n]);
+        }
+    }
+
+    /**
+     * Give a packet to this PacketReceiver.
+     */
+    public synchronized void putPacket(Packet packet) throws RtStpsException
+    {
+        if (packet.isDeleted()) return;
+        int size = packet.getSize();
+        try
+        {
+            if (index != null && index.getLength() > 0L &&
+                    index.getLength() + size > segmentBytes)
+            {
+                closeSegment();
+            }
+            if (index == null) openSegment();
+
+            long offset = index.getLength();
+            byte[] data = packet.getData();
+            int start = packet.getStartOffset();
+            segment.write(data,start,size);
+            if (index.add(data,start,size,offset))
+            {
+                int apid = packet.getApplicationId();
+                SegmentIndex.writeEntry(indexOutput,apid,SegmentIndex.INDEXED,
+                        index.getLastTime(apid),offset);
+                ++indexEntries.value;
+            }
+            ++packetsWritten.value;
+
+            //I flush the segment before the index, so that after a crash
+            //the index rarely points past the end of the segment.
+            long now = System.nanoTime();
+            if (now - lastFlush >= flushNanos)
+            {
+                segment.flush();
+                indexOutput.flush();
+                lastFlush = now;
+            }
+        }
+        catch (IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+
+    private void openSegment() throws IOException
+    {
+        File file = PacketLogReader.getSegmentFile(directory,name,sequence++);
+        segment = new BufferedOutputStream(new FileOutputStream(file),65536);
+        index = new SegmentIndex(file,timeOffset,timeSize,indexBytes);
+        indexOutput = index.create();
+        lastFlush = System.nanoTime();
+        ++segments.value;
+    }
+
+    /**
+     * I close the segment before its index, so a complete index always
+     * describes a complete segment.
+     */
+    private void closeSegment() throws IOException
+    {
+        segment.close();
+        index.close(indexOutput);
+        segment = null;
+        indexOutput = null;
+        index = null;
+    }
+
+    /**
+     * The session is over. I close the current segment.
+     */
+    public synchronized void flush() throws RtStpsException
+    {
+        if (index == null) return;
+        try
+        {
+            closeSegment();
+        }
+        catch (IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+}
@@ -0,0 +1,312 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output.packetlog;
+import gov.nasa.gsfc.drl.rtstps.core.FrameAnnotation;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * This class reads packets from a packet log that a packetlog node writes.
+ * It answers "application id X between times T1 and T2" from the segment
+ * indexes. It skips segments that have no such packets, and in the others
+ * it seeks to the indexed packet before T1 and stops at the indexed packet
+ * after T2.
+ * <p>
+ * Times are raw packet times, the timeSize bytes at timeOffset in each
+ * packet as an unsigned number. If a segment's writer crashed or is still
+ * writing, I index the tail of the segment myself when I load it. Call
+ * refresh() to see packets written since then.
+ *
+ */
+public final class PacketLogReader
+{
+    private final File directory;
+    private final String name;
+    private final int timeOffset;
+    private final int timeSize;
+    private final List<SegmentIndex> indexes = new ArrayList<SegmentIndex>();
+
+    /**
+     * Open a packet log.
+     * @param directory The log directory.
+     * @param name The log name, which is the packetlog node's label.
+     * @param timeOffset The time offset for a segment with no index.
+     * @param timeSize The time size for a segment with no index.
+     */
+    public PacketLogReader(File directory, String name, int timeOffset,
+            int timeSize) throws IOException
+    {
+        this.directory = directory;
+        this.name = name;
+        this.timeOffset = timeOffset;
+        this.timeSize = timeSize;
+        refresh();
+    }
+
+    /**
+     * Open a packet log whose packet time is the 8 bytes after the primary
+     * header.
+     */
+    public PacketLogReader(File directory, String name) throws IOException
+    {
+        this(directory,name,Packet.PRIMARY_HEADER_LENGTH,8);
+    }
+
+    /**
+     * Load the indexes of new segments and of segments that were not
+     * complete the last time.
+     */
+    public void refresh() throws IOException
+    {
+        File[] files = listSegments(directory,name);
+        for (int n = 0; n < files.length; n++)
+        {
+            if (n < indexes.size() && indexes.get(n).isComplete()) continue;
+            SegmentIndex index = SegmentIndex.load(files[n],timeOffset,timeSize,
+                    65536L);
+            if (n < indexes.size()) indexes.set(n,index);
+            else indexes.add(index);
+        }
+    }
+
+    /**
+     * Get the number of segments.
+     */
+    public int getSegmentCount()
+    {
+        return indexes.size();
+    }
+
+    /**
+     * Get the packets of one application id in a time range, in log order.
+     * Each packet is a copy.
+     * @param apid The application id.
+     * @param from The earliest packet time.
+     * @param to The latest packet time.
+     */
+    public Iterator<Packet> find(int apid, long from, long to)
+    {
+        return new Query(apid,from,to);
+    }
+
+    /**
+     * Get the file of a segment.
+     */
+    static File getSegmentFile(File directory, String name, int sequence)
+    {
+        return new File(directory,name + '.' +
+                new java.text.DecimalFormat("000000").format(sequence) +
+                SegmentIndex.SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Get the sequence number of a segment from its file name.
+     */
+    static int getSequence(File segment, String name)
+    {
+        String s = segment.getName();
+        return Integer.parseInt(s.substring(name.length() + 1,
+                s.length() - SegmentIndex.SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Get the segments of a log in order.
+     */
+    static File[] listSegments(File directory, final String name)
+    {
+        File[] files = directory.listFiles(new FilenameFilter()
+        {
+            public boolean accept(File dir, String s)
+            {
+                if (!s.startsWith(name + '.') ||
+                        !s.endsWith(SegmentIndex.SEGMENT_SUFFIX))
+                {
+                    return false;
+                }
+                String number = s.substring(name.length() + 1,
+                        s.length() - SegmentIndex.SEGMENT_SUFFIX.length());
+                if (number.length() == 0) return false;
+                for (int n = 0; n < number.length(); n++)
+                {
+                    if (!Character.isDigit(number.charAt(n))) return false;
+                }
+                return true;
+            }
+        });
+        if (files == null) return new File[0];
+        //The numbers have the same width, so names sort in order.
+        Arrays.sort(files);
+        return files;
+    }
+
+    /**
+     * Get the last segment of a log, or null if there is none.
+     */
+    static File findLastSegment(File directory, String name)
+    {
+        File[] files = listSegments(directory,name);
+        return files.length == 0? null : files[files.length - 1];
+    }
+
+    /**
+     * This iterator reads the packets of one query.
+     */
+    private final class Query implements Iterator<Packet>
+    {
+        private final int apid;
+        private final long from;
+        private final long to;
+        private final byte[] header = new byte[Packet.PRIMARY_HEADER_LENGTH];
+        private int segment = 0;
+        private SegmentIndex index = null;
+        private InputStream in = null;
+        private long position;
+        private long end;
+        private long lastTime;
+        private Packet next = null;
+
+        Query(int apid, long from, long to)
+        {
+            this.apid = apid;
+            this.from = from;
+            this.to = to;
+        }
+
+        public boolean hasNext()
+        {
+            if (next == null)
+            {
+                try
+                {
+                    next = advance();
+                }
+                catch (IOException ioe)
+                {
+                    throw new RuntimeException(ioe);
+                }
+            }
+            return next != null;
+        }
+
+        public Packet next()
+        {
+            if (!hasNext()) throw new NoSuchElementException();
+            Packet packet = next;
+            next = null;
+            return packet;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private Packet advance() throws IOException
+        {
+            while (true)
+            {
+                if (in == null && !open()) return null;
+
+                if (position >= end)
+                {
+                    close();
+                    continue;
+                }
+                if (!readFully(header,0,header.length))
+                {
+                    close();
+                    continue;
+                }
+                int size = Packet.getPacketSize(0,header);
+                position += size;
+                if (Packet.getApplicationId(0,header) != apid)
+                {
+                    skipFully(size - header.length);
+                    continue;
+                }
+
+                Packet packet = new Packet(size);
+                byte[] data = packet.getData();
+                System.arraycopy(header,0,data,0,header.length);
+                if (!readFully(data,header.length,size - header.length))
+                {
+                    close();
+                    continue;
+                }
+                lastTime = index.getTime(data,0,size,lastTime);
+                if (Long.compareUnsigned(lastTime,from) < 0 ||
+                        Long.compareUnsigned(lastTime,to) > 0) continue;
+                packet.setFrameAnnotation(new FrameAnnotation());
+                return packet;
+            }
+        }
+
+        /**
+         * Open the next segment that may have packets for the query.
+         */
+        private boolean open() throws IOException
+        {
+            while (segment < indexes.size())
+            {
+                index = indexes.get(segment++);
+                long[] range = index.find(apid,from,to);
+                if (range == null) continue;
+                FileInputStream fis = new FileInputStream(index.getSegment());
+                position = range[0];
+                end = range[1];
+                fis.getChannel().position(position);
+                in = new BufferedInputStream(fis,65536);
+                lastTime = from;
+                return true;
+            }
+            return false;
+        }
+
+        private void close() throws IOException
+        {
+            in.close();
+            in = null;
+        }
+
+        private boolean readFully(byte[] data, int offset, int length)
+                throws IOException
+        {
+            while (length > 0)
+            {
+                int n = in.read(data,offset,length);
+                if (n < 0) return false;
+                offset += n;
+                length -= n;
+            }
+            return true;
+        }
+
+        private void skipFully(long length) throws IOException
+        {
+            while (length > 0L)
+            {
+                long n = in.skip(length);
+                if (n <= 0L)
+                {
+                    if (in.read() < 0) return;
+                    n = 1L;
+                }
+                length -= n;
+            }
+        }
+    }
+}
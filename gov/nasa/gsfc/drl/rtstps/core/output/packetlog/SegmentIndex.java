@@ -0,0 +1,449 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.output.packetlog;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Iterator;
+import java.util.TreeMap;
+
+/**
+ * This is the sparse index of one segment of a packet log. It maps an
+ * application id and packet time to a byte offset in the segment. I index
+ * the first packet of each application id in the segment, and then the next
+ * packet of that application id after every indexBytes of the segment.
+ * <p>
+ * The index file is big-endian:
+ * <pre>
+ *  int   magic 0x5254504c ("RTPL")
+ *  int   version 1
+ *  int   time offset, the byte in each packet where its time starts
+ *  int   time size in bytes
+ *  then 24-byte entries:
+ *  int   application id
+ *  int   kind: 0 indexed packet, 1 last packet of the application id,
+ *        2 end of segment
+ *  long  packet time (zero for the end entry)
+ *  long  byte offset of the packet (for the end entry, the segment length)
+ * </pre>
+ * The packet time is the timeSize bytes at timeOffset in the packet, as an
+ * unsigned big-endian number, so CDS and CUC times both sort correctly. I
+ * compare times as unsigned longs, so an 8-byte time may use every bit. A
+ * packet without a secondary header has the time of the packet before it
+ * with the same application id.
+ * <p>
+ * The writer adds the last and end entries when it closes a segment. If they
+ * are missing or do not match the segment, the writer crashed, and I rebuild
+ * the rest of the index by scanning the tail of the segment, from the
+ * earliest of the last indexed packets of each application id. The index
+ * file may have reached the disk ahead of the segment, so I drop indexed
+ * entries that point at or past the end of the segment file.
+ *
+ */
+final class SegmentIndex
+{
+    static final int MAGIC = 0x5254504c;
+    static final int VERSION = 1;
+    static final int INDEXED = 0;
+    static final int LAST = 1;
+    static final int END = 2;
+    static final String SEGMENT_SUFFIX = ".pkt";
+    static final String INDEX_SUFFIX = ".idx";
+
+    /**
+     * What I know about one application id in this segment.
+     */
+    static final class Apid
+    {
+        long[] times = new long[16];
+        long[] offsets = new long[16];
+        int count = 0;
+        long minTime = -1L;     //the largest unsigned time
+        long maxTime = 0L;
+        long lastTime = 0L;
+        long lastOffset = -1L;
+
+        void add(long time, long offset)
+        {
+            if (count == times.length)
+            {
+                times = java.util.Arrays.copyOf(times,count * 2);
+                offsets = java.util.Arrays.copyOf(offsets,count * 2);
+            }
+            times[count] = time;
+            offsets[count] = offset;
+            ++count;
+        }
+    }
+
+    private final File segment;
+    private final int timeOffset;
+    private final int timeSize;
+    private final long indexBytes;
+    private final TreeMap<Integer,Apid> apids = new TreeMap<Integer,Apid>();
+    private long length = 0L;
+    private boolean complete = false;
+
+    /**
+     * Create an empty index for a new segment.
+     * @param segment The segment file.
+     * @param timeOffset Where the time starts in each packet.
+     * @param timeSize The number of time bytes, 1-8.
+     * @param indexBytes The most segment bytes between indexed packets of
+     *          one application id.
+     */
+    SegmentIndex(File segment, int timeOffset, int timeSize, long indexBytes)
+    {
+        this.segment = segment;
+        this.timeOffset = timeOffset;
+        this.timeSize = timeSize;
+        this.indexBytes = indexBytes;
+    }
+
+    /**
+     * Get the index file of a segment.
+     */
+    static File getIndexFile(File segment)
+    {
+        String name = segment.getName();
+        name = name.substring(0,name.length() - SEGMENT_SUFFIX.length());
+        return new File(segment.getParentFile(),name + INDEX_SUFFIX);
+    }
+
+    /**
+     * Read a segment's index. If it is incomplete or missing, I rebuild the
+     * rest of it from the segment, but I do not change any file.
+     * @param timeOffset The time offset to use if there is no index file.
+     * @param timeSize The time size to use if there is no index file.
+     */
+    static SegmentIndex load(File segment, int timeOffset, int timeSize,
+            long indexBytes) throws IOException
+    {
+        File file = getIndexFile(segment);
+        SegmentIndex index = null;
+        long endLength = -1L;
+        long segmentLength = segment.length();
+        java.util.List<long[]> lasts = new java.util.ArrayList<long[]>();
+
+        if (file.length() >= 16L)
+        {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(file),65536));
+            try
+            {
+                //If the header is bad, I rebuild the whole index.
+                boolean good = in.readInt() == MAGIC && in.readInt() == VERSION;
+                if (good)
+                {
+                    index = new SegmentIndex(segment,in.readInt(),in.readInt(),
+                            indexBytes);
+                }
+                while (good)
+                {
+                    int apid = in.readInt();
+                    int kind = in.readInt();
+                    long time = in.readLong();
+                    long offset = in.readLong();
+                    if (kind == END)
+                    {
+                        endLength = offset;
+                        continue;
+                    }
+                    if (kind == LAST)
+                    {
+                        //I use these only if the segment is complete.
+                        lasts.add(new long[] {apid,time,offset});
+                    }
+                    else if (kind == INDEXED && offset < segmentLength)
+                    {
+                        index.getApid(apid).add(time,offset);
+                        index.update(index.getApid(apid),time,offset);
+                    }
+                }
+            }
+            catch (EOFException eof)
+            {
+                //A crash may leave a partial entry. I ignore it.
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+
+        if (index == null)
+        {
+            index = new SegmentIndex(segment,timeOffset,timeSize,indexBytes);
+        }
+        if (endLength >= 0L && endLength == segmentLength)
+        {
+            for (long[] last : lasts)
+            {
+                index.update(index.getApid((int)last[0]),last[1],last[2]);
+            }
+            index.length = endLength;
+            index.complete = true;
+        }
+        else
+        {
+            //If no entry reached the disk, I rescan the whole segment.
+            long tail = index.apids.isEmpty()? 0L : segmentLength;
+            for (Apid a : index.apids.values())
+            {
+                tail = Math.min(tail,a.lastOffset);
+            }
+            index.scan(tail);
+        }
+        return index;
+    }
+
+    /**
+     * Widen an application id's time range to a packet, and make the packet
+     * its last one if it is past the last one I know.
+     */
+    private void update(Apid a, long time, long offset)
+    {
+        if (Long.compareUnsigned(time,a.minTime) < 0) a.minTime = time;
+        if (Long.compareUnsigned(time,a.maxTime) > 0) a.maxTime = time;
+        if (offset > a.lastOffset)
+        {
+            a.lastOffset = offset;
+            a.lastTime = time;
+        }
+    }
+
+    /**
+     * Index the segment from an offset to its last whole packet.
+     */
+    private void scan(long start) throws IOException
+    {
+        FileInputStream fis = new FileInputStream(segment);
+        try
+        {
+            long position = fis.skip(start);
+            InputStream in = new BufferedInputStream(fis,65536);
+            byte[] data = new byte[65536 + Packet.PRIMARY_HEADER_LENGTH + 1];
+            length = position;
+            while (true)
+            {
+                if (!readFully(in,data,0,Packet.PRIMARY_HEADER_LENGTH)) break;
+                int size = Packet.getPacketSize(0,data);
+                if (!readFully(in,data,Packet.PRIMARY_HEADER_LENGTH,
+                        size - Packet.PRIMARY_HEADER_LENGTH)) break;
+                add(data,0,size,position);
+                position += size;
+                length = position;
+            }
+        }
+        finally
+        {
+            fis.close();
+        }
+    }
+
+    private static boolean readFully(InputStream in, byte[] data, int offset,
+            int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int n = in.read(data,offset,length);
+            if (n < 0) return false;
+            offset += n;
+            length -= n;
+        }
+        return true;
+    }
+
+    private Apid getApid(int apid)
+    {
+        Integer key = Integer.valueOf(apid);
+        Apid a = apids.get(key);
+        if (a == null)
+        {
+            a = new Apid();
+            apids.put(key,a);
+        }
+        return a;
+    }
+
+    /**
+     * Add a packet, which starts at the end of the segment.
+     * @return true if I indexed it. Its time is then getLastTime(apid).
+     */
+    boolean add(byte[] data, int start, int size, long offset)
+    {
+        length = offset + size;
+        Apid a = getApid(Packet.getApplicationId(start,data));
+        if (offset <= a.lastOffset)
+        {
+            //A rebuild scan starts before packets I already know.
+            return false;
+        }
+
+        long time = getTime(data,start,size,a.lastTime);
+        boolean indexed = false;
+        if (a.count == 0 || offset - a.offsets[a.count - 1] >= indexBytes)
+        {
+            a.add(time,offset);
+            indexed = true;
+        }
+        update(a,time,offset);
+        return indexed;
+    }
+
+    /**
+     * Get the time of the last packet I know of an application id.
+     */
+    long getLastTime(int apid)
+    {
+        Apid a = apids.get(Integer.valueOf(apid));
+        return a == null? 0L : a.lastTime;
+    }
+
+    /**
+     * Get a packet's time. If it has none, I use the fallback.
+     */
+    long getTime(byte[] data, int start, int size, long fallback)
+    {
+        if (!Packet.hasSecondaryHeader(start,data) || size < timeOffset + timeSize)
+        {
+            return fallback;
+        }
+        long time = 0L;
+        for (int n = 0; n < timeSize; n++)
+        {
+            time = (time << 8) | (data[start + timeOffset + n] & 0x0ffL);
+        }
+        return time;
+    }
+
+    /**
+     * Find the part of the segment that may hold packets of an application
+     * id in a time range. I assume each application id's packet times do
+     * not go backward.
+     * @return {start offset, end offset}, or null if the segment has none.
+     */
+    long[] find(int apid, long from, long to)
+    {
+        Apid a = apids.get(Integer.valueOf(apid));
+        if (a == null || a.count == 0 || Long.compareUnsigned(a.maxTime,from) < 0 ||
+                Long.compareUnsigned(a.minTime,to) > 0)
+        {
+            return null;
+        }
+        long start = a.offsets[0];
+        long end = length;
+        for (int n = 0; n < a.count; n++)
+        {
+            if (Long.compareUnsigned(a.times[n],from) < 0)
+            {
+                start = a.offsets[n];
+            }
+            else if (Long.compareUnsigned(a.times[n],to) > 0)
+            {
+                end = a.offsets[n];
+                break;
+            }
+        }
+        return new long[] {start,end};
+    }
+
+    /**
+     * Write the whole index, with its last and end entries.
+     */
+    void write() throws IOException
+    {
+        DataOutputStream out = create();
+        Iterator<Integer> i = apids.keySet().iterator();
+        while (i.hasNext())
+        {
+            Integer apid = i.next();
+            Apid a = apids.get(apid);
+            for (int n = 0; n < a.count; n++)
+            {
+                writeEntry(out,apid.intValue(),INDEXED,a.times[n],a.offsets[n]);
+            }
+        }
+        close(out);
+    }
+
+    /**
+     * Create the index file and write its header.
+     */
+    DataOutputStream create() throws IOException
+    {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(getIndexFile(segment)),65536));
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(timeOffset);
+        out.writeInt(timeSize);
+        return out;
+    }
+
+    /**
+     * Write the last and end entries and close the index file.
+     */
+    void close(DataOutputStream out) throws IOException
+    {
+        Iterator<Integer> i = apids.keySet().iterator();
+        while (i.hasNext())
+        {
+            Integer apid = i.next();
+            Apid a = apids.get(apid);
+            writeEntry(out,apid.intValue(),LAST,a.maxTime,a.lastOffset);
+        }
+        writeEntry(out,0,END,0L,length);
+        out.close();
+        complete = true;
+    }
+
+    static void writeEntry(DataOutputStream out, int apid, int kind, long time,
+            long offset) throws IOException
+    {
+        out.writeInt(apid);
+        out.writeInt(kind);
+        out.writeLong(time);
+        out.writeLong(offset);
+    }
+
+    File getSegment()
+    {
+        return segment;
+    }
+
+    /**
+     * Get the length of the segment up to its last whole packet.
+     */
+    long getLength()
+    {
+        return length;
+    }
+
+    boolean isComplete()
+    {
+        return complete;
+    }
+
+    int getTimeOffset()
+    {
+        return timeOffset;
+    }
+
+    int getTimeSize()
+    {
+        return timeSize;
+    }
+}
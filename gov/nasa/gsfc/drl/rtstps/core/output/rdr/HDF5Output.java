@@ -82,6 +82,10 @@ public class HDF5Output extends RtStpsNode implements PacketReceiver, Cloneable
         super.setLinkName(element.getAttribute("label"));
         String mission = element.getAttribute("mission"); 
         String directory = element.getAttribute("directory");
+        if (configuration.getOutputDirectory() != null)
+        {
+            directory = configuration.getOutputDirectory().getPath();
+        }
 
         if (mission.equals("NPP") == false) {
         	throw new RtStpsException("Only NPP supported in RDR creation at this time");
@@ -100,6 +104,7 @@ public class HDF5Output extends RtStpsNode implements PacketReceiver, Cloneable
 
         statusItemList = new ArrayList<StatusItem>(3);
         statusItemList.add(count);
+        unitCount = count;
         statusItemList.add(outputErrorCount);
         statusItemList.add(discardedCount);
     }
@@ -135,6 +140,8 @@ public class HDF5Output extends RtStpsNode implements PacketReceiver, Cloneable
 	 */
 	@Override
 	public void putPacket(Packet packet) throws RtStpsException {
+		// The builder keeps packets past this call, so a path service view must be copied first
+		packet.materialize();
 		rdrBuilder.put(packet);
 	}
 	
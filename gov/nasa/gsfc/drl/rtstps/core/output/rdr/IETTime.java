@@ -5,6 +5,8 @@ All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core.output.rdr;
 
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketTime;
+
 /**
  * Helper class for converting packet times to IETTime which is micros from epoch.
  * The conversion is stored at a 64-bit signed Java long.  Calculations show that it
@@ -42,13 +44,11 @@ public class IETTime {
 	}
 
 
+	/**
+	 * Convert a packet's 64-bit CDS timestamp to microseconds from epoch.
+	 * @see gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketTime#cdsToMicros(long)
+	 */
 	public static long fromTimeStamp(long timeStamp) {
-		long days = (timeStamp >> 48) & 0x0000ffffL;  // this is a 16 bit quantity
-    	
-    	long millis = (timeStamp >> 16) & 0x00000000ffffffffL; // this is a 32 bit quantity
-    	
-    	long micros = timeStamp & 0x0000ffffL; // this is a 16 bit quantity
-    	
-    	return days * microsPerDay + millis * 1000L + micros;
+		return PacketTime.cdsToMicros(timeStamp);
 	}
 }
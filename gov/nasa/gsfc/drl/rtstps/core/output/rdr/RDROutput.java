@@ -60,6 +60,10 @@ public class RDROutput extends RtStpsNode implements PacketReceiver, Cloneable
         super.setLinkName(element.getAttribute("label"));
         String mission = element.getAttribute("mission"); 
         String directory = element.getAttribute("directory");
+        if (configuration.getOutputDirectory() != null)
+        {
+            directory = configuration.getOutputDirectory().getPath();
+        }
 	String oMode = element.getAttribute("mode");
 
 	long granuleTimeSpan = 0L;
@@ -131,6 +135,9 @@ public class RDROutput extends RtStpsNode implements PacketReceiver, Cloneable
 		// In the off chance the processing is shutdown but packets are still being processed
 		if (rdrBuilder == null) return;
 
+		// The builder keeps packets past this call, so a path service view must be copied first
+		packet.materialize();
+
 		// Otherwise, just feed the packet directly into the RDRBuilderNPP "black box"...
 		rdrBuilder.put(packet);
 	}
@@ -0,0 +1,98 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.xstps.pds;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+
+import java.io.IOException;
+
+/**
+ * This class writes the packets of one application id to its own data
+ * files. PdsOutput uses one for each appid when it runs in parallel mode,
+ * so packets of different application ids never wait for each other. The
+ * data set offsets that I give my appid start at zero; PdsOutput adds the
+ * size of the files before mine when it writes the construction record.
+ *
+ */
+final class ApidWriter
+{
+    private final Appid appid;
+    private final OutputFiles output;
+    private final PacketKernel current = new PacketKernel();
+    private final PacketKernel firstPacket = new PacketKernel();
+    private final PacketKernel lastPacket = new PacketKernel();
+    private int packets = 0;
+    private long bytes = 0L;
+    private boolean closed = false;
+
+    /**
+     * Create a writer.
+     * @param appid The application id.
+     * @param output The data files, which only I use.
+     */
+    ApidWriter(Appid appid, OutputFiles output)
+    {
+        this.appid = appid;
+        this.output = output;
+    }
+
+    /**
+     * Store and write a packet of my application id. I ignore packets that
+     * arrive after I am closed.
+     */
+    synchronized void putPacket(Packet packet) throws IOException
+    {
+        if (closed) return;
+        if (!appid.putPacket(packet,current,bytes)) return;
+
+        ++packets;
+        if (packets == 1) firstPacket.copy(current);
+        lastPacket.copy(current);
+        bytes += packet.getSize();
+
+        //My data files hold only my application id, so it is always index 0.
+        output.write(packet,current,0);
+    }
+
+    /**
+     * Close my last data file. It waits for a write in progress.
+     */
+    synchronized void close() throws IOException
+    {
+        if (closed) return;
+        closed = true;
+        output.close();
+    }
+
+    final Appid getAppid()
+    {
+        return appid;
+    }
+
+    final OutputFiles getOutput()
+    {
+        return output;
+    }
+
+    final int getPacketCount()
+    {
+        return packets;
+    }
+
+    final long getByteCount()
+    {
+        return bytes;
+    }
+
+    final PacketKernel getFirstPacket()
+    {
+        return firstPacket;
+    }
+
+    final PacketKernel getLastPacket()
+    {
+        return lastPacket;
+    }
+}
@@ -157,7 +157,7 @@ final class Appid
         if (isQuicklookTypeEDS)
         {
             int flags = (timeOffset == 6)? 14 : 6;
-            if (data[flags] == 0) return false;
+            if (data[packet.getStartOffset() + flags] == 0) return false;
         }
 
         //I load the packet kernel with the current packet.
@@ -191,18 +191,21 @@ final class Appid
 
     /**
      * Write information to the construction record file.
+     * @param base The data set offset of the byte at offset zero in the
+     *          offsets I was given. It is not zero when this application id
+     *          has its own data files that follow other files in the set.
      */
-    void printCS(java.io.DataOutput crecord) throws java.io.IOException
+    void printCS(java.io.DataOutput crecord, long base) throws java.io.IOException
     {
         crecord.writeShort(spid);
         crecord.writeShort(id);
-        crecord.writeLong(firstByte);
+        crecord.writeLong(firstByte + base);
         crecord.writeInt(vcids);
         crecord.writeInt(vcid1 | (spid << 6));
         if (vcids == 2) crecord.writeInt(vcid2 | (spid << 6));
 
-        gapList.printCS(crecord);
-        fillList.printCS(crecord);
+        gapList.printCS(crecord,base);
+        fillList.printCS(crecord,base);
         wrongLengthList.printCS(crecord);
 
         crecord.writeLong(firstPacket.getPacketTime());
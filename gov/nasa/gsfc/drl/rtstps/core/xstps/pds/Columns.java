@@ -0,0 +1,46 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.core.xstps.pds;
+
+/**
+ * The construction record lists keep each field of their entries in its own
+ * primitive array. This class grows those arrays. They double, so appending
+ * an entry allocates nothing except when an array is full.
+ *
+ */
+final class Columns
+{
+    /** The size of an array the first time it is needed. */
+    static final int INITIAL = 16;
+
+    private Columns()
+    {
+    }
+
+    /**
+     * Get an array that can hold one more element than size.
+     * @param column The array, which may be null.
+     * @param size The number of elements in use.
+     */
+    static int[] room(int[] column, int size)
+    {
+        if (column == null) return new int[INITIAL];
+        if (size < column.length) return column;
+        return java.util.Arrays.copyOf(column,column.length * 2);
+    }
+
+    /**
+     * Get an array that can hold one more element than size.
+     * @param column The array, which may be null.
+     * @param size The number of elements in use.
+     */
+    static long[] room(long[] column, int size)
+    {
+        if (column == null) return new long[INITIAL];
+        if (size < column.length) return column;
+        return java.util.Arrays.copyOf(column,column.length * 2);
+    }
+}
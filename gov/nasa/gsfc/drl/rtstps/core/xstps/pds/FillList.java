@@ -6,29 +6,21 @@ All rights reserved.
 package gov.nasa.gsfc.drl.rtstps.core.xstps.pds;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
 
-import java.util.Iterator;
-
 /**
  * This class looks for packets with fill data and collects pertinent
- * information about them for Sorcerer.
- * 
- * 
+ * information about them for Sorcerer. I keep each field in its own array
+ * (see Columns) instead of an object per packet.
+ *
+ *
  */
 class FillList
 {
-    private java.util.LinkedList<Item> flist = new java.util.LinkedList<Item>();	
+    private int count = 0;
+    private int[] sequenceCount = null;
+    private long[] datasetOffset = null;
+    private int[] location = null;
     private long totalBytes = 0L;
 
-    /**
-     * This class contains information about one packet with fill.
-     */
-    class Item
-    {
-        long datasetOffset = 0;
-        int sequenceCount = 0;
-        int location = 0;
-    }
-
     /**
      * Check a packet for fill.
      * @param packet the packet to be checked
@@ -41,22 +33,30 @@ class FillList
         boolean hasFill = packet.getPacketAnnotation().isPacketWithFill;
         if (hasFill)
         {
-            Item fill = new Item();
-            fill.sequenceCount = packet.getSequenceCounter();
-            fill.location = packet.getPacketAnnotation().goodByteCount;
-            fill.datasetOffset = datasetOffset;
-            flist.add(fill);
-            totalBytes += (packet.getSize() - fill.location);
+            int goodBytes = packet.getPacketAnnotation().goodByteCount;
+            add(packet.getSequenceCounter(),datasetOffset,goodBytes);
+            totalBytes += (packet.getSize() - goodBytes);
         }
         return hasFill;
     }
 
+    private synchronized void add(int sequence, long offset, int goodBytes)
+    {
+        sequenceCount = Columns.room(sequenceCount,count);
+        datasetOffset = Columns.room(datasetOffset,count);
+        location = Columns.room(location,count);
+        sequenceCount[count] = sequence;
+        datasetOffset[count] = offset;
+        location[count] = goodBytes;
+        ++count;
+    }
+
     /**
      * Get the number of packets with fill in this fill list.
      */
-    final int getLength()
+    final synchronized int getLength()
     {
-        return flist.size();
+        return count;
     }
 
     /**
@@ -69,22 +69,18 @@ class FillList
 
     /**
      * Print fill-related information to the construction record.
+     * @param base I add this to every data set offset.
      */
-    void printCS(java.io.DataOutput out) throws java.io.IOException
+    synchronized void printCS(java.io.DataOutput out, long base)
+            throws java.io.IOException
     {
-        int count = flist.size();
         out.writeInt(count);
-
-        Iterator<Item> i = flist.iterator();
-
-        while (i.hasNext())
+        for (int n = 0; n < count; n++)
         {
-            Item fill = i.next();
-            out.writeInt(fill.sequenceCount);
-            out.writeLong(fill.datasetOffset);
-            out.writeInt(fill.location);
+            out.writeInt(sequenceCount[n]);
+            out.writeLong(datasetOffset[n] + base);
+            out.writeInt(location[n]);
         }
-
         out.writeLong(totalBytes);
     }
 }
@@ -6,38 +6,26 @@ All rights reserved.
 package gov.nasa.gsfc.drl.rtstps.core.xstps.pds;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
 
-import java.util.Iterator;
-
 /**
  * This class checks for packet sequence gaps. It collects gap information.
- * 
- * 
+ * <p>
+ * Bad passes can have hundreds of thousands of gaps, so I do not keep an
+ * object for each one. I keep each gap field in its own array (see
+ * Columns), and I write the construction record straight from them.
+ *
+ *
  */
 class GapList
 {
     private Sequencer sequencer;
-    private java.util.LinkedList<Item> gaplist;
-
-    /**
-     * This class contains information about one gap.
-     */
-    class Item
-    {
-        PacketKernel prePacket = new PacketKernel();
-        PacketKernel postPacket = new PacketKernel();
-        long datasetOffset = 0;
-        int expected = 0;
-        int missing = 0;
-
-        Item(int missing, PacketKernel current, PacketKernel previous, long datasetOffset)
-        {
-            expected = sequencer.getExpectedNextCount();
-            this.missing = missing;
-            prePacket.copy(previous);
-            postPacket.copy(current);
-            this.datasetOffset = datasetOffset;
-        }
-    }
+    private int count = 0;
+    private int[] expected = null;
+    private long[] datasetOffset = null;
+    private int[] missing = null;
+    private long[] prePacketTime = null;
+    private long[] postPacketTime = null;
+    private long[] preEshTime = null;
+    private long[] postEshTime = null;
 
     /**
      * Create a gap list.
@@ -46,21 +34,18 @@ class GapList
     GapList(int stepsize)
     {
         sequencer = new Sequencer(stepsize);
-        gaplist = new java.util.LinkedList<Item>();
     }
 
     /**
      * Get the number of detected gaps.
      */
-    final int getGapCount()
+    final synchronized int getGapCount()
     {
-        return gaplist.size();
+        return count;
     }
 
-    //I have a difficult bug in that printCS occasionally throws ConcurrentModificationException.
-    //This should be impossible because the loop does not modify gaplist, and processing is single
-    //threaded, so no one else could change it because there is no one else.
-    //I am synchronizing to collect more information.
+    //The flush thread writes the construction record while the data
+    //thread may still be adding gaps, so I synchronize adding and printing.
 
     /**
      * Check a packet for a gap between it and the previous packet.
@@ -69,40 +54,53 @@ class GapList
     boolean check(Packet packet, PacketKernel current, PacketKernel previous,
             long datasetOffset)
     {
-        boolean seeGap = false;
         int missing = sequencer.check(packet);
         if (missing > 0)
         {
-            synchronized (this)
-            {
-                Item g = new Item(missing,current,previous,datasetOffset);
-                gaplist.add(g);
-                seeGap = true;
-            }
+            add(sequencer.getExpectedNextCount(),missing,current,previous,
+                    datasetOffset);
         }
-        return seeGap;
+        return missing > 0;
+    }
+
+    private synchronized void add(int expectedCount, int missingCount,
+            PacketKernel current, PacketKernel previous, long offset)
+    {
+        expected = Columns.room(expected,count);
+        datasetOffset = Columns.room(datasetOffset,count);
+        missing = Columns.room(missing,count);
+        prePacketTime = Columns.room(prePacketTime,count);
+        postPacketTime = Columns.room(postPacketTime,count);
+        preEshTime = Columns.room(preEshTime,count);
+        postEshTime = Columns.room(postEshTime,count);
+
+        expected[count] = expectedCount;
+        datasetOffset[count] = offset;
+        missing[count] = missingCount;
+        prePacketTime[count] = previous.getPacketTime();
+        postPacketTime[count] = current.getPacketTime();
+        preEshTime[count] = previous.getEshTime();
+        postEshTime[count] = current.getEshTime();
+        ++count;
     }
 
     /**
      * Write gap information to the construction record.
+     * @param base I add this to every data set offset.
      */
-    synchronized void printCS(java.io.DataOutput out) throws java.io.IOException
+    synchronized void printCS(java.io.DataOutput out, long base)
+            throws java.io.IOException
     {
-        int count = gaplist.size();
         out.writeInt(count);
-
-        Iterator<Item> i = gaplist.iterator();
-
-        while (i.hasNext())
+        for (int n = 0; n < count; n++)
         {
-            Item gap = (Item)i.next();
-            out.writeInt(gap.expected);
-            out.writeLong(gap.datasetOffset);
-            out.writeInt(gap.missing);
-            out.writeLong(gap.prePacket.getPacketTime());
-            out.writeLong(gap.postPacket.getPacketTime());
-            out.writeLong(gap.prePacket.getEshTime());
-            out.writeLong(gap.postPacket.getEshTime());
+            out.writeInt(expected[n]);
+            out.writeLong(datasetOffset[n] + base);
+            out.writeInt(missing[n]);
+            out.writeLong(prePacketTime[n]);
+            out.writeLong(postPacketTime[n]);
+            out.writeLong(preEshTime[n]);
+            out.writeLong(postEshTime[n]);
         }
     }
 }
@@ -5,35 +5,69 @@ All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core.xstps.pds;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+import gov.nasa.gsfc.drl.rtstps.core.output.PreallocatedFile;
 
-import java.io.BufferedOutputStream;
 import java.io.DataOutput;
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
  * This class manages the output files. It deals with naming conventions and
  * switching between data files, which it hides from its user.
+ * <p>
+ * I write through a large direct buffer. If there is a size limit per file,
+ * I reserve that much disk space for each file and cut off the unused tail
+ * when I close it (see PreallocatedFile). If a crash leaves a file with its
+ * reserved tail, the next OutputFiles in the directory cuts it off. A
+ * background thread opens and preallocates the next file while
+ * I fill the current one, and it writes the last buffer of a full file and
+ * closes it, so switching files does not wait for the disk. I have two
+ * buffers so that I can fill one while the old file's last one is written.
  * 
  * 
  */
 class OutputFiles
 {
+    /** The default size of each write buffer. */
+    static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+    private static ExecutorService background = null;
+
     private java.util.ArrayList<DSFile> fileList = new java.util.ArrayList<DSFile>(10);	
     private long bytesPerFile = Long.MAX_VALUE;
     private PacketKernel previousPacketKernel = new PacketKernel();
     private long bytesWritten = 0;
     private DSFile currentFile;
-    private StringBuffer fileNameTemplate;
+    private String namePrefix;
+    private String nameTail;
+    private int fileNumber = 1;
+    private String suffix;
     private String path;
-    private OutputStream out;
     private int[] xappid = new int[3];
     private int[] xspid = new int[3];
 
+    private PreallocatedFile raf;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private final ArrayBlockingQueue<ByteBuffer> spare = new ArrayBlockingQueue<ByteBuffer>(2);
+
+    /** The next file, which the background thread is opening. */
+    private DSFile nextFile = null;
+    private Future<PreallocatedFile> nextRaf = null;
+
+    /** Full files that the background thread is closing. */
+    private java.util.ArrayList<Future<Void>> closing = new java.util.ArrayList<Future<Void>>();
+
     /**
      * Create an OutputFiles object.
      * @param constructionRecordName The construction record file name
@@ -41,19 +75,48 @@ class OutputFiles
      */
     OutputFiles(StringBuffer constructionRecordName, String path) throws IOException
     {
-        fileNameTemplate = new StringBuffer(constructionRecordName.toString());
-        fileNameTemplate.setCharAt(35,'1');
+        this(constructionRecordName,path,"",DEFAULT_BUFFER_SIZE);
+    }
+
+    /**
+     * Create an OutputFiles object whose data files have temporary names
+     * until renumber is called.
+     * @param constructionRecordName The construction record file name
+     * @param path The directory where it will put the data files
+     * @param suffix I append this to each data file name.
+     * @param bufferSize The size of each write buffer.
+     */
+    OutputFiles(StringBuffer constructionRecordName, String path, String suffix,
+            int bufferSize) throws IOException
+    {
+        //The file number is the two characters before the extension.
+        String name = constructionRecordName.toString();
+        namePrefix = name.substring(0,34);
+        nameTail = name.substring(36);
+        this.suffix = suffix;
         this.path = path;
-        openFile();
+        buffer = ByteBuffer.allocateDirect(bufferSize);
+        spare.add(ByteBuffer.allocateDirect(bufferSize));
+        PreallocatedFile.recover(new File(path));
+        currentFile = new DSFile(path,getName(fileNumber) + suffix);
+        raf = openFile(currentFile.file,0L);
+        channel = raf.getChannel();
     }
 
     /**
      * Set the number of bytes per file. By default, there is only one output
-     * file.
+     * file. I preallocate the current file and start opening the next one.
      */
-    final void setBytesPerFile(long length)
+    final void setBytesPerFile(long length) throws IOException
     {
         bytesPerFile = length;
+        if (bytesWritten == 0L)
+        {
+            raf.close(0L,false);
+            raf = openFile(currentFile.file,length);
+            channel = raf.getChannel();
+        }
+        if (nextRaf == null) prepareNextFile();
     }
 
     /**
@@ -83,14 +146,40 @@ class OutputFiles
     }
 
     /**
-     * Open a file.
+     * Get the name of a data file, without the suffix.
      */
-    private void openFile() throws FileNotFoundException
+    private String getName(int number)
     {
-        String baseName = fileNameTemplate.toString();
-        currentFile = new DSFile(path,baseName);
-        FileOutputStream fos = new FileOutputStream(currentFile.file);
-        out = new BufferedOutputStream(fos,8192);
+        return namePrefix + new java.text.DecimalFormat("00").format(number) +
+                nameTail;
+    }
+
+    /**
+     * Open a file and preallocate it.
+     * @param length The preallocated length. Zero does not preallocate.
+     */
+    private static PreallocatedFile openFile(File file, long length)
+            throws IOException
+    {
+        return new PreallocatedFile(file,(length != Long.MAX_VALUE)? length : 0L);
+    }
+
+    /**
+     * Start opening the file after the current one in the background.
+     */
+    private void prepareNextFile()
+    {
+        if (bytesPerFile == Long.MAX_VALUE) return;
+        nextFile = new DSFile(path,getName(fileNumber + 1) + suffix);
+        final File file = nextFile.file;
+        final long length = bytesPerFile;
+        nextRaf = getBackground().submit(new Callable<PreallocatedFile>()
+        {
+            public PreallocatedFile call() throws IOException
+            {
+                return openFile(file,length);
+            }
+        });
     }
 
     /**
@@ -104,29 +193,200 @@ class OutputFiles
         if ((written > bytesPerFile) && !previousPacketKernel.isEmpty() &&
             (packetKernel.comparePacketTime(previousPacketKernel) > 0))
         {
-            out.close();
-            fileList.add(currentFile);
-            String s = fileNameTemplate.substring(34,36);
-            int n = Integer.parseInt(s) + 1;
-            s = Integer.toString(n);
-            fileNameTemplate.replace(36-s.length(),36,s);
-            openFile();
+            nextFile();
             written = packet.getSize();
         }
 
         currentFile.ap[apindex].store(packetKernel);
 
-        out.write(packet.getData(),0,packet.getSize());
+        put(packet.getData(),packet.getStartOffset(),packet.getSize());
         bytesWritten = written;
         previousPacketKernel.copy(packetKernel);
     }
 
+    private void put(byte[] data, int offset, int length) throws IOException
+    {
+        if (length > buffer.remaining()) drain();
+        if (length > buffer.capacity())
+        {
+            ByteBuffer big = ByteBuffer.wrap(data,offset,length);
+            while (big.hasRemaining()) channel.write(big);
+            raf.setDataLength(channel.position());
+        }
+        else
+        {
+            buffer.put(data,offset,length);
+        }
+    }
+
+    private void drain() throws IOException
+    {
+        buffer.flip();
+        try
+        {
+            while (buffer.hasRemaining()) channel.write(buffer);
+            raf.setDataLength(channel.position());
+        }
+        finally
+        {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Switch to the next data file. The background thread writes the
+     * current buffer to the full file, trims it, and closes it.
+     */
+    private void nextFile() throws IOException
+    {
+        checkClosing(false);
+        fileList.add(currentFile);
+        final PreallocatedFile full = raf;
+        final ByteBuffer last = buffer;
+        last.flip();
+        closing.add(getBackground().submit(new Callable<Void>()
+        {
+            public Void call() throws IOException
+            {
+                try
+                {
+                    closeFile(full,last);
+                }
+                finally
+                {
+                    last.clear();
+                    spare.add(last);
+                }
+                return null;
+            }
+        }));
+
+        try
+        {
+            buffer = spare.take();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException();
+        }
+
+        ++fileNumber;
+        if (nextRaf != null)
+        {
+            currentFile = nextFile;
+            raf = get(nextRaf);
+        }
+        else
+        {
+            currentFile = new DSFile(path,getName(fileNumber) + suffix);
+            raf = openFile(currentFile.file,bytesPerFile);
+        }
+        channel = raf.getChannel();
+        nextFile = null;
+        nextRaf = null;
+        prepareNextFile();
+    }
+
     /**
-     * Close the current data file.
+     * Write the rest of a file, cut off its preallocated tail, and close it.
+     */
+    private static void closeFile(PreallocatedFile file, ByteBuffer rest)
+            throws IOException
+    {
+        FileChannel fc = file.getChannel();
+        try
+        {
+            while (rest.hasRemaining()) fc.write(rest);
+        }
+        finally
+        {
+            file.close(fc.position(),false);
+        }
+    }
+
+    /**
+     * Report a failure to close a full file.
+     * @param wait If true, I wait for all files to close.
+     */
+    private void checkClosing(boolean wait) throws IOException
+    {
+        Iterator<Future<Void>> i = closing.iterator();
+        while (i.hasNext())
+        {
+            Future<Void> f = i.next();
+            if (!wait && !f.isDone()) continue;
+            i.remove();
+            get(f);
+        }
+    }
+
+    private static <T> T get(Future<T> future) throws IOException
+    {
+        try
+        {
+            return future.get();
+        }
+        catch (InterruptedException ie)
+        {
+            Thread.currentThread().interrupt();
+            throw new java.io.InterruptedIOException();
+        }
+        catch (ExecutionException ee)
+        {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException)cause;
+            throw new IOException(cause.toString());
+        }
+    }
+
+    private static synchronized ExecutorService getBackground()
+    {
+        if (background == null)
+        {
+            background = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r,"pds-files");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return background;
+    }
+
+    /**
+     * Close the current data file. I delete the next file if I opened it
+     * ahead of time.
      */
     void close() throws IOException
     {
-        out.close();
+        try
+        {
+            checkClosing(true);
+            buffer.flip();
+            closeFile(raf,buffer);
+        }
+        finally
+        {
+            buffer.clear();
+            if (nextRaf != null)
+            {
+                try
+                {
+                    get(nextRaf).close(0L,false);
+                }
+                finally
+                {
+                    nextFile.file.delete();
+                    nextRaf = null;
+                    nextFile = null;
+                }
+            }
+        }
+
         if (currentFile.hasData())
         {
             fileList.add(currentFile);
@@ -137,6 +397,30 @@ class OutputFiles
         }
     }
 
+    /**
+     * Give the closed data files their final names, which have consecutive
+     * file numbers.
+     * @param number The file number of my first data file.
+     * @return The file number after my last data file.
+     */
+    int renumber(int number) throws IOException
+    {
+        Iterator<DSFile> i = fileList.iterator();
+        while (i.hasNext())
+        {
+            DSFile file = i.next();
+            String name = getName(number++);
+            File target = new File(path,name);
+            if (!file.file.renameTo(target))
+            {
+                throw new IOException("Cannot rename " + file.file + " to " + target);
+            }
+            file.file = target;
+            file.id = name;
+        }
+        return number;
+    }
+
     /**
      * Write file information to the construction record.
      */
@@ -5,6 +5,7 @@ All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.core.xstps.pds;
 import gov.nasa.gsfc.drl.rtstps.core.ccsds.Packet;
+import gov.nasa.gsfc.drl.rtstps.core.ccsds.PacketTime;
 
 /**
  * This class contains fragments of packet information that Sorcerer needs.
@@ -76,7 +77,8 @@ final class PacketKernel
     {
         byte[] data = packet.getData();
         eshTime = makeEshTime(packet.getFrameAnnotation().timestamp);
-        packetTime = makePacketTime(data,timeOffset);
+        packetTime = makePacketTime(data,
+                packet.getStartOffset() + timeOffset);
         this.isCUC = isCUC;
         if (isCUC)
         {
@@ -150,14 +152,7 @@ final class PacketKernel
      */
     private long makePacketTime(byte[] data, int start)
     {
-        long t = 0;
-        int shift = 56;
-        for (int n = 0; n < 8; n++)
-        {
-            t |= ((long)data[start+n] & 0x0ffL) << shift;
-            shift -= 8;
-        }
-        return t;
+        return PacketTime.readOctets(data,start,8);
     }
 
     /**
@@ -175,28 +170,10 @@ final class PacketKernel
      *      32 bits ms of day
      *      16 bits micro of ms
      * </pre>
+     * See PacketTime, which does it with integer multiplies and shifts.
      */
     public static long cucToDaySegmented(long cuc)
     {
-        long secsSinceEpoch = (cuc >> 16) & 0x0ffffffffL;
-        long fineTime = cuc & 0x0ffffL;
-
-        //There have been complaints about the accuracy of the time conversion.
-        //To avoid roundoff errors as much as possible, I changed the following
-        //code to it uses longs instead of floats. That is, instead of 15.2f, I
-        //now use 152L. micro10 is thus micro*10 instead of just microseconds.
-        //long micro = (long)(15.2f * (float)fineTime);
-        //long milliFromMicro = micro / 1000L;
-        //long microOfMilli = micro - milliFromMicro * 1000L;
-
-        long micro10 = 152L * fineTime;
-        long milliFromMicro = micro10 / 10000L;
-        long microOfMilli = (micro10 % 10000L) / 10L;
-
-        long days = secsSinceEpoch / 86400L;
-        long secsOfDay = secsSinceEpoch - days * 86400L;
-        days &= 0x0ffffL;
-        long milliOfDay = secsOfDay * 1000L + milliFromMicro;
-        return (days << 48) | (milliOfDay << 16) | microOfMilli;
+        return PacketTime.cucToDaySegmented(cuc);
     }
 }
@@ -19,6 +19,15 @@ import java.io.FileOutputStream;
 /**
  * This RT-STPS node is a java version of the Sorcerer program. It creates Terra
  * and Aqua PDS or EDS files.
+ * <p>
+ * If the element has parallel="true", each appid has its own writer and its
+ * own data files (see ApidWriter), and packets of different appids do not
+ * wait for each other. The construction record lists the files of the first
+ * appid, then the second, and so on.
+ * <p>
+ * Data files are written through direct buffers of bufferKb (default 1024)
+ * kilobytes. If KBperFile is set, each data file is preallocated to that
+ * size, and the next one is opened ahead of time (see OutputFiles).
  * 
  * 
  */
@@ -38,21 +47,22 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
     //such as gap lists, which get concurrent modification errors if packets arrive
     //while I am creating the construction record. I use the following flag with
     //synchronization to ignore any post-flush data.
-    private boolean flushActive = false;
+    private volatile boolean flushActive = false;
 
     //Users have complained that sometimes the PDS files from one pass do not all have
     //the same timestamp in their file names. This is natural because each instance of
     //this class is responsible for creating its own PDS, so files from the same pass
     //could have times as much as one second apart. Some users do not like this. To
-    //silence them, I define a static variable for the time that the first-up loads
-    //and all others use. I reset it to null at flush time so that it will be ready
-    //for the next pass.
-    private static String commonTimestamp = null;
+    //silence them, every instance takes the time from the pipeline's configuration,
+    //which the first-up sets (see Configuration.getCommonTimestamp). Each pass has its
+    //own configuration, so parallel passes do not share it.
 
     private Appid[] apList;
     private int totalPackets = 0;
     private long totalBytes = 0L;
     private OutputFiles output;
+    private ApidWriter[] writers = null;
+    private java.util.concurrent.atomic.AtomicLong received;
     private int major = 0;
     private int minor = 0;
     private int spid = 42;
@@ -87,6 +97,7 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
         statusItemList = new java.util.ArrayList<StatusItem>(3);	
         packetsWritten = new LongStatusItem("Packets Written");
         statusItemList.add(packetsWritten);
+        unitCount = packetsWritten;
 
         String name = element.getAttribute("label");
         super.setLinkName(name);
@@ -122,13 +133,26 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
 
         int kbPerFile = Convert.toInteger(element,"KBperFile",0,0);
         long bytesPerFile = 1024L * (long)kbPerFile;
+        int bufferSize = Convert.toInteger(element,"bufferKb",
+                OutputFiles.DEFAULT_BUFFER_SIZE / 1024,1,65536) * 1024;
 
-        constructionRecordName = createFileName(element);
+        constructionRecordName = createFileName(element,configuration);
         String path = element.getAttribute("path");
+        if (configuration.getOutputDirectory() != null)
+        {
+            path = configuration.getOutputDirectory().getPath();
+        }
+
+        if (Convert.toBoolean(element,"parallel",false))
+        {
+            createWriters(path,bytesPerFile,bufferSize);
+            return;
+        }
+        writers = null;
 
         try
         {
-            output = new OutputFiles(constructionRecordName,path);
+            output = new OutputFiles(constructionRecordName,path,"",bufferSize);
             if (bytesPerFile > 0) output.setBytesPerFile(bytesPerFile);
             for (int n = 0; n < appidCount; n++)
             {
@@ -141,6 +165,32 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
         }
     }
 
+    /**
+     * Create a writer with its own data files for each appid. Until flush,
+     * the data files have temporary names.
+     */
+    private void createWriters(String path, long bytesPerFile, int bufferSize)
+            throws RtStpsException
+    {
+        received = new java.util.concurrent.atomic.AtomicLong();
+        writers = new ApidWriter[apList.length];
+        try
+        {
+            for (int n = 0; n < apList.length; n++)
+            {
+                OutputFiles files = new OutputFiles(constructionRecordName,path,
+                        "." + apList[n].getId() + ".part",bufferSize);
+                if (bytesPerFile > 0) files.setBytesPerFile(bytesPerFile);
+                files.setAppidSpid(0,apList[n].getId(),apList[n].getSpacecraftId());
+                writers[n] = new ApidWriter(apList[n],files);
+            }
+        }
+        catch (java.io.IOException ioe)
+        {
+            throw new RtStpsException(ioe);
+        }
+    }
+
     /**
      * Finish the setup. When this method is called, you may assume all nodes
      * have been created and exist by name in the map, and all standard links
@@ -154,7 +204,8 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
     /**
      * Create a PDS/EDS file name for the construction record.
      */
-    private StringBuffer createFileName(org.w3c.dom.Element element) throws RtStpsException
+    private StringBuffer createFileName(org.w3c.dom.Element element,
+            Configuration configuration) throws RtStpsException
     {
         java.text.DecimalFormat dfspid = new java.text.DecimalFormat("000");
         java.text.DecimalFormat dfapid = new java.text.DecimalFormat("0000");
@@ -176,11 +227,7 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
         String gmt = element.getAttribute("create");
         if ((gmt == null) || (gmt.length() == 0))
         {
-            if (commonTimestamp == null)
-            {
-               commonTimestamp = sdf.format(new java.util.Date());
-            }
-            gmt = commonTimestamp;
+            gmt = configuration.getCommonTimestamp(sdf);
         }
         else
         {
@@ -218,7 +265,38 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
     /**
      * Give a packet to this PacketReceiver.
      */
-    public synchronized void putPacket(Packet packet) throws RtStpsException
+    public void putPacket(Packet packet) throws RtStpsException
+    {
+        if (writers == null)
+        {
+            putSerial(packet);
+            return;
+        }
+        if (flushActive) return;
+
+        packetsWritten.value = received.incrementAndGet();
+        int a = packet.getApplicationId();
+        for (int n = 0; n < writers.length; n++)
+        {
+            if (apList[n].getId() == a)
+            {
+                try
+                {
+                    writers[n].putPacket(packet);
+                }
+                catch (java.io.IOException ioe)
+                {
+                    throw new RtStpsException(ioe);
+                }
+                break;
+            }
+        }
+    }
+
+    /**
+     * Store and write a packet through the one set of data files.
+     */
+    private synchronized void putSerial(Packet packet) throws RtStpsException
     {
         if (flushActive) return;
 
@@ -275,8 +353,6 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
      */
     public void flush() throws RtStpsException
     {
-        commonTimestamp = null;  //reset for next pass.
-
         //I synchronize so that I do not do this while inside putPacket.
         synchronized (this)
         {
@@ -285,7 +361,14 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
 
         try
         {
-            output.close(); //close the last data file
+            if (writers == null)
+            {
+                output.close(); //close the last data file
+            }
+            else
+            {
+                mergeWriters();
+            }
 
             /**
              * If the total packets is zero, then the session was shut down
@@ -294,7 +377,8 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
              */
             if (totalPackets == 0) return;
 
-            File file = new File(output.getPath(),constructionRecordName.toString());
+            OutputFiles first = (writers == null)? output : writers[0].getOutput();
+            File file = new File(first.getPath(),constructionRecordName.toString());
             FileOutputStream fos = new FileOutputStream(file);
             BufferedOutputStream bos = new BufferedOutputStream(fos,8192);
             DataOutputStream crecord = new DataOutputStream(bos);
@@ -344,19 +428,42 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
             crecord.writeLong(lastPacket.getEshTime());
             crecord.writeLong((long)apList.length);
 
+            long base = 0L;
             for (int n = 0; n < apList.length; n++)
             {
-                apList[n].printCS(crecord);
+                apList[n].printCS(crecord,base);
+                if (writers != null) base += writers[n].getByteCount();
             }
 
-            int files = output.getFileCount() + 1;
+            int files = 1;
+            if (writers == null)
+            {
+                files += output.getFileCount();
+            }
+            else
+            {
+                for (int n = 0; n < writers.length; n++)
+                {
+                    files += writers[n].getOutput().getFileCount();
+                }
+            }
             crecord.writeInt(files);
             crecord.writeBytes(constructionRecordName.toString());
             for (int n = 0; n < 7; n++)
             {
                 crecord.writeInt(0);
             }
-            output.writeCS(crecord);
+            if (writers == null)
+            {
+                output.writeCS(crecord);
+            }
+            else
+            {
+                for (int n = 0; n < writers.length; n++)
+                {
+                    writers[n].getOutput().writeCS(crecord);
+                }
+            }
             crecord.close();
         }
         catch (java.io.IOException ioe)
@@ -364,4 +471,40 @@ public final class PdsOutput extends gov.nasa.gsfc.drl.rtstps.core.RtStpsNode
             throw new RtStpsException(ioe);
         }
     }
+
+    /**
+     * Close the appid writers and merge their totals, which is what the
+     * serial path keeps as it goes. The session's first packet is the one
+     * with the earliest ESH time and its last packet the one with the latest.
+     * I give the data files their final names, in appid order.
+     */
+    private void mergeWriters() throws java.io.IOException
+    {
+        for (int n = 0; n < writers.length; n++)
+        {
+            writers[n].close();
+        }
+
+        totalPackets = 0;
+        totalBytes = 0L;
+        int number = 1;
+        for (int n = 0; n < writers.length; n++)
+        {
+            ApidWriter w = writers[n];
+            number = w.getOutput().renumber(number);
+            if (w.getPacketCount() == 0) continue;
+            if (totalPackets == 0 || w.getFirstPacket().getEshTime() <
+                    firstPacket.getEshTime())
+            {
+                firstPacket.copy(w.getFirstPacket());
+            }
+            if (totalPackets == 0 || w.getLastPacket().getEshTime() >
+                    lastPacket.getEshTime())
+            {
+                lastPacket.copy(w.getLastPacket());
+            }
+            totalPackets += w.getPacketCount();
+            totalBytes += w.getByteCount();
+        }
+    }
 }
@@ -6,21 +6,20 @@ All rights reserved.
 package gov.nasa.gsfc.drl.rtstps.core.xstps.pds;
 import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
 
-import java.util.Iterator;
-
 /**
  * This class checks packets for wrong lengths and collects pertinent
  * information about wrong-length-packets for Sorcerer. You set up this
  * class by either setting minimum and maximum valid lengths or by giving
- * this class a list of valid lengths.
+ * this class a list of valid lengths. I keep the sequence counts of
+ * wrong-length packets in an array (see Columns), and the valid lengths in
+ * a bit set, so checking a packet does not allocate.
  * 
  * 
  */
 final class WrongLengthList
 {
-    public static final int MAP_SIZE = 64;
-    private java.util.HashSet<Integer> packetSizeSet = null;				
-    private java.util.LinkedList<Integer> wlList = new java.util.LinkedList<Integer>();	
+    private java.util.BitSet packetSizeSet = null;
+    private int[] sequenceCount = null;
     private int maxLength = 0;
     private int minLength = 0;
     private boolean useMinMax = true;
@@ -61,9 +60,9 @@ final class WrongLengthList
     {
         if (packetSizeSet == null)
         {
-            packetSizeSet = new java.util.HashSet<Integer>(MAP_SIZE);	
+            packetSizeSet = new java.util.BitSet();
         }
-        packetSizeSet.add(new Integer(length));
+        packetSizeSet.set(length);
         useMinMax = false;
     }
 
@@ -81,33 +80,29 @@ final class WrongLengthList
         }
         else if (packetSizeSet != null)
         {
-            bad = !packetSizeSet.contains(new Integer(length));
+            bad = !packetSizeSet.get(length);
         }
 
-        if (bad)
-        {
-            wlList.add(new Integer(packet.getSequenceCounter()));
-        }
-
-        if (bad) ++packets;
+        if (bad) add(packet.getSequenceCounter());
 
         return bad;
     }
 
+    private synchronized void add(int sequence)
+    {
+        sequenceCount = Columns.room(sequenceCount,packets);
+        sequenceCount[packets++] = sequence;
+    }
+
     /**
      * Write wrong-length information to the construction record.
      */
-    void printCS(java.io.DataOutput out) throws java.io.IOException
+    synchronized void printCS(java.io.DataOutput out) throws java.io.IOException
     {
-        int count = wlList.size();
-        out.writeInt(count);
-
-        Iterator<Integer> i = wlList.iterator();
-
-        while (i.hasNext())
+        out.writeInt(packets);
+        for (int n = 0; n < packets; n++)
         {
-            Integer sequenceNumber = (Integer)i.next();
-            out.writeInt(sequenceNumber.intValue());
+            out.writeInt(sequenceCount[n]);
         }
     }
 }
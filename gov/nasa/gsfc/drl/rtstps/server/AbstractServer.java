@@ -39,10 +39,24 @@ public abstract class AbstractServer extends java.rmi.server.UnicastRemoteObject
     protected Thread runner;
     protected StatusBlock[] statusBlocks = null;
     protected ServerState state;
-	protected class ReadLock {
-	    public ReadLock() {}
-	}
-    protected ReadLock readlock = new ReadLock();
+
+    /**
+     * The bounded queue between the socket reader and the pipeline. It is
+     * null if the server gives input to the pipeline on the reader thread.
+     */
+    protected IngestQueue ingest = null;
+
+    /**
+     * The thread that empties the ingest queue into the pipeline. It is null
+     * if there is no queue.
+     */
+    protected Thread ingestThread = null;
+
+    /**
+     * The raw input recorder. It is null unless the capture.directory
+     * system property is set.
+     */
+    protected CaptureTap capture = null;
     private Builder builder;
     private Logger logger;
     private String xmlDirectory;
@@ -147,35 +161,31 @@ public abstract class AbstractServer extends java.rmi.server.UnicastRemoteObject
     {	
 	if (state.isLoaded())
 	{
+	    //stopData returns after the reader has finished with the pipeline.
 	    stopData();
-	    //System.out.println("After stopData().");
-	    synchronized(readlock) 
+	    log("Unload " + getConfigurationName());
+	    try
 	    {
-		//System.out.println("Within synchronized loop in unload.");
-		log("Unload " + getConfigurationName());
-		try
-		{ 
-		    state.unload();
-		    // Shutdown the FrameSynchronizer if it's still open and running:
-		    if(fs != null)
-		    	fs.shutdown();
-		}
-		catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException stpse)
-		{
-		    log("Unload error " + stpse.getMessage());
-		    //throw new RemoteException("RT-STPS unload error",stpse);
-		    try {
-				H5.H5close();
-			} catch (HDF5LibraryException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
-		}
-		finally
-		{
-		    fs = null;
+		state.unload();
+		// Shutdown the FrameSynchronizer if it's still open and running:
+		if(fs != null)
+		    fs.shutdown();
+	    }
+	    catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException stpse)
+	    {
+		log("Unload error " + stpse.getMessage());
+		//throw new RemoteException("RT-STPS unload error",stpse);
+		try {
+			H5.H5close();
+		} catch (HDF5LibraryException e) {
+			// TODO Auto-generated catch block
+			e.printStackTrace();
 		}
 	    }
+	    finally
+	    {
+		fs = null;
+	    }
 	}
 	else
 	{
@@ -245,31 +255,39 @@ public abstract class AbstractServer extends java.rmi.server.UnicastRemoteObject
             fs = builder.create(setup);
             r.close();
 
-            //I count the number of status blocks.
-            TreeMap<String, RtStpsNode> nodes = builder.getConfiguration().getStpsNodes();
-            Iterator<RtStpsNode> i = nodes.values().iterator();
-            int count = 1;  //1 for the server status
-            while (i.hasNext())
+            //I collect the status blocks. The server state is first, then
+            //the server's own input blocks, then the nodes.
+            ArrayList<StatusBlock> blocks = new ArrayList<StatusBlock>();
+            blocks.add(state.getStatusBlock());
+            StatusBlock input = getInputStatusBlock();
+            if (input != null)
             {
-                RtStpsNode node = (RtStpsNode)i.next();
-                if (node.getStatusItems() != null) ++count;
+                blocks.add(input);
+            }
+            if (ingest != null)
+            {
+                blocks.add(ingest.getStatusBlock());
+            }
+            if (capture != null)
+            {
+                StatusBlock[] cb = capture.getStatusBlocks();
+                for (int n = 0; n < cb.length; n++)
+                {
+                    blocks.add(cb[n]);
+                }
             }
 
-            //I create a status block array. The server state is first.
-            statusBlocks = new StatusBlock[count];
-            statusBlocks[0] = state.getStatusBlock();
-
-            //I put all status blocks into the array.
-            count = 1;
-            i = nodes.values().iterator();
+            TreeMap<String, RtStpsNode> nodes = builder.getConfiguration().getStpsNodes();
+            Iterator<RtStpsNode> i = nodes.values().iterator();
             while (i.hasNext())
             {
                 RtStpsNode node = (RtStpsNode)i.next();
                 if (node.getStatusItems() != null)
                 {
-                    statusBlocks[count++] = new StatusBlock(node);
+                    blocks.add(new StatusBlock(node));
                 }
             }
+            statusBlocks = blocks.toArray(new StatusBlock[blocks.size()]);
 
             //Update the state.
             state.load(builder.getConfiguration().getName());
@@ -295,6 +313,7 @@ public abstract class AbstractServer extends java.rmi.server.UnicastRemoteObject
         running = false;
         try { runner.join(3000L); }
         catch(InterruptedException ie1) {  }
+        if (capture != null) capture.close();
         log("Someone stopped the server.");
         System.exit(0);
     }
@@ -327,6 +346,7 @@ public abstract class AbstractServer extends java.rmi.server.UnicastRemoteObject
     public synchronized StatusBlock[] getStatus() throws RemoteException
     {
         state.advanceClock();
+        updateStatus();
         return statusBlocks;
     }
 
@@ -336,6 +356,7 @@ public abstract class AbstractServer extends java.rmi.server.UnicastRemoteObject
     public synchronized String[] getStatusToString() throws RemoteException 
     {
 		state.advanceClock();
+		updateStatus();
 
 		if (statusBlocks == null)
 			return null;
@@ -369,4 +390,130 @@ public abstract class AbstractServer extends java.rmi.server.UnicastRemoteObject
      * pipeline if it exists. It discards the data if the pipeline is null.
      */
     public abstract void run();
+
+    /**
+     * Create the ingest queue and start the thread that empties it into the
+     * pipeline. A derived server calls this from its constructor if it uses
+     * a queue. The queue size and overload policy come from the
+     * ingestQueueDepth and overloadPolicy system properties.
+     * @param blockSize The size of each queued block in bytes.
+     */
+    protected final void startIngestQueue(int blockSize)
+    {
+        int depth = Integer.getInteger("ingestQueueDepth",32).intValue();
+        if (depth <= 0) return;
+        int policy = IngestQueue.toPolicy(System.getProperty("overloadPolicy","block"));
+
+        ingest = new IngestQueue(depth,blockSize,policy);
+
+        Thread worker = new Thread("ingest")
+        {
+            public void run()
+            {
+                drainIngestQueue();
+            }
+        };
+        worker.setDaemon(true);
+        worker.setPriority(Thread.MAX_PRIORITY);
+        worker.start();
+        ingestThread = worker;
+    }
+
+    /**
+     * Start recording the raw input if the capture.directory system
+     * property is set. The segment ring size comes from capture.segments
+     * and capture.segmentMb. A derived server calls this from its
+     * constructor and gives each chunk it reads to capture.capture().
+     * @param blockSize The largest chunk the server reads at once.
+     */
+    protected final void startCapture(int blockSize)
+    {
+        startCapture(blockSize,0);
+    }
+
+    /**
+     * Start recording whole datagrams that carry a sequence counter.
+     * @param blockSize The largest datagram, including its counter.
+     * @param sequenceBytes The size of the counter, which goes in the
+     *          capture so that a replay knows about it.
+     */
+    protected final void startCapture(int blockSize, int sequenceBytes)
+    {
+        try
+        {
+            capture = CaptureTap.create(blockSize,sequenceBytes);
+            if (capture != null)
+            {
+                log("Capturing raw input in " + System.getProperty("capture.directory"));
+
+                //A server stopped with a signal still writes its last records.
+                final CaptureTap tap = capture;
+                Runtime.getRuntime().addShutdownHook(new Thread("capture-close")
+                {
+                    public void run()
+                    {
+                        tap.close();
+                    }
+                });
+            }
+        }
+        catch (IOException ioe)
+        {
+            log("Capture is disabled. " + ioe.getMessage());
+        }
+    }
+
+    /**
+     * The ingest thread takes blocks from the queue and gives them to
+     * process() until the server stops.
+     */
+    private void drainIngestQueue()
+    {
+        while (running)
+        {
+            IngestQueue.Block block;
+            try
+            {
+                block = ingest.take(500L);
+            }
+            catch (InterruptedException ie)
+            {
+                break;
+            }
+            if (block == null) continue;
+
+            try
+            {
+                process(block.data,block.length);
+            }
+            finally
+            {
+                ingest.recycle(block);
+            }
+        }
+    }
+
+    /**
+     * Bring status items that are computed rather than counted up to date.
+     * I call this whenever someone reads the status.
+     */
+    protected void updateStatus()
+    {
+    }
+
+    /**
+     * Get the status block of the server's input socket, if it has one.
+     * It follows the server state in the status.
+     */
+    protected StatusBlock getInputStatusBlock()
+    {
+        return null;
+    }
+
+    /**
+     * Give one block of input data to the pipeline. The reader thread calls
+     * this directly when there is no ingest queue; otherwise the ingest
+     * thread calls it.
+     */
+    protected abstract void process(byte[] data, int length);
 }
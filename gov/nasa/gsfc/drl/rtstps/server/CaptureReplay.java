@@ -0,0 +1,355 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.server;
+import gov.nasa.gsfc.drl.rtstps.core.Builder;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsException;
+import gov.nasa.gsfc.drl.rtstps.core.RtStpsNode;
+import gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This program plays back a session that a server recorded with its capture
+ * tap. It gives each recorded chunk to a target at the chunk's original
+ * arrival time, or at N times that speed, or as fast as possible. The chunk
+ * boundaries are kept, so a UDP capture replays as the same datagrams,
+ * with the sequence counters they arrived with. When the target is not UDP,
+ * I strip the counters, as the UDP server would have.
+ * <p>
+ * Arguments: [captureDirectory] [target]
+ * <br>The target is a setup file, in which case I build a pipeline from it
+ * and feed it directly, or "tcp:host:port" or "udp:host:port" to send the
+ * session to a running server. It also serves as a load generator.
+ * <p>
+ * Options:
+ * <br>-Dspeed=1.0 -- the playback speed. Zero plays as fast as possible.
+ * <br>-Dsession=id -- the session to play. The default is the newest one.
+ * <br>-Droot=stp.dtdDirectory -- as for Batch, when the target is a setup.
+ *
+ */
+public final class CaptureReplay
+{
+    /**
+     * I sleep until a chunk is this close to its time, and then I park for
+     * the rest.
+     */
+    private static final long SLEEP_MARGIN_NANOS = 2000000L;
+
+    /**
+     * Where replayed chunks go.
+     */
+    private interface Target
+    {
+        void put(byte[] data, int offset, int length) throws IOException, RtStpsException;
+        void close() throws IOException, RtStpsException;
+    }
+
+    /**
+     * One segment of the session.
+     */
+    private static final class Segment implements Comparable<Segment>
+    {
+        File file;
+        long sequence;
+        int sequenceBytes;
+
+        public int compareTo(Segment other)
+        {
+            return (sequence < other.sequence)? -1 : ((sequence == other.sequence)? 0 : 1);
+        }
+    }
+
+    public static void main(String[] args)
+    {
+        if (args.length != 2)
+        {
+            System.err.println("Options: [-Dspeed=1.0] [-Dsession=<id>] [-Droot=<stp.dtdDirectory>]");
+            System.err.println("Arguments: [captureDirectory] [setupFile|tcp:host:port|udp:host:port]");
+            System.exit(1);
+        }
+
+        double speed = Double.parseDouble(System.getProperty("speed","1.0"));
+        String session = System.getProperty("session");
+
+        try
+        {
+            List<Segment> segments = findSession(new File(args[0]),session);
+            Target target = createTarget(args[1]);
+            replay(segments,target,speed,args[1].startsWith("udp:"));
+        }
+        catch (IOException ioe)
+        {
+            System.err.println(ioe.getMessage());
+            System.exit(-1);
+        }
+        catch (RtStpsException re)
+        {
+            re.printStackTrace();
+            System.exit(-2);
+        }
+    }
+
+    /**
+     * Find the segments of one session in sequence order.
+     * @param session The session id, or null for the newest session.
+     */
+    private static List<Segment> findSession(File directory, String session)
+            throws IOException
+    {
+        TreeMap<Long,List<Segment>> sessions = new TreeMap<Long,List<Segment>>();
+        File[] files = directory.listFiles();
+        if (files == null) throw new IOException(directory + " is not a directory.");
+
+        ByteBuffer header = ByteBuffer.allocate(CaptureTap.HEADER_SIZE);
+        for (int n = 0; n < files.length; n++)
+        {
+            String name = files[n].getName();
+            if (!name.startsWith(CaptureTap.PREFIX) || !name.endsWith(CaptureTap.SUFFIX))
+            {
+                continue;
+            }
+            RandomAccessFile raf = new RandomAccessFile(files[n],"r");
+            try
+            {
+                header.clear();
+                raf.getChannel().read(header,0L);
+                header.flip();
+                if (header.remaining() < CaptureTap.HEADER_SIZE) continue;
+                if (header.getInt() != CaptureTap.MAGIC) continue;
+                if (header.getInt() != CaptureTap.VERSION) continue;
+                Long id = Long.valueOf(header.getLong());
+                Segment segment = new Segment();
+                segment.file = files[n];
+                segment.sequence = header.getLong();
+                segment.sequenceBytes = header.getInt();
+                List<Segment> list = sessions.get(id);
+                if (list == null)
+                {
+                    list = new ArrayList<Segment>();
+                    sessions.put(id,list);
+                }
+                list.add(segment);
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+
+        if (sessions.isEmpty())
+        {
+            throw new IOException("There is no capture in " + directory);
+        }
+        Long id = (session == null)? sessions.lastKey() : Long.valueOf(session);
+        List<Segment> list = sessions.get(id);
+        if (list == null)
+        {
+            throw new IOException("There is no session " + id + " in " + directory);
+        }
+        java.util.Collections.sort(list);
+        System.out.println("Session " + id + " started " + new java.util.Date(id.longValue()) +
+                ", " + list.size() + " segments");
+        return list;
+    }
+
+    private static Target createTarget(String name) throws IOException, RtStpsException
+    {
+        if (name.startsWith("tcp:"))
+        {
+            InetSocketAddress address = toAddress(name.substring(4));
+            final Socket socket = new Socket(address.getAddress(),address.getPort());
+            final OutputStream output = socket.getOutputStream();
+            return new Target()
+            {
+                public void put(byte[] data, int offset, int length) throws IOException
+                {
+                    output.write(data,offset,length);
+                }
+                public void close() throws IOException
+                {
+                    output.flush();
+                    socket.close();
+                }
+            };
+        }
+
+        if (name.startsWith("udp:"))
+        {
+            final InetSocketAddress address = toAddress(name.substring(4));
+            final DatagramSocket socket = new DatagramSocket();
+            final DatagramPacket packet = new DatagramPacket(new byte[0],0,address);
+            return new Target()
+            {
+                public void put(byte[] data, int offset, int length) throws IOException
+                {
+                    packet.setData(data,offset,length);
+                    socket.send(packet);
+                }
+                public void close()
+                {
+                    socket.close();
+                }
+            };
+        }
+
+        BufferedReader br = new BufferedReader(new FileReader(name));
+        org.xml.sax.InputSource setup = new org.xml.sax.InputSource(br);
+        setup.setSystemId(System.getProperty("root","file://localhost/"));
+        final Builder builder = new Builder();
+        final FrameSynchronizer fs = builder.create(setup);
+        br.close();
+        return new Target()
+        {
+            public void put(byte[] data, int offset, int length) throws RtStpsException
+            {
+                if (offset > 0) System.arraycopy(data,offset,data,0,length);
+                fs.putBuffer(data,length);
+            }
+            public void close() throws RtStpsException
+            {
+                fs.shutdown();
+                Iterator<RtStpsNode> i = builder.getConfiguration().getStpsNodes().values().iterator();
+                while (i.hasNext())
+                {
+                    RtStpsNode node = i.next();
+                    if (node.getStatusItems() == null) continue;
+                    System.out.println(node);
+                    for (StatusItem si : node.getStatusItems())
+                    {
+                        System.out.println("    " + si);
+                    }
+                }
+            }
+        };
+    }
+
+    private static InetSocketAddress toAddress(String hostPort)
+    {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0,colon),
+                Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    /**
+     * Play the records of the segments to the target.
+     * @param datagrams If true, the target gets whole datagrams, with their
+     *          sequence counters. Otherwise I strip the counters.
+     */
+    private static void replay(List<Segment> segments, Target target, double speed,
+            boolean datagrams) throws IOException, RtStpsException
+    {
+        byte[] data = new byte[64 * 1024];
+        long records = 0L;
+        long bytes = 0L;
+        long maxLateNanos = 0L;
+        long firstNanos = -1L;
+        long lastNanos = 0L;
+        long start = System.nanoTime();
+
+        try
+        {
+            for (Segment segment : segments)
+            {
+                RandomAccessFile raf = new RandomAccessFile(segment.file,"r");
+                try
+                {
+                    FileChannel channel = raf.getChannel();
+                    MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                            0L,channel.size());
+                    map.position(CaptureTap.HEADER_SIZE);
+                    int skip = datagrams? 0 : segment.sequenceBytes;
+
+                    while (map.remaining() >= CaptureTap.RECORD_HEADER_SIZE)
+                    {
+                        int length = map.getInt();
+                        if (length <= 0) break;
+                        long nanos = map.getLong();
+                        if (length > map.remaining()) break;
+                        if (length > data.length) data = new byte[length];
+                        map.get(data,0,length);
+
+                        if (firstNanos < 0L) firstNanos = nanos;
+                        lastNanos = nanos;
+                        if (speed > 0.0)
+                        {
+                            long due = start + (long)((nanos - firstNanos) / speed);
+                            long late = waitUntil(due);
+                            if (late > maxLateNanos) maxLateNanos = late;
+                        }
+
+                        if (length <= skip) continue;
+                        target.put(data,skip,length - skip);
+                        ++records;
+                        bytes += length - skip;
+                    }
+                }
+                finally
+                {
+                    raf.close();
+                }
+            }
+        }
+        finally
+        {
+            target.close();
+        }
+
+        long elapsed = Math.max(1L,System.nanoTime() - start);
+        double seconds = elapsed / 1.0e9;
+        double captured = Math.max(0L,lastNanos - firstNanos) / 1.0e9;
+        System.out.println(String.format(
+                "replayed %d records, %.1f MB in %.3f seconds, %.2f MB/s",
+                records, bytes / (1024.0 * 1024.0), seconds,
+                bytes / (1024.0 * 1024.0) / seconds));
+        System.out.println(String.format(
+                "captured over %.3f seconds, replay speed %.2fx, max lateness %.3f ms",
+                captured, (seconds > 0.0)? captured / seconds : 0.0,
+                maxLateNanos / 1.0e6));
+    }
+
+    /**
+     * Wait until a time.
+     * @return How late I am, in nanoseconds.
+     */
+    private static long waitUntil(long due) throws IOException
+    {
+        long wait = due - System.nanoTime();
+        if (wait > SLEEP_MARGIN_NANOS)
+        {
+            try
+            {
+                Thread.sleep((wait - SLEEP_MARGIN_NANOS) / 1000000L);
+            }
+            catch (InterruptedException ie)
+            {
+                throw new java.io.InterruptedIOException();
+            }
+        }
+        while ((wait = due - System.nanoTime()) > 0L)
+        {
+            LockSupport.parkNanos(wait);
+        }
+        return -wait;
+    }
+}
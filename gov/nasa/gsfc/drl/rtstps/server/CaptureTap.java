@@ -0,0 +1,418 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.server;
+import gov.nasa.gsfc.drl.rtstps.core.output.PreallocatedFile;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * This class records a server's raw input with arrival times. It writes a
+ * ring of preallocated segment files in one directory, so the most recent
+ * input is always on disk and the disk use is fixed. CaptureReplay plays a
+ * captured session back.
+ * <p>
+ * The socket thread calls capture(), which only copies the data into a free
+ * block of a queue. A writer thread empties the queue into the segments. If
+ * the writer falls behind, the queue drops the new input rather than slow
+ * down the socket thread, and the drops appear in the Server.Capture status
+ * block.
+ * <p>
+ * A segment starts with a header: the magic number, the format version, the
+ * session id (the capture start time in milliseconds), the segment
+ * sequence number, which grows across the whole ring, and the size of the
+ * sequence counter in front of each datagram (int, zero for TCP input or
+ * datagrams without a counter). A UDP server records whole datagrams, with
+ * the counter, so a replay can send the same datagrams. Records follow. A
+ * record is the data length (int), the arrival time in nanoseconds since the
+ * session started (long), and the data. A zero length ends the segment.
+ * Segments are preallocated, and I write a zero length after the last
+ * record, so a reader stops at the right place even in a reused segment or
+ * after a crash.
+ * <p>
+ * A new capture continues after the newest existing segment, so the last
+ * session stays on disk until the ring wraps around onto it.
+ *
+ */
+final class CaptureTap implements Runnable
+{
+    static final int MAGIC = 0x52544350;    //"RTCP"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 32;
+    static final int RECORD_HEADER_SIZE = 12;
+    static final String PREFIX = "capture-";
+    static final String SUFFIX = ".seg";
+
+    /**
+     * The writer collects records in a buffer of this size before it writes
+     * them.
+     */
+    private static final int STAGING_SIZE = 1024 * 1024;
+
+    /**
+     * close waits at most this long for the writer to empty the queue.
+     */
+    private static final long CLOSE_TIMEOUT_MS = 5000L;
+
+    private final File directory;
+    private final int segmentCount;
+    private final long segmentSize;
+    private final IngestQueue queue;
+    private final long sessionId;
+    private final long sessionNanos;
+    private final ByteBuffer staging;
+    private final int sequenceBytes;
+    private volatile boolean running = true;
+    private Thread writer;
+
+    private RandomAccessFile file = null;
+    private FileChannel channel = null;
+    private int segmentIndex;
+    private long segmentSequence;
+    private long segmentPosition = 0L;
+
+    private StatusBlock statusBlock;
+    private LongStatusItem records;
+    private LongStatusItem bytes;
+    private LongStatusItem segment;
+    private LongStatusItem writeErrors;
+    private LongStatusItem tooLarge;
+
+
+    /**
+     * Create a capture tap and start its writer thread.
+     * @param directory The directory for the segment files.
+     * @param segmentCount The number of segments in the ring.
+     * @param segmentSize The size of each segment in bytes.
+     * @param queueDepth The number of blocks the writer may fall behind.
+     * @param blockSize The largest input chunk.
+     * @param sequenceBytes The size of the counter in front of each
+     *          datagram, which I record in every segment header.
+     */
+    CaptureTap(File directory, int segmentCount, long segmentSize,
+            int queueDepth, int blockSize, int sequenceBytes) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs())
+        {
+            throw new IOException("Cannot create " + directory);
+        }
+
+        this.directory = directory;
+        this.segmentCount = segmentCount;
+        this.segmentSize = segmentSize;
+        this.sequenceBytes = sequenceBytes;
+        sessionId = System.currentTimeMillis();
+        sessionNanos = System.nanoTime();
+        staging = ByteBuffer.allocateDirect(STAGING_SIZE);
+        queue = new IngestQueue(queueDepth,blockSize,IngestQueue.DROP_NEWEST,
+                "Capture Queue");
+
+        records = new LongStatusItem("Records");
+        bytes = new LongStatusItem("Bytes");
+        segment = new LongStatusItem("Segment");
+        segment.setClearable(false);
+        writeErrors = new LongStatusItem("Write Errors");
+        tooLarge = new LongStatusItem("Too Large");
+        StatusItem[] items = { records, bytes, segment, writeErrors, tooLarge };
+        statusBlock = new StatusBlock("Server","Capture",items);
+
+        preallocate();
+        openSegment();
+
+        writer = new Thread(this,"capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Create a capture tap from the capture.* system properties.
+     * @param blockSize The largest input chunk, including any counter.
+     * @param sequenceBytes The size of the counter in front of each
+     *          datagram, or zero.
+     * @return null if capture.directory is not set.
+     */
+    static CaptureTap create(int blockSize, int sequenceBytes) throws IOException
+    {
+        String dir = System.getProperty("capture.directory");
+        if (dir == null) return null;
+        int segments = Integer.getInteger("capture.segments",16).intValue();
+        long segmentMb = Integer.getInteger("capture.segmentMb",64).intValue();
+        int depth = Integer.getInteger("capture.queueDepth",64).intValue();
+        return new CaptureTap(new File(dir),segments,segmentMb * 1024L * 1024L,
+                depth,blockSize,sequenceBytes);
+    }
+
+    /**
+     * Get the status blocks of the tap and its queue.
+     */
+    StatusBlock[] getStatusBlocks()
+    {
+        return new StatusBlock[] { statusBlock, queue.getStatusBlock() };
+    }
+
+    /**
+     * Get the segment file with an index.
+     */
+    static File segmentFile(File directory, int index)
+    {
+        return new File(directory,PREFIX + String.format("%03d",index) + SUFFIX);
+    }
+
+    /**
+     * Record a chunk of input. Only the socket thread may call this. It
+     * never waits.
+     */
+    void capture(byte[] data, int offset, int length)
+    {
+        if (length <= 0) return;
+        IngestQueue.Block block;
+        try
+        {
+            block = queue.getFreeBlock();
+        }
+        catch (InterruptedException ie)
+        {
+            return;
+        }
+        int n = Math.min(length,block.data.length);
+        System.arraycopy(data,offset,block.data,0,n);
+        queue.put(block,n);
+    }
+
+    /**
+     * Record the remaining bytes of a buffer, from its position to its
+     * limit, without moving its position. Only the socket thread may call
+     * this. It never waits.
+     */
+    void capture(ByteBuffer data)
+    {
+        int length = data.remaining();
+        if (length <= 0) return;
+        IngestQueue.Block block;
+        try
+        {
+            block = queue.getFreeBlock();
+        }
+        catch (InterruptedException ie)
+        {
+            return;
+        }
+        int n = Math.min(length,block.data.length);
+        int position = data.position();
+        data.get(block.data,0,n);
+        data.position(position);
+        queue.put(block,n);
+    }
+
+    /**
+     * Stop the writer after it has written everything queued, and wait
+     * until it has written its staged records and closed the segment. A
+     * shutdown hook calls this, so I wait at most CLOSE_TIMEOUT_MS for the
+     * queue, and then I drop what the writer has not taken.
+     */
+    void close()
+    {
+        if (!running) return;
+        try
+        {
+            if (!queue.drain(CLOSE_TIMEOUT_MS,writer))
+            {
+                System.err.println("The capture writer fell behind at shutdown." +
+                        " I dropped the records it had not taken.");
+            }
+            running = false;
+            writer.join(CLOSE_TIMEOUT_MS);
+        }
+        catch (InterruptedException ie)
+        {
+            running = false;
+        }
+    }
+
+    /**
+     * The writer thread.
+     */
+    public void run()
+    {
+        while (running)
+        {
+            IngestQueue.Block block;
+            try
+            {
+                block = queue.take(200L);
+            }
+            catch (InterruptedException ie)
+            {
+                break;
+            }
+
+            try
+            {
+                if (block != null)
+                {
+                    append(block);
+                }
+                //I write when the queue is empty, so the disk is never far
+                //behind the input.
+                if ((queue.getQueued() == 0) && (staging.position() > 0))
+                {
+                    writeStaging();
+                }
+            }
+            catch (IOException ioe)
+            {
+                ++writeErrors.value;
+                staging.clear();
+            }
+            finally
+            {
+                if (block != null) queue.recycle(block);
+            }
+        }
+
+        try
+        {
+            if (staging.position() > 0) writeStaging();
+            if (channel != null) channel.close();
+            if (file != null) file.close();
+        }
+        catch (IOException ioe)
+        {
+            ++writeErrors.value;
+        }
+    }
+
+    private void append(IngestQueue.Block block) throws IOException
+    {
+        int size = RECORD_HEADER_SIZE + block.length;
+
+        //I leave room for the terminator.
+        if ((HEADER_SIZE + size + 4 > segmentSize) || (size + 4 > STAGING_SIZE))
+        {
+            ++tooLarge.value;
+            return;
+        }
+        if (segmentPosition + staging.position() + size + 4 > segmentSize)
+        {
+            writeStaging();
+            nextSegment();
+        }
+        if (staging.remaining() < size + 4)
+        {
+            writeStaging();
+        }
+
+        staging.putInt(block.length);
+        staging.putLong(block.arrivalNanos - sessionNanos);
+        staging.put(block.data,0,block.length);
+        ++records.value;
+        bytes.value += block.length;
+    }
+
+    /**
+     * Write the staged records followed by a terminator. The next write
+     * starts over the terminator.
+     */
+    private void writeStaging() throws IOException
+    {
+        int length = staging.position();
+        staging.putInt(0);
+        staging.flip();
+        long position = segmentPosition;
+        while (staging.hasRemaining())
+        {
+            position += channel.write(staging,position);
+        }
+        segmentPosition += length;
+        staging.clear();
+    }
+
+    /**
+     * Make sure every segment file exists at its full size with its disk
+     * space allocated, and find the
+     * newest one so that this session continues after it.
+     */
+    private void preallocate() throws IOException
+    {
+        long newest = -1L;
+        int newestIndex = -1;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        for (int n = 0; n < segmentCount; n++)
+        {
+            RandomAccessFile raf = new RandomAccessFile(segmentFile(directory,n),"rw");
+            try
+            {
+                if (raf.length() >= HEADER_SIZE)
+                {
+                    header.clear();
+                    raf.getChannel().read(header,0L);
+                    header.flip();
+                    if (header.getInt() == MAGIC)
+                    {
+                        header.getInt();
+                        header.getLong();
+                        long sequence = header.getLong();
+                        if (sequence > newest)
+                        {
+                            newest = sequence;
+                            newestIndex = n;
+                        }
+                    }
+                }
+                //setLength alone would make a sparse file, so I write zeros.
+                long length = raf.length();
+                if (length > segmentSize) raf.setLength(segmentSize);
+                else if (length < segmentSize)
+                {
+                    PreallocatedFile.allocate(raf.getChannel(),length,segmentSize);
+                }
+            }
+            finally
+            {
+                raf.close();
+            }
+        }
+        segmentIndex = (newestIndex + 1) % segmentCount;
+        segmentSequence = newest + 1L;
+    }
+
+    private void nextSegment() throws IOException
+    {
+        channel.close();
+        file.close();
+        segmentIndex = (segmentIndex + 1) % segmentCount;
+        ++segmentSequence;
+        openSegment();
+    }
+
+    private void openSegment() throws IOException
+    {
+        file = new RandomAccessFile(segmentFile(directory,segmentIndex),"rw");
+        channel = file.getChannel();
+
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE + 4);
+        header.putInt(MAGIC);
+        header.putInt(VERSION);
+        header.putLong(sessionId);
+        header.putLong(segmentSequence);
+        header.putInt(sequenceBytes);
+        header.putInt(0);
+        header.putInt(0);   //an empty segment
+        header.flip();
+        long position = 0L;
+        while (header.hasRemaining())
+        {
+            position += channel.write(header,position);
+        }
+        segmentPosition = HEADER_SIZE;
+        segment.value = segmentIndex;
+    }
+}
@@ -0,0 +1,317 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.server;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * This class receives telemetry datagrams from a DatagramChannel. It
+ * receives into one direct buffer, so the channel does not need a temporary
+ * buffer of its own, and copies the payload once into the caller's array.
+ * The caller is normally a server that passes in the recycled blocks of its
+ * ingest queue, so nothing is allocated per datagram.
+ * <p>
+ * It can reject datagrams from all but one source. The source address is
+ * resolved once, and each datagram is checked with an address comparison.
+ * <p>
+ * It can also check an application-level sequence counter. If the sender
+ * puts a big-endian counter of sequenceBytes bytes in front of each
+ * datagram, I strip it, count the datagrams lost in gaps, and count those
+ * that arrive out of order. The reorder window is a quarter of the counter
+ * space, but at most REORDER_WINDOW. A counter that goes back by more than
+ * the window is taken as a sender restart, and I resynchronize to it. So is
+ * a run of RESYNC_LATE late datagrams in a row, because a restarted sender
+ * whose counter lands just behind mine would otherwise look late forever.
+ * <p>
+ * The receiver publishes a status block with its counts and its receive
+ * rates. The rates are averages over the last second or more. The server
+ * updates them when someone reads the status, so they fall to zero when
+ * the input stops.
+ *
+ */
+final class DatagramReceiver
+{
+    private static final long RATE_INTERVAL_NANOS = 1000000000L;
+
+    /**
+     * A datagram whose counter is at most the reorder window behind the
+     * expected counter is late. Farther back than this, the sender has
+     * restarted. The window is never larger than this.
+     */
+    private static final long REORDER_WINDOW = 1024L;
+
+    /**
+     * After this many late datagrams in a row, I take it that the sender
+     * has restarted.
+     */
+    private static final int RESYNC_LATE = 8;
+
+    private final DatagramChannel channel;
+    private final ByteBuffer buffer;
+    private final int blockSize;
+    private final InetAddress source;
+    private final int sequenceBytes;
+    private final long sequenceMask;
+    private final long reorderWindow;
+
+    private CaptureTap capture = null;
+    private boolean haveSequence = false;
+    private long expectedSequence = 0L;
+
+    /**
+     * The current run of late datagrams, and how many of them I took back
+     * from the lost count.
+     */
+    private int lateRun = 0;
+    private int lateUnlost = 0;
+
+    /**
+     * The socket thread counts these, and they are never cleared, so the
+     * rates do not jump when someone zeroes the status.
+     */
+    private volatile long totalDatagrams = 0L;
+    private volatile long totalBytes = 0L;
+
+    private long rateNanos = 0L;
+    private long rateDatagrams = 0L;
+    private long rateBytes = 0L;
+
+    private StatusBlock statusBlock;
+    private LongStatusItem datagrams;
+    private LongStatusItem bytes;
+    private LongStatusItem datagramsPerSecond;
+    private LongStatusItem bytesPerSecond;
+    private LongStatusItem rejected;
+    private LongStatusItem truncated;
+    private LongStatusItem gaps;
+    private LongStatusItem lost;
+    private LongStatusItem outOfOrder;
+    private LongStatusItem resyncs;
+
+
+    /**
+     * Create a datagram receiver.
+     * @param port The UDP port.
+     * @param receiveBufferSize The socket receive buffer (SO_RCVBUF) size
+     *          in bytes. Zero or less keeps the platform default.
+     * @param blockSize The largest payload I give to the caller.
+     * @param source If not null, I reject datagrams from any other address.
+     * @param sequenceBytes The size of the sequence counter in front of
+     *          each datagram, from 1 to 8. Zero means there is none.
+     */
+    DatagramReceiver(int port, int receiveBufferSize, int blockSize,
+            InetAddress source, int sequenceBytes) throws IOException
+    {
+        if (sequenceBytes < 0 || sequenceBytes > 8)
+        {
+            throw new IllegalArgumentException("sequenceBytes must be 0 to 8.");
+        }
+
+        this.blockSize = blockSize;
+        this.source = source;
+        this.sequenceBytes = sequenceBytes;
+        sequenceMask = (sequenceBytes == 8)? -1L : (1L << (8 * sequenceBytes)) - 1L;
+        reorderWindow = Math.min(REORDER_WINDOW,(sequenceMask >>> 2) + 1L);
+
+        channel = DatagramChannel.open();
+        channel.socket().bind(new InetSocketAddress(port));
+
+        int rsize = channel.socket().getReceiveBufferSize();
+        System.out.println("This platform's UDP default input buffer size is "+
+                rsize + " bytes.");
+        if (receiveBufferSize > 0)
+        {
+            channel.socket().setReceiveBufferSize(receiveBufferSize);
+            System.out.println("I set the buffer size to " +
+                    channel.socket().getReceiveBufferSize());
+        }
+
+        //The extra byte lets me see that a datagram did not fit.
+        buffer = ByteBuffer.allocateDirect(sequenceBytes + blockSize + 1);
+
+        StatusItem[] items = new StatusItem[10];
+        datagrams = new LongStatusItem("Datagrams");
+        items[0] = datagrams;
+        bytes = new LongStatusItem("Bytes");
+        items[1] = bytes;
+        datagramsPerSecond = new LongStatusItem("Datagrams per Second");
+        datagramsPerSecond.setClearable(false);
+        items[2] = datagramsPerSecond;
+        bytesPerSecond = new LongStatusItem("Bytes per Second");
+        bytesPerSecond.setClearable(false);
+        items[3] = bytesPerSecond;
+        rejected = new LongStatusItem("Rejected Sources");
+        items[4] = rejected;
+        truncated = new LongStatusItem("Truncated");
+        items[5] = truncated;
+        gaps = new LongStatusItem("Sequence Gaps");
+        items[6] = gaps;
+        lost = new LongStatusItem("Datagrams Lost");
+        items[7] = lost;
+        outOfOrder = new LongStatusItem("Out of Order");
+        items[8] = outOfOrder;
+        resyncs = new LongStatusItem("Sequence Resyncs");
+        items[9] = resyncs;
+
+        statusBlock = new StatusBlock("Server","UDP",items);
+    }
+
+    /**
+     * Record every accepted datagram, whole and with its sequence counter,
+     * in a capture tap.
+     */
+    void setCapture(CaptureTap capture)
+    {
+        this.capture = capture;
+    }
+
+    /**
+     * Get the status block for this receiver.
+     */
+    StatusBlock getStatusBlock()
+    {
+        return statusBlock;
+    }
+
+    /**
+     * Wait for the next datagram and copy its payload into an array.
+     * @param data The destination. It must hold at least blockSize bytes.
+     * @return The payload length, or -1 if I rejected the datagram.
+     */
+    int receive(byte[] data) throws IOException
+    {
+        buffer.clear();
+        SocketAddress sender = channel.receive(buffer);
+        buffer.flip();
+
+        if (source != null)
+        {
+            InetAddress address = ((InetSocketAddress)sender).getAddress();
+            if (!source.equals(address))
+            {
+                ++rejected.value;
+                return -1;
+            }
+        }
+
+        if (capture != null) capture.capture(buffer);
+
+        int length = buffer.remaining();
+        ++datagrams.value;
+        bytes.value += length;
+        ++totalDatagrams;
+        totalBytes += length;
+
+        if (sequenceBytes > 0)
+        {
+            if (length < sequenceBytes)
+            {
+                ++truncated.value;
+                return -1;
+            }
+            long sequence = 0L;
+            for (int n = 0; n < sequenceBytes; n++)
+            {
+                sequence = (sequence << 8) | (buffer.get() & 0x0ff);
+            }
+            checkSequence(sequence);
+            length -= sequenceBytes;
+        }
+
+        if (length > blockSize)
+        {
+            ++truncated.value;
+            length = blockSize;
+        }
+        buffer.get(data,0,length);
+        return length;
+    }
+
+    /**
+     * Close the channel. A thread blocked in receive gets an exception.
+     */
+    void close()
+    {
+        try
+        {
+            channel.close();
+        }
+        catch (IOException ioe)
+        {
+        }
+    }
+
+    private void checkSequence(long sequence)
+    {
+        if (haveSequence && (sequence != expectedSequence))
+        {
+            long ahead = (sequence - expectedSequence) & sequenceMask;
+            long behind = (expectedSequence - sequence) & sequenceMask;
+            if (ahead <= (sequenceMask >>> 1))
+            {
+                ++gaps.value;
+                lost.value += ahead;
+            }
+            else if (behind <= reorderWindow && lateRun + 1 < RESYNC_LATE)
+            {
+                //It is late. I counted it as lost when the gap opened, and
+                //I keep waiting for the counter I expected.
+                ++lateRun;
+                ++outOfOrder.value;
+                if (lost.value > 0L)
+                {
+                    --lost.value;
+                    ++lateUnlost;
+                }
+                return;
+            }
+            else
+            {
+                if (behind <= reorderWindow)
+                {
+                    //The late run was a restarted sender, not reordering.
+                    outOfOrder.value = Math.max(0L,outOfOrder.value - lateRun);
+                    lost.value += lateUnlost;
+                }
+                ++resyncs.value;
+            }
+        }
+        lateRun = 0;
+        lateUnlost = 0;
+        haveSequence = true;
+        expectedSequence = (sequence + 1L) & sequenceMask;
+    }
+
+    /**
+     * Update the rates if a second or more has passed since I last did. The
+     * server calls this when someone reads the status.
+     */
+    void updateRates()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - rateNanos;
+        if (elapsed >= RATE_INTERVAL_NANOS)
+        {
+            long d = totalDatagrams;
+            long b = totalBytes;
+            if (rateNanos != 0L)
+            {
+                datagramsPerSecond.value = (d - rateDatagrams) * 1000000000L / elapsed;
+                bytesPerSecond.value = (b - rateBytes) * 1000000000L / elapsed;
+            }
+            rateNanos = now;
+            rateDatagrams = d;
+            rateBytes = b;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.server;
+import gov.nasa.gsfc.drl.rtstps.core.status.LongStatusItem;
+import gov.nasa.gsfc.drl.rtstps.core.status.StatusItem;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This class is a bounded queue of recycled input blocks. It decouples a
+ * server's socket reader from the pipeline. The reader fills free blocks and
+ * puts them into the queue, and a processing thread takes them out, gives
+ * them to the pipeline, and recycles them.
+ * <p>
+ * The free and full lists are lock-free queues, so handing a block over
+ * never takes a lock. A thread that must wait for a block parks, and the
+ * other thread unparks it when it hands one over. The queue is bounded
+ * because the number of blocks is fixed.
+ * <p>
+ * When the pipeline falls behind and the queue is full, the overload policy
+ * decides what happens to the next block:
+ * <br>BLOCK -- the reader waits for the pipeline. Nothing is dropped here,
+ * but a UDP socket may then overflow its kernel buffer.
+ * <br>DROP_NEWEST -- the reader discards the block it just received.
+ * <br>DROP_OLDEST -- the reader discards the oldest queued block to make room.
+ * <p>
+ * The queue publishes a status block with the drop counts, the queue depth,
+ * the number of times the depth rose to the high watermark, the number of
+ * times the reader had to wait, and the longest time a block waited in the
+ * queue.
+ *
+ */
+final class IngestQueue
+{
+    static final int BLOCK = 0;
+    static final int DROP_NEWEST = 1;
+    static final int DROP_OLDEST = 2;
+
+    /**
+     * A single recycled input buffer.
+     */
+    static final class Block
+    {
+        final byte[] data;
+
+        /** A buffer view of data, for channel reads. */
+        final ByteBuffer buffer;
+
+        int length = 0;
+        long arrivalNanos = 0L;
+
+        Block(int size)
+        {
+            data = new byte[size];
+            buffer = ByteBuffer.wrap(data);
+        }
+    }
+
+    /**
+     * A parked thread wakes up after this long even if nobody unparks it.
+     * It only bounds the cost of a missed wakeup.
+     */
+    private static final long PARK_NANOS = 10000000L;
+
+    private final ConcurrentLinkedQueue<Block> free = new ConcurrentLinkedQueue<Block>();
+    private final ConcurrentLinkedQueue<Block> full = new ConcurrentLinkedQueue<Block>();
+    private final int policy;
+    private final int highWatermark;
+
+    /**
+     * Under DROP_NEWEST, the reader receives into this block when the queue
+     * is full. Its contents are never queued.
+     */
+    private final Block scratch;
+
+    /** The number of blocks in the full queue. */
+    private final AtomicInteger queued = new AtomicInteger();
+
+    /**
+     * The number of blocks put into the queue and not yet recycled. I use it
+     * to let a reader wait until the pipeline has consumed everything.
+     */
+    private final AtomicInteger pending = new AtomicInteger();
+
+    /** The reader, while it waits for a free block. */
+    private volatile Thread readerWaiting = null;
+
+    /** The processing thread, while it waits for a full block. */
+    private volatile Thread takerWaiting = null;
+
+    private boolean aboveWatermark = false;
+
+    private StatusBlock statusBlock;
+    private LongStatusItem blocksDropped;
+    private LongStatusItem bytesDropped;
+    private LongStatusItem depth;
+    private LongStatusItem maxDepth;
+    private LongStatusItem highWatermarks;
+    private LongStatusItem readerWaits;
+    private LongStatusItem maxLag;
+
+
+    /**
+     * Create an ingest queue.
+     * @param blockCount The queue depth in blocks.
+     * @param blockSize The size of each block in bytes.
+     * @param policy BLOCK, DROP_NEWEST, or DROP_OLDEST.
+     */
+    IngestQueue(int blockCount, int blockSize, int policy)
+    {
+        this(blockCount,blockSize,policy,"Ingest");
+    }
+
+    /**
+     * Create a block queue with its own status block name.
+     * @param name The name of the status block. Its type is "Server".
+     */
+    IngestQueue(int blockCount, int blockSize, int policy, String name)
+    {
+        this.policy = policy;
+        for (int n = 0; n < blockCount; n++)
+        {
+            free.add(new Block(blockSize));
+        }
+        scratch = new Block(blockSize);
+        highWatermark = Math.max(1,(blockCount * 3) / 4);
+
+        StatusItem[] items = new StatusItem[9];
+        blocksDropped = new LongStatusItem("Blocks Dropped");
+        items[0] = blocksDropped;
+        bytesDropped = new LongStatusItem("Bytes Dropped");
+        items[1] = bytesDropped;
+        depth = new LongStatusItem("Queue Depth");
+        depth.setClearable(false);
+        items[2] = depth;
+        maxDepth = new LongStatusItem("Max Queue Depth");
+        items[3] = maxDepth;
+        LongStatusItem watermark = new LongStatusItem("High Watermark",highWatermark);
+        watermark.setClearable(false);
+        items[4] = watermark;
+        highWatermarks = new LongStatusItem("High Watermark Reached");
+        items[5] = highWatermarks;
+        readerWaits = new LongStatusItem("Reader Waits");
+        items[6] = readerWaits;
+        maxLag = new LongStatusItem("Max Lag (ms)");
+        items[7] = maxLag;
+        LongStatusItem capacity = new LongStatusItem("Queue Capacity",blockCount);
+        capacity.setClearable(false);
+        items[8] = capacity;
+
+        statusBlock = new StatusBlock("Server",name,items);
+    }
+
+    /**
+     * Convert a policy name from a system property to a policy.
+     * @param name "block", "dropNewest", or "dropOldest".
+     */
+    static int toPolicy(String name)
+    {
+        if (name.equalsIgnoreCase("dropNewest")) return DROP_NEWEST;
+        if (name.equalsIgnoreCase("dropOldest")) return DROP_OLDEST;
+        if (name.equalsIgnoreCase("block")) return BLOCK;
+        throw new IllegalArgumentException(name + " is not an overload policy.");
+    }
+
+    /**
+     * Get the status block for this queue.
+     */
+    StatusBlock getStatusBlock()
+    {
+        return statusBlock;
+    }
+
+    /**
+     * Get the number of filled blocks waiting for the processing thread.
+     */
+    int getQueued()
+    {
+        return queued.get();
+    }
+
+    /**
+     * The reader calls this to get an empty block to fill. It applies the
+     * overload policy if no block is free. Under DROP_NEWEST it returns a
+     * scratch block, so the reader still drains its socket, and put()
+     * discards the data.
+     * @return A block. It is never null.
+     */
+    Block getFreeBlock() throws InterruptedException
+    {
+        Block block = free.poll();
+        if (block != null) return block;
+
+        if (policy == DROP_NEWEST)
+        {
+            return scratch;
+        }
+
+        if (policy == DROP_OLDEST)
+        {
+            block = full.poll();
+            if (block != null)
+            {
+                queued.decrementAndGet();
+                ++blocksDropped.value;
+                bytesDropped.value += block.length;
+                pending.decrementAndGet();
+                return block;
+            }
+        }
+
+        //BLOCK, or the processing thread took the oldest block just now.
+        ++readerWaits.value;
+        readerWaiting = Thread.currentThread();
+        try
+        {
+            while ((block = free.poll()) == null)
+            {
+                LockSupport.parkNanos(this,PARK_NANOS);
+                if (Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+        finally
+        {
+            readerWaiting = null;
+        }
+        return block;
+    }
+
+    /**
+     * The reader puts a filled block into the queue.
+     * @param block A block from getFreeBlock.
+     * @param length The number of valid bytes in the block.
+     */
+    void put(Block block, int length)
+    {
+        if (block == scratch)
+        {
+            ++blocksDropped.value;
+            bytesDropped.value += length;
+            return;
+        }
+
+        block.length = length;
+        block.arrivalNanos = System.nanoTime();
+        pending.incrementAndGet();
+        full.add(block);
+        long d = queued.incrementAndGet();
+        depth.value = d;
+        if (d > maxDepth.value) maxDepth.value = d;
+        if (d >= highWatermark)
+        {
+            if (!aboveWatermark) ++highWatermarks.value;
+            aboveWatermark = true;
+        }
+        else
+        {
+            aboveWatermark = false;
+        }
+
+        Thread t = takerWaiting;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    /**
+     * The reader discards a block it filled but may not queue, such as data
+     * that arrives while the server stops. I count it as dropped.
+     */
+    void discard(Block block, int length)
+    {
+        ++blocksDropped.value;
+        bytesDropped.value += length;
+        release(block);
+    }
+
+    /**
+     * The reader returns a block it got but did not fill.
+     */
+    void release(Block block)
+    {
+        if (block != scratch) free.add(block);
+    }
+
+    /**
+     * The processing thread takes the oldest filled block.
+     * @return null if nothing arrived within the timeout.
+     */
+    Block take(long timeoutMs) throws InterruptedException
+    {
+        Block block = full.poll();
+        if (block == null)
+        {
+            long deadline = System.nanoTime() + timeoutMs * 1000000L;
+            takerWaiting = Thread.currentThread();
+            try
+            {
+                while ((block = full.poll()) == null)
+                {
+                    long wait = deadline - System.nanoTime();
+                    if (wait <= 0L) return null;
+                    LockSupport.parkNanos(this,wait);
+                    if (Thread.interrupted()) throw new InterruptedException();
+                }
+            }
+            finally
+            {
+                takerWaiting = null;
+            }
+        }
+
+        depth.value = queued.decrementAndGet();
+        long lag = (System.nanoTime() - block.arrivalNanos) / 1000000L;
+        if (lag > maxLag.value) maxLag.value = lag;
+        return block;
+    }
+
+    /**
+     * The processing thread returns a consumed block to the free list.
+     */
+    void recycle(Block block)
+    {
+        free.add(block);
+        pending.decrementAndGet();
+
+        Thread t = readerWaiting;
+        if (t != null) LockSupport.unpark(t);
+    }
+
+    /**
+     * Wait until the processing thread has consumed every queued block, but
+     * no longer than timeoutMs and only while the processing thread lives.
+     * If I give up, I drop the blocks still in the queue and count them.
+     * @param consumer The processing thread, or null if I should not check
+     *          whether it is alive.
+     * @return true if the queue drained, false if I dropped the rest.
+     */
+    boolean drain(long timeoutMs, Thread consumer) throws InterruptedException
+    {
+        long deadline = System.nanoTime() + timeoutMs * 1000000L;
+        while (pending.get() > 0)
+        {
+            if ((System.nanoTime() - deadline >= 0L) ||
+                    ((consumer != null) && !consumer.isAlive()))
+            {
+                dropQueued();
+                return false;
+            }
+            Thread.sleep(1L);
+        }
+        return true;
+    }
+
+    /**
+     * Drop every block in the full queue. A block the processing thread has
+     * already taken is not affected.
+     */
+    private void dropQueued()
+    {
+        Block block;
+        while ((block = full.poll()) != null)
+        {
+            depth.value = queued.decrementAndGet();
+            ++blocksDropped.value;
+            bytesDropped.value += block.length;
+            pending.decrementAndGet();
+            free.add(block);
+        }
+        Thread t = readerWaiting;
+        if (t != null) LockSupport.unpark(t);
+    }
+}
@@ -5,11 +5,14 @@ All rights reserved.
 */
 package gov.nasa.gsfc.drl.rtstps.server;
 
-import java.io.BufferedInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 
@@ -38,6 +41,23 @@ import java.rmi.registry.LocateRegistry;
  * -DbufferSizeKb=8
  * The amount of data I accumulate before processing. The default is 8 kb.
  * <br>
+ * -DingestQueueDepth=32
+ * <br>The number of bufferSizeKb blocks queued between the socket and the
+ * pipeline. Zero processes each read on the socket thread, as before.
+ * With a queue, the socket thread reads ahead while the pipeline works.
+ * While the pipeline is busy, it keeps filling the same block, so the
+ * pipeline gets fewer and larger blocks when it falls behind. It holds a
+ * partly filled block no longer than holdMs (10) milliseconds.
+ * <br>
+ * -DoverloadPolicy=block
+ * <br>What to do when the ingest queue is full: "block", "dropNewest", or
+ * "dropOldest". Only "block" keeps every byte of the TCP stream.
+ * <br>
+ * -Dcapture.directory=null
+ * <br>If you supply a directory, the server records all raw input with its
+ * arrival times in a ring of capture.segments (16) files of capture.segmentMb
+ * (64) megabytes. CaptureReplay plays a capture back.
+ * <br>
  * -Dsetup=configurationDirectory
  * <br>The directory where local configuration files are found. If provided,
  * all files must be within the directory tree.
@@ -75,9 +95,50 @@ public class TcpServer extends AbstractServer
     private String defaultConfigurationFileName = null;
     private char[] defaultConfigurationBuffer = null;
     
-    InputStream input = null;
-    //Socket dataSocket = null;
-    ServerSocket serverSocket = null;
+    /**
+     * The ingest thread sets this when the pipeline rejects data, which
+     * ends the current connection just as a read error would.
+     */
+    private volatile boolean pipelineError = false;
+
+    /**
+     * The data connection. It is null when no client is connected.
+     */
+    private volatile SocketChannel dataChannel = null;
+
+    /**
+     * The socket thread sets this after it finishes a connection and has
+     * flushed the pipeline. stopData waits on it.
+     */
+    private final Object connectionDone = new Object();
+
+    /**
+     * stopData waits at most this long for the socket thread to finish the
+     * pipeline. Then it interrupts the thread and waits STOP_GRACE_MS more
+     * before it gives up and fails the unload.
+     */
+    private static final long STOP_TIMEOUT_MS = 10000L;
+    private static final long STOP_GRACE_MS = 2000L;
+
+    /**
+     * The socket thread holds a partly filled block at most this long
+     * while the pipeline is busy, so a pause in the input never strands
+     * bytes I have already read.
+     */
+    private static final long HOLD_NANOS =
+            Integer.getInteger("holdMs",10).intValue() * 1000000L;
+
+    /**
+     * While I hold a partial block, I check this often whether the
+     * pipeline has emptied the queue.
+     */
+    private static final long HOLD_POLL_MS = 1L;
+
+    /**
+     * With nothing to hand over, I wait this long for input before I check
+     * whether the server is still running.
+     */
+    private static final long IDLE_WAIT_MS = 500L;
 
 
     /**
@@ -149,6 +210,9 @@ public class TcpServer extends AbstractServer
         inputPort = port;
         inputBufferSize = bufferSize;
 
+        startIngestQueue(inputBufferSize);
+        startCapture(inputBufferSize);
+
         /**
          * This thread reads the sockets and gives the buffers to the
          * FrameSynchronizer object (if it exists), which is the head of the
@@ -186,13 +250,14 @@ public class TcpServer extends AbstractServer
      */
     public void run()
     {
-        byte[] buffer = new byte[inputBufferSize];
-        ServerSocket serverSocket = null;
+        ByteBuffer buffer = ByteBuffer.allocate(inputBufferSize);
+        ServerSocketChannel serverChannel = null;
 
         try
         {
             //The server socket listens for a data transmission client.
-            serverSocket = new ServerSocket(inputPort,0);
+            serverChannel = ServerSocketChannel.open();
+            serverChannel.socket().bind(new InetSocketAddress(inputPort),0);
         }
         catch (java.io.IOException se)
         {
@@ -203,13 +268,13 @@ public class TcpServer extends AbstractServer
 
         while (running)
         {
-            Socket dataSocket = null;
+            SocketChannel channel = null;
 
             try
             {
-                dataSocket = serverSocket.accept();
-                input = dataSocket.getInputStream();
-                input = new BufferedInputStream(input,inputBufferSize);
+                channel = serverChannel.accept();
+                channel.socket().setReceiveBufferSize(
+                        Math.max(inputBufferSize,channel.socket().getReceiveBufferSize()));
             }
             catch (java.io.IOException e)
             {
@@ -240,111 +305,309 @@ public class TcpServer extends AbstractServer
                 }
             }
 
-            int bytesRead = -1;
-            int consecutiveErrors = 0;
-
-		synchronized(readlock)
-		{
-		    do
-		    {
-			try
-			{
-			    if (input != null)
-			    {
-				bytesRead = input.read(buffer);
-				consecutiveErrors = 0;
-				if ((bytesRead > 0) && (fs != null))
-				{
-				    fs.putBuffer(buffer, bytesRead);
-				}
-			    }
-			    else
-			    {
-				bytesRead = -1;
-			    }
-			}
-			catch (java.io.IOException ior)
-			{
-			    log("RT-STPS error reading data socket. I will try again. "+ ior.getMessage());
-			    ++consecutiveErrors;
-			    bytesRead = (consecutiveErrors >= 4)? -1 : 0;
-			}
-			catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException se)
-			{
-			    log("Data read error. "+se.getMessage());
-			    bytesRead = -1;
-			}
-		    }
-		    while (running && (bytesRead >= 0));
-
-		    try 
-		    {
-			if (input != null)
-			{
-			    input.close();
-			    input = null;
-			}
-		    } 
-		    catch (java.io.IOException e1) 
-		    {
-			e1.printStackTrace();
-		    }
-		    try 
-		    {
-			dataSocket.close();
-		    } catch (java.io.IOException e2) {
-			e2.printStackTrace();
-		    }
-		    try 
-		    {
-			if (fs != null) 
-			{
-			    fs.flush();
-			} 
-			else 
-			{
-			    System.out.println("Shutting down pipeline -- FS is already null, skipping fs.flush()");
-			}
-		    } 
-		    catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException e3) 
-		    {
-			e3.printStackTrace();
-		    }
-		    state.unload();
-		    fs = null;
-		}
+            //I finish only the pipeline this connection started with.
+            gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer pipeline = fs;
+            dataChannel = channel;
+            if (ingest != null)
+            {
+                readAhead(channel);
+            }
+            else
+            {
+                readInline(channel,buffer);
+            }
+            finishConnection(channel,pipeline);
             log("I shut down the pipeline.");
         }
 
-	try {
-		serverSocket.close();
-	} catch (java.io.IOException ssio) {
-		ssio.printStackTrace();
-	}
+        try
+        {
+            serverChannel.close();
+        }
+        catch (java.io.IOException ssio)
+        {
+            ssio.printStackTrace();
+        }
         log("I stop now.");
         
     }
-    
+
+    /**
+     * Read the connection into ingest queue blocks until it ends. A block
+     * goes to the queue as soon as the pipeline is idle. While the pipeline
+     * still has queued blocks, I keep reading into the same block until it
+     * is full, the pipeline empties the queue, or I have held the block for
+     * HOLD_NANOS. I read without blocking and wait in a selector, so I see
+     * those last two events even when the sender pauses.
+     */
+    private void readAhead(SocketChannel channel)
+    {
+        int consecutiveErrors = 0;
+        IngestQueue.Block block = null;
+        long heldSince = 0L;
+        boolean open = true;
+        Selector selector = null;
+        try
+        {
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector,SelectionKey.OP_READ);
+        }
+        catch (java.io.IOException ioe)
+        {
+            log("RT-STPS error preparing the data socket. "+ ioe.getMessage());
+            open = false;
+        }
+
+        try
+        {
+            while (running && open && !pipelineError)
+            {
+                if (block == null)
+                {
+                    block = ingest.getFreeBlock();
+                    block.buffer.clear();
+                }
+
+                int bytesRead = 0;
+                try
+                {
+                    bytesRead = channel.read(block.buffer);
+                    consecutiveErrors = 0;
+                    if (bytesRead < 0) open = false;
+                    else if ((bytesRead > 0) && (capture != null))
+                    {
+                        int end = block.buffer.position();
+                        capture.capture(block.data,end - bytesRead,bytesRead);
+                    }
+                }
+                catch (ClosedChannelException cce)
+                {
+                    //stopData closed the connection.
+                    open = false;
+                }
+                catch (java.io.IOException ior)
+                {
+                    log("RT-STPS error reading data socket. I will try again. "+ ior.getMessage());
+                    if (++consecutiveErrors >= 4) open = false;
+                }
+
+                int length = block.buffer.position();
+                long now = System.nanoTime();
+                if ((length > 0) && (heldSince == 0L)) heldSince = now;
+                boolean filling = open && block.buffer.hasRemaining() &&
+                        (ingest.getQueued() > 0) && (now - heldSince < HOLD_NANOS);
+                if ((length > 0) && !filling)
+                {
+                    ingest.put(block,length);
+                    block = null;
+                    heldSince = 0L;
+                }
+                else if (open && (bytesRead == 0))
+                {
+                    //Wait for input. I wake up sooner if I hold a block.
+                    try
+                    {
+                        selector.select((length > 0)? HOLD_POLL_MS : IDLE_WAIT_MS);
+                        selector.selectedKeys().clear();
+                    }
+                    catch (java.io.IOException ioe)
+                    {
+                        log("RT-STPS error waiting for the data socket. "+ ioe.getMessage());
+                        open = false;
+                    }
+                }
+            }
+        }
+        catch (InterruptedException ie)
+        {
+        }
+        finally
+        {
+            if (block != null) ingest.release(block);
+            if (selector != null)
+            {
+                try
+                {
+                    selector.close();
+                }
+                catch (java.io.IOException ioe)
+                {
+                }
+            }
+        }
+
+        //The pipeline must finish with everything I queued before I flush it.
+        try
+        {
+            if (!ingest.drain(STOP_TIMEOUT_MS,ingestThread))
+            {
+                log("The pipeline did not take the queued data. I dropped it.");
+            }
+        }
+        catch (InterruptedException ie)
+        {
+        }
+    }
+
+    /**
+     * Read the connection and process each read on this thread.
+     */
+    private void readInline(SocketChannel channel, ByteBuffer buffer)
+    {
+        int consecutiveErrors = 0;
+        while (running && !pipelineError)
+        {
+            buffer.clear();
+            try
+            {
+                int bytesRead = channel.read(buffer);
+                consecutiveErrors = 0;
+                if (bytesRead < 0) break;
+                if (capture != null) capture.capture(buffer.array(),0,bytesRead);
+                if (bytesRead > 0) process(buffer.array(),bytesRead);
+            }
+            catch (ClosedChannelException cce)
+            {
+                break;
+            }
+            catch (java.io.IOException ior)
+            {
+                log("RT-STPS error reading data socket. I will try again. "+ ior.getMessage());
+                if (++consecutiveErrors >= 4) break;
+            }
+        }
+    }
+
+    /**
+     * Close the connection, flush the pipeline, and unload it. Then wake
+     * up stopData if it is waiting. If someone unloaded the pipeline or
+     * loaded another one meanwhile, I leave the current one alone.
+     * @param pipeline The pipeline when the connection started.
+     */
+    private void finishConnection(SocketChannel channel,
+            gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer pipeline)
+    {
+        pipelineError = false;
+        try
+        {
+            channel.close();
+        }
+        catch (java.io.IOException e2)
+        {
+            e2.printStackTrace();
+        }
+
+        try
+        {
+            if (fs != null && fs == pipeline)
+            {
+                fs.flush();
+            }
+            else
+            {
+                System.out.println("Shutting down pipeline -- FS is already null, skipping fs.flush()");
+            }
+        }
+        catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException e3)
+        {
+            e3.printStackTrace();
+        }
+        if (fs == pipeline)
+        {
+            state.unload();
+            fs = null;
+        }
+
+        synchronized (connectionDone)
+        {
+            dataChannel = null;
+            //stopData may have interrupted me. I clear it, or the next
+            //accept would close the server socket.
+            Thread.interrupted();
+            connectionDone.notifyAll();
+        }
+    }
+
+    /**
+     * Give one block of socket data to the pipeline, if it exists.
+     */
+    protected void process(byte[] data, int length)
+    {
+        gov.nasa.gsfc.drl.rtstps.core.fs.FrameSynchronizer pipeline = fs;
+        if (pipeline != null)
+        {
+            try
+            {
+                pipeline.putBuffer(data, length);
+            }
+            catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException se)
+            {
+                log("Data read error. "+se.getMessage());
+                pipelineError = true;
+            }
+        }
+    }
+
     private static final long serialVersionUID = 1L;
 
+    /**
+     * Close the data connection and wait until the socket thread has given
+     * the pipeline everything it read and has flushed it. If it takes too
+     * long, I interrupt the socket thread, and if it still does not finish,
+     * I throw an exception so that the caller does not unload a pipeline
+     * that is still in use.
+     */
     public void stopData() throws RemoteException
     {
-	//System.out.println("stopData called.");
-	try 
-	{
-	    //System.out.println("in try of stopData.");
-	    if(input != null)
-	    {
-		//System.out.println("Closing input.");
-	    	input.close();
-	    	input = null;		
-	    }
-	    
-	}
-	catch (IOException e)
-	{
-	    System.out.println("Exception in stopData().");
-	}
+        SocketChannel channel = dataChannel;
+        if (channel == null) return;
+
+        try
+        {
+            channel.close();
+        }
+        catch (IOException e)
+        {
+            System.out.println("Exception in stopData().");
+        }
+
+        if (waitForConnection(STOP_TIMEOUT_MS)) return;
+        log("The pipeline did not finish within the stop timeout. I interrupt it.");
+        synchronized (connectionDone)
+        {
+            if (dataChannel != null) runner.interrupt();
+        }
+        if (!waitForConnection(STOP_GRACE_MS))
+        {
+            throw new RemoteException("The data connection did not stop.");
+        }
+    }
+
+    /**
+     * Wait until the socket thread has finished the connection.
+     * @return false if it had not finished within the timeout.
+     */
+    private boolean waitForConnection(long timeoutMs) throws RemoteException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMs;
+        synchronized (connectionDone)
+        {
+            while (dataChannel != null)
+            {
+                long wait = deadline - System.currentTimeMillis();
+                if (wait <= 0L) return false;
+                try
+                {
+                    connectionDone.wait(wait);
+                }
+                catch (InterruptedException ie)
+                {
+                    throw new RemoteException("Interrupted while the data connection stopped.");
+                }
+            }
+        }
+        return true;
     }
     
 }
@@ -9,8 +9,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetAddress;
 import java.rmi.RemoteException;
 import java.rmi.registry.LocateRegistry;
 
@@ -44,7 +43,30 @@ import java.rmi.registry.LocateRegistry;
  * <br>
  * -DsourceIpAddress=null
  * <br>If you supply a source IP address, then the server rejects any packet
- * from any other source. If you omit it, it accepts all packets.
+ * from any other source. If you omit it, it accepts all packets. The address
+ * is resolved once when the server starts.
+ * <br>
+ * -DsequenceBytes=0
+ * <br>If the sender puts a big-endian sequence counter of this many bytes in
+ * front of each datagram, the server strips it and counts sequence gaps,
+ * lost datagrams, and datagrams out of order. Zero means there is no counter.
+ * The counts and the receive rates are in the Server.UDP status block.
+ * <br>
+ * -DingestQueueDepth=32
+ * <br>The number of blockSizeKb blocks queued between the socket and the
+ * pipeline, so that a pipeline hiccup does not stall the socket. Zero
+ * processes each datagram on the socket thread, as before.
+ * <br>
+ * -DoverloadPolicy=block
+ * <br>What to do when the ingest queue is full: "block" waits for the
+ * pipeline, "dropNewest" discards the new datagram, and "dropOldest"
+ * discards the oldest queued datagram. Drops appear in the Server.Ingest
+ * status block.
+ * <br>
+ * -Dcapture.directory=null
+ * <br>If you supply a directory, the server records all raw input with its
+ * arrival times in a ring of capture.segments (16) files of capture.segmentMb
+ * (64) megabytes. CaptureReplay plays a capture back.
  * <br>
  * -Dlog.stdout 
  * <br>
@@ -70,9 +92,27 @@ import java.rmi.registry.LocateRegistry;
 public class UdpServer extends AbstractServer
 {
     private int blockSize;
-    private String sourceIpAddress = null;
-    private DatagramSocket socket = null;
-    private DatagramPacket packet = null;
+    private DatagramReceiver receiver = null;
+
+    /**
+     * I receive into this array when there is no ingest queue.
+     */
+    private byte[] data = null;
+
+    /**
+     * stopData sets this to stop the socket thread from giving datagrams to
+     * the pipeline, and the next load clears it. The socket thread tests it
+     * and hands a datagram over while it holds the handoff lock, so once
+     * stopData has set it under the lock, nothing new reaches the pipeline.
+     */
+    private boolean stopped = false;
+    private final Object handoff = new Object();
+
+    /**
+     * stopData waits at most this long for the pipeline to process the
+     * queued datagrams. Then it drops the rest.
+     */
+    private static final long STOP_TIMEOUT_MS = 10000L;
 
     /**
      * This is the main entry point for the RT-STPS server.
@@ -161,32 +201,33 @@ public class UdpServer extends AbstractServer
     {
         super();
         this.blockSize = blocksize;
-        sourceIpAddress = sourceIp;
 
         /**
-         * Create the datagram socket. I will use the platform's buffer size
+         * Create the datagram receiver. It uses the platform's buffer size
          * unless I have been configured to use a different size.
          */
         try
         {
-            socket = new DatagramSocket(dataPort);
-            int rsize = socket.getReceiveBufferSize();
-            System.out.println("This platform's UDP default input buffer size is "+
-                    rsize + " bytes.");
-            if (buffersize <= 0)
+            InetAddress source = null;
+            if (sourceIp != null)
             {
-                buffersize = rsize;
+                source = InetAddress.getByName(sourceIp);
             }
-            else
+            int sequenceBytes = Integer.getInteger("sequenceBytes",0).intValue();
+            receiver = new DatagramReceiver(dataPort,buffersize,blockSize,
+                    source,sequenceBytes);
+
+            startIngestQueue(blockSize);
+
+            //I capture whole datagrams, counters included.
+            startCapture(sequenceBytes + blockSize,sequenceBytes);
+            receiver.setCapture(capture);
+            if (ingest == null)
             {
-                socket.setReceiveBufferSize(buffersize);
-                System.out.println("I set the buffer size to " + buffersize);
+                data = new byte[blockSize];
             }
-
-            byte[] buffer = new byte[blockSize];
-            packet = new DatagramPacket(buffer,blockSize);
         }
-        catch (java.net.SocketException se)
+        catch (java.io.IOException se)
         {
             se.printStackTrace();
             System.exit(0);
@@ -212,61 +253,171 @@ public class UdpServer extends AbstractServer
     {
         while (running)
         {
+            IngestQueue.Block block = null;
+            int length;
             try
             {
                 /**
-                 * I must reset the packet to its full length every time
-                 * I reuse it. Otherwise, the socket will fill it to its
-                 * last length only, That is, a short packet would reduce the
-                 * maximum packet buffer size unless I reset the length.
+                 * With an ingest queue, I receive straight into a free
+                 * queue block. The receiver returns -1 for a datagram from
+                 * an unknown source.
                  */
-                packet.setLength(blockSize);
-                socket.receive(packet);
+                if (ingest != null)
+                {
+                    block = ingest.getFreeBlock();
+                    length = receiver.receive(block.data);
+                }
+                else
+                {
+                    length = receiver.receive(data);
+                }
             }
             catch (java.io.IOException ioe)
             {
                 ioe.printStackTrace();
                 state.unload();
+                if (block != null) ingest.release(block);
+                continue;
             }
-
-            /**
-             * If I have been configured to accept packets from one source, I
-             * discard packets from unknown sources.
-             */
-            if (sourceIpAddress != null)
+            catch (InterruptedException ie)
             {
-                String source = packet.getAddress().getHostAddress();
-                if (!sourceIpAddress.equals(source)) continue;
+                break;
             }
 
-            /**
-             * "isEnabled" means I have a loaded configuration (fs is not null),
-             * and GO has been sent.
-             */
-            if (state.isEnabled())
+            if (length < 0)
             {
-                try
+                if (block != null) ingest.release(block);
+            }
+            else if (block != null)
+            {
+                synchronized (handoff)
                 {
-                    fs.putBuffer(packet.getData(), packet.getLength());
+                    if (!stopped) ingest.put(block,length);
+                    else if (state.isLoaded()) ingest.discard(block,length);
+                    else ingest.release(block);
                 }
-                catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException stpe)
+            }
+            else
+            {
+                synchronized (handoff)
                 {
-                    System.out.println(stpe.getMessage());
-                    state.unload();
+                    if (!stopped) process(data,length);
                 }
             }
         }
 
-        socket.close();
+        receiver.close();
         System.out.println("This server thread is stopping now.");
     }
+
+    /**
+     * The receiver's status block shows the receive rate and the losses.
+     */
+    protected StatusBlock getInputStatusBlock()
+    {
+        return receiver.getStatusBlock();
+    }
+
+    /**
+     * The receive rates are computed when someone reads the status.
+     */
+    protected void updateStatus()
+    {
+        if (receiver != null) receiver.updateRates();
+    }
+
+    /**
+     * Give one datagram to the pipeline.
+     */
+    protected void process(byte[] data, int length)
+    {
+        /**
+         * "isEnabled" means I have a loaded configuration (fs is not null),
+         * and GO has been sent.
+         */
+        if (state.isEnabled() && (length > 0))
+        {
+            try
+            {
+                fs.putBuffer(data,length);
+            }
+            catch (gov.nasa.gsfc.drl.rtstps.core.RtStpsException stpe)
+            {
+                System.out.println(stpe.getMessage());
+                state.unload();
+            }
+        }
+    }
     
     private static final long serialVersionUID = 1L;
     
     
+    /**
+     * Stop giving datagrams to the pipeline and wait until it has processed
+     * every datagram already queued, so that the pipeline can be shut down.
+     * Datagrams that arrive after this count as dropped until the next load.
+     * If the pipeline does not finish within STOP_TIMEOUT_MS, or its thread
+     * has died, I drop what is still queued.
+     */
     public void stopData() throws RemoteException
     {
-	
+        synchronized (handoff)
+        {
+            stopped = true;
+        }
+
+        if (ingest != null)
+        {
+            try
+            {
+                if (!ingest.drain(STOP_TIMEOUT_MS,ingestThread))
+                {
+                    log("The pipeline did not take the queued datagrams. I dropped them.");
+                }
+            }
+            catch (InterruptedException ie)
+            {
+                log("Interrupted while the ingest queue drained.");
+            }
+        }
+    }
+
+    /**
+     * Load a configuration.
+     */
+    public void load(String configuration) throws RemoteException
+    {
+        super.load(configuration);
+        resume();
+    }
+
+    /**
+     * Load a configuration.
+     */
+    public void load(char[] configuration) throws RemoteException
+    {
+        super.load(configuration);
+        resume();
+    }
+
+    /**
+     * Load a configuration from a file that is local to the server.
+     */
+    public void loadFile(String filename) throws RemoteException
+    {
+        super.loadFile(filename);
+        resume();
+    }
+
+    /**
+     * Let datagrams reach the new pipeline.
+     */
+    private void resume()
+    {
+        synchronized (handoff)
+        {
+            stopped = false;
+        }
     }
     
 }
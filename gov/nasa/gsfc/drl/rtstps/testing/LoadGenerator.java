@@ -0,0 +1,325 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.testing;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * This program drives RT-STPS servers at exact bit rates for soak tests. It
+ * sends a raw telemetry file or synthetic CADUs over TCP or UDP on one or more
+ * concurrent streams, and it can ramp the rate up step by step until the
+ * senders can no longer hold it. It logs the target and achieved rates, the
+ * time blocked in writes (TCP backpressure), and schedule slips with wall
+ * clock times, so the log lines up with the server's status.
+ * <p>
+ * Arguments: [dataFile|synthetic] [target] [target...]
+ * <br>Each target is "tcp:host:port" or "udp:host:port".
+ * <p>
+ * Options:
+ * <br>-Dstreams=1 -- the number of streams to each target.
+ * <br>-DrateMbps=10 -- the starting rate of each stream, in megabits/second.
+ * <br>-DrampMbps=0 -- if nonzero, I raise each stream's rate by this much
+ *          every step until a stream cannot keep up.
+ * <br>-DmaxRateMbps=0 -- the rate where the ramp stops. Zero is no limit.
+ * <br>-DstepSeconds=10 -- the length of a ramp step.
+ * <br>-Dseconds=0 -- how long to run. Zero runs until the file ends, the
+ *          ramp ends, or forever.
+ * <br>-DchunkBytes -- the bytes per write or datagram. The default is 65536
+ *          for TCP and 8192 for UDP. Synthetic chunks hold whole CADUs.
+ * <br>-Dloop=true -- repeat the file.
+ * <br>-DcaduSize=1024 -Dspacecraft=42 -Dvcid=16 -- the synthetic CADUs.
+ * <br>-DreportSeconds=1 -- how often I log.
+ *
+ */
+public final class LoadGenerator
+{
+    /**
+     * A step fails if the achieved rate is below this part of the target.
+     */
+    private static final double BREAK_RATIO = 0.98;
+
+    private static final int SYNC = 0x1acffc1d;
+
+    public static void main(String[] args)
+    {
+        if (args.length < 2)
+        {
+            System.err.println("Options: [-Dstreams=1] [-DrateMbps=10] [-DrampMbps=0] [-DmaxRateMbps=0]");
+            System.err.println("         [-DstepSeconds=10] [-Dseconds=0] [-DchunkBytes=n] [-Dloop=true]");
+            System.err.println("         [-DcaduSize=1024] [-Dspacecraft=42] [-Dvcid=16] [-DreportSeconds=1]");
+            System.err.println("Arguments: [dataFile|synthetic] [tcp:host:port|udp:host:port] ...");
+            System.exit(1);
+        }
+
+        int streams = Integer.getInteger("streams",1).intValue();
+        double rate = Double.parseDouble(System.getProperty("rateMbps","10")) * 1.0e6;
+        double ramp = Double.parseDouble(System.getProperty("rampMbps","0")) * 1.0e6;
+        double maxRate = Double.parseDouble(System.getProperty("maxRateMbps","0")) * 1.0e6;
+        long stepMillis = Integer.getInteger("stepSeconds",10).intValue() * 1000L;
+        long runMillis = Integer.getInteger("seconds",0).intValue() * 1000L;
+        long reportMillis = Math.max(100L,
+                (long)(Double.parseDouble(System.getProperty("reportSeconds","1")) * 1000.0));
+        boolean loop = Boolean.valueOf(System.getProperty("loop","true")).booleanValue();
+        int caduSize = Integer.getInteger("caduSize",1024).intValue();
+        int spacecraft = Integer.getInteger("spacecraft",42).intValue();
+        int vcid = Integer.getInteger("vcid",16).intValue();
+        boolean synthetic = args[0].equals("synthetic");
+
+        List<LoadStream> list = new ArrayList<LoadStream>();
+        try
+        {
+            for (int t = 1; t < args.length; t++)
+            {
+                int chunk = Integer.getInteger("chunkBytes",
+                        args[t].startsWith("udp:")? 8192 : 65536).intValue();
+                if (synthetic) chunk = Math.max(1,chunk / caduSize) * caduSize;
+                for (int n = 0; n < streams; n++)
+                {
+                    LoadStream.Source source = synthetic?
+                            (LoadStream.Source)new CaduSource(caduSize,spacecraft,vcid) :
+                            (LoadStream.Source)new FileSource(new File(args[0]),loop);
+                    list.add(new LoadStream(args[t],source,chunk,rate));
+                }
+            }
+        }
+        catch (IOException ioe)
+        {
+            System.err.println(ioe.getMessage());
+            for (LoadStream s : list) s.terminate();
+            System.exit(2);
+        }
+
+        LoadStream[] all = list.toArray(new LoadStream[list.size()]);
+        run(all,rate,ramp,maxRate,stepMillis,runMillis,reportMillis);
+    }
+
+    private static void run(LoadStream[] streams, double rate, double ramp,
+            double maxRate, long stepMillis, long runMillis, long reportMillis)
+    {
+        SimpleDateFormat clock = new SimpleDateFormat("HH:mm:ss");
+        long start = System.currentTimeMillis();
+        long nextStep = start + stepMillis;
+        long nextReport = start + reportMillis;
+        long[] lastBytes = new long[streams.length];
+        long[] lastBlocked = new long[streams.length];
+        long stepStartBytes = 0L;
+        long stepStartTime = start;
+        double sustained = 0.0;
+        long lastTime = start;
+
+        log(clock,"Sending " + streams.length + " streams at " + mbps(rate) +
+                " Mb/s each.");
+        for (int n = 0; n < streams.length; n++)
+        {
+            streams[n].start();
+        }
+
+        try
+        {
+            while (isAlive(streams))
+            {
+                long now = System.currentTimeMillis();
+                long wake = nextReport;
+                if (ramp > 0.0 && nextStep < wake) wake = nextStep;
+                if (wake > now) Thread.sleep(wake - now);
+                now = System.currentTimeMillis();
+
+                if (now >= nextReport)
+                {
+                    double seconds = (now - lastTime) / 1000.0;
+                    long total = 0L;
+                    for (int n = 0; n < streams.length; n++)
+                    {
+                        LoadStream s = streams[n];
+                        long bytes = s.getBytesSent();
+                        long blocked = s.getBlockedNanos();
+                        total += bytes;
+                        log(clock,String.format(
+                                "%s target %.3f Mb/s achieved %.3f Mb/s blocked %.1f%% late %.3f ms slips %d errors %d",
+                                s.getTarget(),
+                                s.getBitsPerSecond() / 1.0e6,
+                                (bytes - lastBytes[n]) * 8.0 / seconds / 1.0e6,
+                                (blocked - lastBlocked[n]) / 1.0e7 / seconds,
+                                s.takeMaxLateNanos() / 1.0e6,
+                                s.getSlips(), s.getErrors()));
+                        lastBytes[n] = bytes;
+                        lastBlocked[n] = blocked;
+                    }
+                    if (streams.length > 1)
+                    {
+                        log(clock,String.format("total sent %.1f MB",
+                                total / (1024.0 * 1024.0)));
+                    }
+                    lastTime = now;
+                    nextReport += reportMillis;
+                }
+
+                if (ramp > 0.0 && now >= nextStep)
+                {
+                    long bytes = 0L;
+                    for (int n = 0; n < streams.length; n++)
+                    {
+                        bytes += streams[n].getBytesSent();
+                    }
+                    double achieved = (bytes - stepStartBytes) * 8.0 /
+                            ((now - stepStartTime) / 1000.0) / streams.length;
+                    if (achieved < rate * BREAK_RATIO)
+                    {
+                        log(clock,"BREAKING POINT: the streams could not hold " +
+                                mbps(rate) + " Mb/s each. They achieved " +
+                                mbps(achieved) + " Mb/s. The last sustained rate was " +
+                                mbps(sustained) + " Mb/s each.");
+                        break;
+                    }
+                    sustained = rate;
+                    rate += ramp;
+                    if (maxRate > 0.0 && rate > maxRate)
+                    {
+                        log(clock,"The ramp reached " + mbps(sustained) +
+                                " Mb/s each without a break.");
+                        break;
+                    }
+                    log(clock,"Ramping to " + mbps(rate) + " Mb/s each.");
+                    for (int n = 0; n < streams.length; n++)
+                    {
+                        streams[n].setBitsPerSecond(rate);
+                    }
+                    stepStartBytes = bytes;
+                    stepStartTime = now;
+                    nextStep += stepMillis;
+                }
+
+                if (runMillis > 0L && now - start >= runMillis) break;
+            }
+        }
+        catch (InterruptedException ie)
+        {
+        }
+
+        long total = 0L;
+        for (int n = 0; n < streams.length; n++)
+        {
+            streams[n].terminate();
+        }
+        for (int n = 0; n < streams.length; n++)
+        {
+            try { streams[n].join(); } catch (InterruptedException ie) { }
+            total += streams[n].getBytesSent();
+        }
+        double seconds = Math.max(1L,System.currentTimeMillis() - start) / 1000.0;
+        log(clock,String.format("Sent %.1f MB in %.1f seconds, %.3f Mb/s in all.",
+                total / (1024.0 * 1024.0), seconds, total * 8.0 / seconds / 1.0e6));
+    }
+
+    private static boolean isAlive(LoadStream[] streams)
+    {
+        for (int n = 0; n < streams.length; n++)
+        {
+            if (streams[n].isAlive()) return true;
+        }
+        return false;
+    }
+
+    private static String mbps(double bitsPerSecond)
+    {
+        return String.format("%.3f",bitsPerSecond / 1.0e6);
+    }
+
+    private static void log(SimpleDateFormat clock, String message)
+    {
+        System.out.println(clock.format(new Date()) + " " + message);
+    }
+
+    /**
+     * This source reads a raw telemetry file, optionally over and over.
+     */
+    private static final class FileSource implements LoadStream.Source
+    {
+        private final FileChannel channel;
+        private final boolean loop;
+        private long position = 0L;
+
+        FileSource(File file, boolean loop) throws IOException
+        {
+            channel = new RandomAccessFile(file,"r").getChannel();
+            if (channel.size() == 0L) throw new IOException(file + " is empty.");
+            this.loop = loop;
+        }
+
+        public boolean fill(ByteBuffer buffer)
+        {
+            buffer.clear();
+            try
+            {
+                while (buffer.hasRemaining())
+                {
+                    int bytes = channel.read(buffer,position);
+                    if (bytes < 0)
+                    {
+                        if (!loop) break;
+                        position = 0L;
+                        continue;
+                    }
+                    position += bytes;
+                }
+            }
+            catch (IOException ioe)
+            {
+                System.err.println(ioe.getMessage());
+            }
+            buffer.flip();
+            return buffer.hasRemaining();
+        }
+    }
+
+    /**
+     * This source makes CADUs with a sync pattern, a VCDU primary header
+     * with a counter, and fill.
+     */
+    private static final class CaduSource implements LoadStream.Source
+    {
+        private final byte[] cadu;
+        private final int header;
+        private int counter = 0;
+
+        CaduSource(int caduSize, int spacecraft, int vcid)
+        {
+            cadu = new byte[caduSize];
+            for (int n = 10; n < caduSize; n++)
+            {
+                cadu[n] = (byte)n;
+            }
+            //version 2, spacecraft, virtual channel
+            header = 0x4000 | ((spacecraft & 0xff) << 6) | (vcid & 0x3f);
+        }
+
+        public boolean fill(ByteBuffer buffer)
+        {
+            buffer.clear();
+            while (buffer.remaining() >= cadu.length)
+            {
+                int start = buffer.position();
+                buffer.put(cadu);
+                buffer.putInt(start,SYNC);
+                buffer.putShort(start + 4,(short)header);
+                buffer.put(start + 6,(byte)(counter >>> 16));
+                buffer.put(start + 7,(byte)(counter >>> 8));
+                buffer.put(start + 8,(byte)counter);
+                buffer.put(start + 9,(byte)0);
+                counter = (counter + 1) & 0xffffff;
+            }
+            buffer.flip();
+            return true;
+        }
+    }
+}
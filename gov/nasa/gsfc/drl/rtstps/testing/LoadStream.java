@@ -0,0 +1,268 @@
+/*
+Copyright (c) 1999-2007, United States Government, as represented by
+the Administrator for The National Aeronautics and Space Administration.
+All rights reserved.
+*/
+package gov.nasa.gsfc.drl.rtstps.testing;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * This thread sends one stream of telemetry at an exact bit rate. It gives
+ * each chunk a due time from the bytes sent so far, parks until it is close
+ * to that time, and spins for the rest, so the rate holds even at high chunk
+ * rates where sleep is too coarse.
+ * <p>
+ * The time I spend inside a TCP write is backpressure from the receiver. If
+ * I fall further behind my schedule than I could reasonably catch up, I slip
+ * the schedule rather than burst, and I count the slip.
+ *
+ */
+final class LoadStream extends Thread
+{
+    /**
+     * I park until a chunk is this close to its due time, and then I spin.
+     */
+    private static final long SPIN_NANOS = 100000L;
+
+    /**
+     * If I am this late, I slip the schedule.
+     */
+    private static final long SLIP_NANOS = 100000000L;
+
+    /**
+     * Where the chunks come from.
+     */
+    interface Source
+    {
+        /**
+         * Fill the buffer with the next chunk and flip it.
+         * @return false if there is no more data.
+         */
+        boolean fill(ByteBuffer buffer);
+    }
+
+    private final String target;
+    private final Source source;
+    private final ByteBuffer buffer;
+    private SocketChannel tcp = null;
+    private DatagramChannel udp = null;
+
+    private volatile double bitsPerSecond;
+    private volatile boolean running = true;
+
+    /*
+     * Statistics. Only this thread writes them.
+     */
+    private volatile long bytesSent = 0L;
+    private volatile long chunksSent = 0L;
+    private volatile long blockedNanos = 0L;
+    private volatile long maxLateNanos = 0L;
+    private volatile long slips = 0L;
+    private volatile long errors = 0L;
+
+    /**
+     * Create a stream.
+     * @param target "tcp:host:port" or "udp:host:port"
+     * @param source The data to send.
+     * @param chunkSize The number of bytes in each write or datagram.
+     * @param bitsPerSecond The starting rate.
+     */
+    LoadStream(String target, Source source, int chunkSize, double bitsPerSecond)
+            throws IOException
+    {
+        super("load " + target);
+        this.target = target;
+        this.source = source;
+        this.bitsPerSecond = bitsPerSecond;
+        buffer = ByteBuffer.allocateDirect(chunkSize);
+
+        InetSocketAddress address = toAddress(target.substring(4));
+        if (target.startsWith("tcp:"))
+        {
+            tcp = SocketChannel.open(address);
+        }
+        else if (target.startsWith("udp:"))
+        {
+            udp = DatagramChannel.open();
+            udp.connect(address);
+        }
+        else
+        {
+            throw new IOException("A target is tcp:host:port or udp:host:port, not " +
+                    target);
+        }
+    }
+
+    private static InetSocketAddress toAddress(String hostPort)
+    {
+        int colon = hostPort.lastIndexOf(':');
+        return new InetSocketAddress(hostPort.substring(0,colon),
+                Integer.parseInt(hostPort.substring(colon + 1)));
+    }
+
+    final String getTarget()
+    {
+        return target;
+    }
+
+    /**
+     * Change the rate. The new rate starts with the next chunk.
+     */
+    final void setBitsPerSecond(double bitsPerSecond)
+    {
+        this.bitsPerSecond = bitsPerSecond;
+    }
+
+    final double getBitsPerSecond()
+    {
+        return bitsPerSecond;
+    }
+
+    final long getBytesSent()
+    {
+        return bytesSent;
+    }
+
+    final long getChunksSent()
+    {
+        return chunksSent;
+    }
+
+    /**
+     * Get the total time I spent blocked in writes.
+     */
+    final long getBlockedNanos()
+    {
+        return blockedNanos;
+    }
+
+    /**
+     * Get the latest I sent a chunk since the last call, and reset it.
+     */
+    final long takeMaxLateNanos()
+    {
+        long late = maxLateNanos;
+        maxLateNanos = 0L;
+        return late;
+    }
+
+    final long getSlips()
+    {
+        return slips;
+    }
+
+    /**
+     * Get the number of failed sends. A UDP send fails when nothing
+     * listens on the port.
+     */
+    final long getErrors()
+    {
+        return errors;
+    }
+
+    /**
+     * Stop sending.
+     */
+    final void terminate()
+    {
+        running = false;
+    }
+
+    public void run()
+    {
+        double rate = bitsPerSecond;
+        long origin = System.nanoTime();
+        long base = 0L;
+        long sent = 0L;
+
+        try
+        {
+            while (running)
+            {
+                if (!source.fill(buffer)) break;
+                int length = buffer.remaining();
+
+                if (rate != bitsPerSecond)
+                {
+                    //I start a new schedule at the new rate.
+                    rate = bitsPerSecond;
+                    origin = System.nanoTime();
+                    base = sent;
+                }
+                long due = origin + (long)((sent - base) * 8.0e9 / rate);
+                long late = waitUntil(due);
+                if (late > SLIP_NANOS)
+                {
+                    ++slips;
+                    origin = System.nanoTime();
+                    base = sent;
+                }
+                if (late > maxLateNanos) maxLateNanos = late;
+
+                long start = System.nanoTime();
+                if (tcp != null)
+                {
+                    while (buffer.hasRemaining())
+                    {
+                        tcp.write(buffer);
+                    }
+                }
+                else
+                {
+                    try
+                    {
+                        udp.write(buffer);
+                    }
+                    catch (IOException ioe)
+                    {
+                        //Usually a port unreachable. I keep the schedule.
+                        ++errors;
+                    }
+                }
+                blockedNanos += System.nanoTime() - start;
+
+                sent += length;
+                bytesSent = sent;
+                ++chunksSent;
+            }
+        }
+        catch (IOException ioe)
+        {
+            ++errors;
+            System.err.println(target + " " + ioe.getMessage());
+        }
+
+        running = false;
+        try
+        {
+            if (tcp != null) tcp.close();
+            if (udp != null) udp.close();
+        }
+        catch (IOException ioe)
+        {
+        }
+    }
+
+    /**
+     * Wait until a time.
+     * @return How late I am, in nanoseconds.
+     */
+    private static long waitUntil(long due)
+    {
+        long wait;
+        while ((wait = due - System.nanoTime()) > SPIN_NANOS)
+        {
+            LockSupport.parkNanos(wait - SPIN_NANOS);
+        }
+        while ((wait = due - System.nanoTime()) > 0L)
+        {
+            //spin
+        }
+        return -wait;
+    }
+}